@@ -7,6 +7,7 @@ import java.util.Hashtable;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.net.UnknownHostException;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
@@ -14,6 +15,9 @@ import java.io.OutputStreamWriter;
 import java.io.BufferedWriter;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public class TartanHouseSimulator implements Runnable {
 
@@ -29,6 +33,9 @@ public class TartanHouseSimulator implements Runnable {
     private Boolean chillerOnState; // the chiller state (true if on, false if off)
     private Boolean alarmActiveState; // the alarm active state (true if alarm sounding, false if alarm not sounding)
     private String  hvacMode; // the HVAC mode setting, either Heater or Chiller
+    private Boolean lockState; // the door lock state (true if locked, false if unlocked)
+    private Boolean intruderState; // the intruder sensor (true if an intruder is detected)
+    private Boolean nightModeState; // night mode (true if on, false if off)
 
     /** connection settings */
     private String address = null;
@@ -54,12 +61,41 @@ public class TartanHouseSimulator implements Runnable {
     private final String HEATER_STATE = "HES";
     private final String CHILLER_STATE = "CHS";
     private final String PASSCODE = "PC";
+    private final String LOCK_STATE = "LKS";
+    private final String INTRUDER_DETECT = "ID";
+    private final String NIGHT_MODE = "NM";
 
     // protocol control values
     private final String PARAM_DELIM = ";";
     private final String MSG_DELIM = ":";
     private final String PARAM_EQ = "=";
     final String MSG_END = ".";
+    private final String SEQ_DELIM = "#";
+
+    // the platform offers the binary protocol with this handshake; echoing it accepts the offer
+    private final String HELLO_BINARY = "HELLO:BIN1.";
+
+    // binary message types
+    private static final byte BIN_GET_STATE = 1;
+    private static final byte BIN_SET_STATE = 2;
+    private static final byte BIN_STATE_UPDATE = 3;
+    private static final byte BIN_OK = 4;
+    private static final byte BIN_PUSH_UPDATE = 5;
+    private static final byte BIN_SUBSCRIBE = 6;
+
+    // a subscribed platform is sent the state whenever it changes, tagged with PUSH_TAG in text
+    private final String SUBSCRIBE = "SUB";
+    private final String PUSH_TAG = "*#";
+    private boolean subscribed = false;
+    private String lastPushed = null;
+
+    // the key of each bit in a binary frame, in the order the platform numbers them
+    private final String[] BIN_SLOTS = {
+            TEMP_READING, HUMIDITY_READING, DOOR_STATE, LIGHT_STATE, PROXIMITY_STATE, ALARM_STATE,
+            ALARM_ACTIVE, HEATER_STATE, CHILLER_STATE, HVAC_MODE, HUMIDIFIER_STATE, LOCK_STATE,
+            INTRUDER_DETECT, NIGHT_MODE
+    };
+    private static final int ALL_SLOTS = (1 << 14) - 1;
 
     // target temperature
     private final String TARGET_TEMP = "TT";
@@ -107,7 +143,32 @@ public class TartanHouseSimulator implements Runnable {
      */
     public TartanHouseSimulator(Integer port) {
         this.port = port;
-    }    
+
+        tempReading = 65;
+        humidityReading = 90;
+        doorState = true;
+        dightState = true;
+        proximityState = true;
+        alarmState = false;
+        humidifierState = false;
+        heaterOnState = false;
+        chillerOnState = false;
+        alarmActiveState = false;
+        hvacMode = "Heater";
+        lockState = false;
+        intruderState = false;
+        nightModeState = false;
+    }
+
+    /**
+     * Run a simulated house
+     * @param args the port to listen on, 5050 by default
+     */
+    public static void main(String[] args) {
+        Integer port = args.length > 0 ? Integer.parseInt(args[0]) : 5050;
+        System.out.println("Waiting for house connection on port " + port);
+        new TartanHouseSimulator(port).runSimulator();
+    }
 
     public void runSimulator() {
         ServerSocket serverSocket = null;
@@ -394,8 +455,319 @@ public class TartanHouseSimulator implements Runnable {
             return state;
         }
 
+    /**
+     * Serve the platform: text requests until it offers the binary protocol, then binary frames
+     */
     @Override
     public void run() {
-        // TODO: read and write 
+        try {
+            InputStream rawIn = new BufferedInputStream(houseSocket.getInputStream());
+            OutputStream rawOut = houseSocket.getOutputStream();
+
+            StringBuilder request = new StringBuilder();
+            boolean binary = false;
+            while (!binary) {
+                int b = rawIn.read();
+                if (b < 0) {
+                    return;
+                }
+                if (b == '\n' || b == '\r') {
+                    continue;
+                }
+                request.append((char) b);
+                if (b == MSG_END.charAt(0)) {
+                    binary = handleTextRequest(request.toString(), rawOut);
+                    request.setLength(0);
+                    updateSimulation();
+                    if (!binary) {
+                        pushIfChanged(rawOut, false);
+                    }
+                }
+            }
+            System.out.println("Speaking the binary protocol");
+
+            while (true) {
+                int length = readVarint(rawIn);
+                if (length <= 0) {
+                    return;
+                }
+                byte[] frame = new byte[length];
+                int read = 0;
+                while (read < length) {
+                    int n = rawIn.read(frame, read, length - read);
+                    if (n < 0) {
+                        return;
+                    }
+                    read += n;
+                }
+                handleBinaryRequest(ByteBuffer.wrap(frame), rawOut);
+                updateSimulation();
+                pushIfChanged(rawOut, true);
+            }
+        } catch (IOException ioe) {
+            System.out.println("Connection lost: " + ioe.getMessage());
+        } finally {
+            isConnected = false;
+            try {
+                houseSocket.close();
+            } catch (IOException e) { }
+        }
+    }
+
+    /**
+     * Answer a text request. A request may carry a sequence id tag ("17#GS."), which is echoed
+     * @param request the request, including the trailing '.'
+     * @param rawOut the socket
+     * @return true if the platform switched to the binary protocol
+     */
+    private boolean handleTextRequest(String request, OutputStream rawOut) throws IOException {
+        String tag = "";
+        int delim = request.indexOf(SEQ_DELIM);
+        if (delim >= 0) {
+            tag = request.substring(0, delim + 1);
+            request = request.substring(delim + 1);
+        }
+
+        String response;
+        boolean binary = false;
+        if (request.equals(HELLO_BINARY)) {
+            response = tag + HELLO_BINARY;
+            binary = true;
+        } else if (request.startsWith(GET_STATE)) {
+            // "GS:DS;LKS." asks for some keys only
+            int mask = ALL_SLOTS;
+            if (request.startsWith(GET_STATE + MSG_DELIM)) {
+                mask = 0;
+                String body = request.substring(GET_STATE.length() + MSG_DELIM.length(), request.length() - 1);
+                StringTokenizer kt = new StringTokenizer(body, PARAM_DELIM);
+                while (kt.hasMoreTokens()) {
+                    String key = kt.nextToken();
+                    for (int slot = 0; slot < BIN_SLOTS.length; slot++) {
+                        if (BIN_SLOTS[slot].equals(key)) {
+                            mask |= 1 << slot;
+                        }
+                    }
+                }
+            }
+            response = tag + STATE_UPDATE + MSG_DELIM + stateString(mask) + MSG_END;
+        } else if (request.startsWith(SET_STATE)) {
+            String body = request.substring(SET_STATE.length() + MSG_DELIM.length(), request.length() - 1);
+            StringTokenizer pt = new StringTokenizer(body, PARAM_DELIM);
+            while (pt.hasMoreTokens()) {
+                String data[] = pt.nextToken().split(PARAM_EQ);
+                if (data.length == 2) {
+                    setValue(data[0], data[1].equals("1"));
+                }
+            }
+            response = tag + OK + MSG_END;
+        } else if (request.startsWith(SUBSCRIBE)) {
+            response = tag + OK + MSG_END;
+            subscribed = true;
+            lastPushed = stateString();
+        } else {
+            System.out.println("Error, unknown request: " + request);
+            return false;
+        }
+        rawOut.write((response + "\n").getBytes("US-ASCII"));
+        rawOut.flush();
+        return binary;
+    }
+
+    /**
+     * Answer a binary request: varint sequence id, type, payload
+     * @param frame the frame after its length
+     * @param rawOut the socket
+     */
+    private void handleBinaryRequest(ByteBuffer frame, OutputStream rawOut) throws IOException {
+        int sequence = getVarint(frame);
+        byte type = frame.hasRemaining() ? frame.get() : 0;
+
+        ByteBuffer body = ByteBuffer.allocate(32);
+        if (type == BIN_GET_STATE) {
+            // an optional mask asks for some slots only
+            int mask = frame.hasRemaining() ? getVarint(frame) : ALL_SLOTS;
+            putState(body, BIN_STATE_UPDATE, mask);
+        } else if (type == BIN_SUBSCRIBE) {
+            body.put(BIN_OK);
+            subscribed = true;
+            lastPushed = stateString();
+        } else if (type == BIN_SET_STATE) {
+            int mask = getVarint(frame);
+            int bits = getVarint(frame);
+            for (int slot = 2; slot < BIN_SLOTS.length; slot++) {
+                if ((mask & (1 << slot)) != 0) {
+                    setValue(BIN_SLOTS[slot], (bits & (1 << slot)) != 0);
+                }
+            }
+            body.put(BIN_OK);
+        } else {
+            System.out.println("Error, unknown binary request: " + type);
+            return;
+        }
+        body.flip();
+        writeFrame(rawOut, sequence, body);
+    }
+
+    /**
+     * Send the state to a subscribed platform if it changed since it was last sent
+     * @param rawOut the socket
+     * @param binary true once the binary protocol is in use
+     */
+    private void pushIfChanged(OutputStream rawOut, boolean binary) throws IOException {
+        String state = stateString();
+        if (!subscribed || state.equals(lastPushed)) {
+            return;
+        }
+        lastPushed = state;
+        if (binary) {
+            ByteBuffer body = ByteBuffer.allocate(32);
+            putState(body, BIN_PUSH_UPDATE, ALL_SLOTS);
+            body.flip();
+            writeFrame(rawOut, 0, body);
+        } else {
+            rawOut.write((PUSH_TAG + STATE_UPDATE + MSG_DELIM + state + MSG_END + "\n").getBytes("US-ASCII"));
+            rawOut.flush();
+        }
+    }
+
+    private void putState(ByteBuffer body, byte type, int mask) {
+        int bits = 0;
+        for (int slot = 2; slot < BIN_SLOTS.length; slot++) {
+            if ((mask & (1 << slot)) != 0 && getValue(BIN_SLOTS[slot])) {
+                bits |= 1 << slot;
+            }
+        }
+        body.put(type);
+        putVarint(body, mask);
+        putVarint(body, bits);
+        if ((mask & 1) != 0) {
+            putVarint(body, (tempReading << 1) ^ (tempReading >> 31));
+        }
+        if ((mask & 2) != 0) {
+            putVarint(body, (humidityReading << 1) ^ (humidityReading >> 31));
+        }
+    }
+
+    private void writeFrame(OutputStream rawOut, int sequence, ByteBuffer body) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(10);
+        ByteBuffer seq = ByteBuffer.allocate(5);
+        putVarint(seq, sequence);
+        seq.flip();
+        putVarint(header, seq.remaining() + body.remaining());
+        header.put(seq);
+        header.flip();
+
+        rawOut.write(header.array(), 0, header.limit());
+        rawOut.write(body.array(), 0, body.limit());
+        rawOut.flush();
+    }
+
+    /**
+     * The current state in the text protocol form
+     */
+    private String stateString() {
+        return stateString(ALL_SLOTS);
+    }
+
+    /**
+     * Some of the current state in the text protocol form
+     * @param mask bit n is set to include slot n
+     */
+    private String stateString(int mask) {
+        StringBuilder sb = new StringBuilder();
+        for (int slot = 0; slot < BIN_SLOTS.length; slot++) {
+            if ((mask & (1 << slot)) == 0) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(PARAM_DELIM);
+            }
+            sb.append(BIN_SLOTS[slot]).append(PARAM_EQ);
+            if (BIN_SLOTS[slot].equals(TEMP_READING)) {
+                sb.append(tempReading);
+            } else if (BIN_SLOTS[slot].equals(HUMIDITY_READING)) {
+                sb.append(humidityReading);
+            } else {
+                sb.append(getValue(BIN_SLOTS[slot]) ? "1" : "0");
+            }
+        }
+        return sb.toString();
+    }
+
+    private boolean getValue(String key) {
+        if (key.equals(DOOR_STATE)) return doorState;
+        if (key.equals(LIGHT_STATE)) return dightState;
+        if (key.equals(PROXIMITY_STATE)) return proximityState;
+        if (key.equals(ALARM_STATE)) return alarmState;
+        if (key.equals(ALARM_ACTIVE)) return alarmActiveState;
+        if (key.equals(HEATER_STATE)) return heaterOnState;
+        if (key.equals(CHILLER_STATE)) return chillerOnState;
+        if (key.equals(HVAC_MODE)) return hvacMode.equals("Heater");
+        if (key.equals(HUMIDIFIER_STATE)) return humidifierState;
+        if (key.equals(LOCK_STATE)) return lockState;
+        if (key.equals(INTRUDER_DETECT)) return intruderState;
+        if (key.equals(NIGHT_MODE)) return nightModeState;
+        return false;
+    }
+
+    private void setValue(String key, boolean on) {
+        if (key.equals(DOOR_STATE)) doorState = on;
+        else if (key.equals(LIGHT_STATE)) dightState = on;
+        else if (key.equals(PROXIMITY_STATE)) proximityState = on;
+        else if (key.equals(ALARM_STATE)) alarmState = on;
+        else if (key.equals(ALARM_ACTIVE)) alarmActiveState = on;
+        else if (key.equals(HEATER_STATE)) heaterOnState = on;
+        else if (key.equals(CHILLER_STATE)) chillerOnState = on;
+        else if (key.equals(HVAC_MODE)) hvacMode = on ? "Heater" : "Chiller";
+        else if (key.equals(HUMIDIFIER_STATE)) humidifierState = on;
+        else if (key.equals(LOCK_STATE)) lockState = on;
+        else if (key.equals(INTRUDER_DETECT)) intruderState = on;
+        else if (key.equals(NIGHT_MODE)) nightModeState = on;
+    }
+
+    /**
+     * Very simple physics, the same as the python simulator
+     */
+    private void updateSimulation() {
+        if (heaterOnState) tempReading++;
+        if (chillerOnState) tempReading--;
+        if (humidityReading < 100 && humidityReading > 0) {
+            humidityReading += humidifierState ? -1 : 1;
+        }
+    }
+
+    private static void putVarint(ByteBuffer dst, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer src) {
+        int value = 0;
+        for (int shift = 0; shift < 35 && src.hasRemaining(); shift += 7) {
+            byte b = src.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                return -1;
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
     }
 }
@@ -189,6 +189,44 @@ class HouseState(object):
 
 house = HouseState()
 
+# in gateway mode the simulator is a hub for several houses, by id; the user commands drive the first
+houses = {}
+
+class Subscription(object):
+   '''
+   Push state updates to a subscribed platform when the house changes
+   '''
+   def __init__(self):
+      self.__lock = threading.Lock()
+      self.__connection = None
+      self.__last = None
+
+   def start(self, connection):
+      with self.__lock:
+         self.__connection = connection
+         self.__last = house.get_state()
+
+   def stop(self):
+      with self.__lock:
+         self.__connection = None
+
+   def send(self, connection, msg):
+      '''
+      Responses and pushed updates share the socket
+      '''
+      with self.__lock:
+         connection.sendall(msg.encode())
+
+   def push_if_changed(self):
+      with self.__lock:
+         if self.__connection is None: return
+         state = house.get_state()
+         if state == self.__last: return
+         self.__last = state
+         self.__connection.sendall("*#SU:{0}.\n".format(state).encode())
+
+subscription = Subscription()
+
 class UserThread(threading.Thread):
    '''
    Thread to mimic user behavior
@@ -232,8 +270,87 @@ class UserThread(threading.Thread):
          elif cmd == "i":
             if house.get_intruder_detect() == "1": house.set_intruder_detect(False)
             else: house.set_intruder_detect(True)
+
+         subscription.push_if_changed()
+      return
+
+def requested_state(h, data):
+   '''
+   The state a get state request asks for: every key for "GS.", or only the named ones
+   for "GS:DS;LKS."
+   '''
+   state = h.get_state()
+   if data[:3] != "GS:": return state
+   keys = data[3:-1].split(";")
+   return ";".join(p for p in state.split(";") if p.split("=")[0] in keys)
+
+def handle_request(connection, data):
+   '''
+   Answer one request. A request may carry a sequence id tag ("17#GS."), which is
+   echoed on the response so the platform can match pipelined responses
+   '''
+   tag = ""
+   if "#" in data:
+      seq, data = data.split("#", 1)
+      tag = seq + "#"
+
+   if houses:
+      handle_gateway_request(connection, data, tag)
       return
 
+   if data[:2] == "GS":
+      su = "{0}SU:{1}.\n".format(tag, requested_state(house, data))
+      subscription.send(connection, su)
+
+   elif data[:2] == "SS":
+      house.set_state(data)
+      subscription.send(connection, "{0}OK.\n".format(tag))
+
+   elif data[:3] == "SUB":
+      # from now on changes are pushed, tagged with "*#"
+      subscription.send(connection, "{0}OK.\n".format(tag))
+      subscription.start(connection)
+
+   else:
+      print ("Error, unknown request: {}".format(data))
+
+def handle_gateway_request(connection, data, tag):
+   '''
+   Answer one request on a gateway link. Each request names its house ("mse@GS."), and
+   so does the response. "*@GS." asks for every house in one response:
+   "*@mse@SU:....|cmu@SU:...."
+   '''
+   if "@" not in data:
+      print ("Error, request without a house id: {}".format(data))
+      return
+   unit, data = data.split("@", 1)
+
+   if unit == "*":
+      if data[:2] == "GS":
+         states = ["{0}@SU:{1}.".format(u, h.get_state()) for u, h in houses.items()]
+         subscription.send(connection, "{0}*@{1}\n".format(tag, "|".join(states)))
+         for h in houses.values(): h.update_simulation()
+      else:
+         print ("Error, unknown batch request: {}".format(data))
+      return
+
+   h = houses.get(unit)
+   if h is None:
+      print ("Error, unknown house: {}".format(unit))
+      subscription.send(connection, "{0}{1}@ERR.\n".format(tag, unit))
+      return
+
+   if data[:2] == "GS":
+      subscription.send(connection, "{0}{1}@SU:{2}.\n".format(tag, unit, requested_state(h, data)))
+   elif data[:2] == "SS":
+      h.set_state(data)
+      subscription.send(connection, "{0}{1}@OK.\n".format(tag, unit))
+   else:
+      # houses behind a gateway are polled, not subscribed
+      print ("Error, unknown request: {}".format(data))
+      subscription.send(connection, "{0}{1}@ERR.\n".format(tag, unit))
+   h.update_simulation()
+
 def main():
    '''
    Wait for incoming connections and run the simulation
@@ -241,7 +358,15 @@ def main():
    print('Starting House Simulator (Hub)')
    sys.stdout.flush()
 
+   # an optional third argument lists the houses of a gateway: "mse,cmu"
+   if len(sys.argv) > 3:
+      for i, unit in enumerate(sys.argv[3].split(",")):
+         houses[unit] = house if i == 0 else HouseState()
+      print('Gateway for houses {0}'.format(", ".join(houses.keys())))
+
    server = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+   # a restarted house must be able to listen again while old connections linger
+   server.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
    server_address = (sys.argv[1], int(sys.argv[2]))
    server.bind(server_address)
    server.listen(1)  # max backlog of connections
@@ -258,30 +383,27 @@ def main():
       user_thread.start()
      
       try:
+         pending = ""
          while True:
             data = connection.recv(1024).decode('ascii')
 
-            if data:
-               if data[:2] == "GS":
-                  su = "SU:{}.\n".format(house.get_state())
-                  connection.sendall(su.encode())
-
-               elif data[:2] == "SS":
-                  house.set_state(data)
-                  connection.sendall("OK.\n".encode())
-
-               else:
-                  print ("Error, unknown request: {}".format(data))
-
-            else: break
+            if not data: break
 
-            house.update_simulation()
+            # several (pipelined) requests may arrive in one read; each ends with '.'
+            pending += data
+            while "." in pending:
+               request, pending = pending.split(".", 1)
+               handle_request(connection, request + ".")
+               if not houses:
+                  house.update_simulation()
+                  subscription.push_if_changed()
 
       except Exception as e:
          print("Error: %s" % str(e))
          traceback.print_exc()
       finally:
          print("closing!")
+         subscription.stop()
          connection.close()
          user_thread.stop()
    return
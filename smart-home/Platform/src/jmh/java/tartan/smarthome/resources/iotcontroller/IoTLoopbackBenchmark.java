@@ -0,0 +1,56 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a poll and an update through {@link IoTConnectManager} against an in-process house, so
+ * the cost of the platform's side of an exchange shows up without a socket or simulator in the way
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IoTLoopbackBenchmark {
+
+    private IoTConnectManager connMgr;
+    private Map<String, Object> lightOn;
+    private Map<String, Object> lightOff;
+    private boolean on;
+
+    @Setup
+    public void setUp() {
+        IoTConnection connection = new IoTLoopbackTransport().createConnection("bench", 0);
+        connection.connect();
+        connMgr = new IoTConnectManager(connection);
+
+        lightOn = new Hashtable<>();
+        lightOn.put(IoTValues.LIGHT_STATE, true);
+        lightOff = new Hashtable<>();
+        lightOff.put(IoTValues.LIGHT_STATE, false);
+    }
+
+    @Benchmark
+    public Map<String, Object> poll() {
+        return connMgr.getState();
+    }
+
+    @Benchmark
+    public Map<String, Object> pollSecurity() {
+        return connMgr.getState(IoTValues.SECURITY_KEYS);
+    }
+
+    @Benchmark
+    public Boolean toggleLight() {
+        on = !on;
+        return connMgr.setState(on ? lightOn : lightOff);
+    }
+}
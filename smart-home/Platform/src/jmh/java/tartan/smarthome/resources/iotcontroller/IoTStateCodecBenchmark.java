@@ -0,0 +1,156 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the String based SU/SS handling the connection manager used to do with
+ * {@link IoTStateCodec} and the binary protocol of {@link IoTBinaryCodec}. Run with {@code ./gradlew jmh}; the gc profiler is enabled, so the
+ * {@code gc.alloc.rate.norm} column reports the bytes allocated per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IoTStateCodecBenchmark {
+
+    private static final String STATE_UPDATE =
+            "SU:TR=65;HR=90;DS=1;LS=1;PS=1;AS=0;AA=0;HES=0;CHS=0;HM=1;HUS=0;LKS=0;ID=0;NM=0.";
+
+    private ByteBuffer stateUpdateBytes;
+    private Map<String, Object> newState;
+
+    private IoTStateCodec codec;
+    private IoTState state;
+    private ByteBuffer frame;
+    private ByteBuffer binaryStateUpdate;
+
+    @Setup
+    public void setUp() {
+        stateUpdateBytes = ByteBuffer.wrap(STATE_UPDATE.getBytes(StandardCharsets.US_ASCII));
+        codec = new IoTStateCodec();
+        state = new IoTState();
+        frame = ByteBuffer.allocate(IoTStateCodec.MAX_FRAME);
+
+        codec.decodeStateUpdate(STATE_UPDATE, state);
+        binaryStateUpdate = ByteBuffer.allocate(IoTStateCodec.MAX_FRAME);
+        IoTBinaryCodec.encodeStateUpdate(state, binaryStateUpdate);
+        binaryStateUpdate.flip();
+
+        newState = new Hashtable<>();
+        newState.put(IoTValues.DOOR_STATE, false);
+        newState.put(IoTValues.LOCK_STATE, true);
+        newState.put(IoTValues.LIGHT_STATE, true);
+        newState.put(IoTValues.ALARM_STATE, true);
+        newState.put(IoTValues.ALARM_ACTIVE, false);
+        newState.put(IoTValues.HUMIDIFIER_STATE, false);
+        newState.put(IoTValues.HEATER_STATE, true);
+        newState.put(IoTValues.CHILLER_STATE, false);
+        newState.put(IoTValues.NIGHT_MODE, false);
+    }
+
+    @Benchmark
+    public Map<String, Object> legacyDecode() {
+        return legacyHandleStateUpdate(STATE_UPDATE);
+    }
+
+    @Benchmark
+    public boolean codecDecodeBytes() {
+        stateUpdateBytes.rewind();
+        return codec.decodeStateUpdate(stateUpdateBytes, state);
+    }
+
+    @Benchmark
+    public boolean codecDecodeText() {
+        return codec.decodeStateUpdate(STATE_UPDATE, state);
+    }
+
+    @Benchmark
+    public void legacyEncode(Blackhole bh) {
+        bh.consume(legacySetStateMessage(newState));
+    }
+
+    @Benchmark
+    public void codecEncode(Blackhole bh) {
+        frame.clear();
+        codec.encodeSetState(newState, frame);
+        bh.consume(frame);
+    }
+
+    @Benchmark
+    public boolean binaryDecode() {
+        binaryStateUpdate.rewind();
+        return IoTBinaryCodec.decodeStateUpdate(binaryStateUpdate, state);
+    }
+
+    @Benchmark
+    public void binaryEncode(Blackhole bh) {
+        frame.clear();
+        IoTBinaryCodec.encodeSetState(newState, frame);
+        bh.consume(frame);
+    }
+
+    /**
+     * The parser IoTConnectManager used before the codec
+     */
+    private static Map<String, Object> legacyHandleStateUpdate(String stateUpdateMsg) {
+        Hashtable<String, Object> state = new Hashtable<String, Object>();
+        String[] req = stateUpdateMsg.split(IoTValues.MSG_DELIM);
+        if (req.length != 2) {
+            return null;
+        }
+        String body = req[1];
+        if (String.valueOf(body.charAt(body.length() - 1)).equals(IoTValues.MSG_END)) {
+            body = body.substring(0, body.length() - 1);
+        }
+        StringTokenizer pt = new StringTokenizer(body, IoTValues.PARAM_DELIM);
+        while (pt.hasMoreTokens()) {
+            String param = pt.nextToken();
+            String data[] = param.split(IoTValues.PARAM_EQ);
+            Integer val = Integer.parseInt(data[1]);
+            if (data[0].equals(IoTValues.TEMP_READING) || data[0].equals(IoTValues.HUMIDITY_READING)) {
+                state.put(data[0], val);
+            } else if (data[0].equals(IoTValues.HVAC_MODE)) {
+                state.put(data[0], val == 1 ? "Heater" : "Chiller");
+            } else {
+                state.put(data[0], val == 1);
+            }
+        }
+        return state;
+    }
+
+    /**
+     * The set state message IoTConnectManager built before the codec
+     */
+    private static String legacySetStateMessage(Map<String, Object> state) {
+        StringBuffer newState = new StringBuffer();
+        Set<String> keys = state.keySet();
+        int count = 0;
+        for (String key : keys) {
+            Boolean value = (Boolean) state.get(key);
+            newState.append(key);
+            newState.append(IoTValues.PARAM_EQ);
+            newState.append(value ? "1" : "0");
+            count++;
+            if (count < keys.size()) {
+                newState.append(IoTValues.PARAM_DELIM);
+            }
+        }
+        StringBuffer msg
+                = new StringBuffer(IoTValues.SET_STATE + IoTValues.MSG_DELIM + newState.toString() + IoTValues.MSG_END);
+        return msg.toString();
+    }
+}
@@ -1,11 +1,14 @@
 package tartan.smarthome;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import io.dropwizard.Application;
 import io.dropwizard.auth.AuthDynamicFeature;
 import io.dropwizard.auth.AuthValueFactoryProvider;
 import io.dropwizard.auth.basic.BasicCredentialAuthFilter;
 import io.dropwizard.db.DataSourceFactory;
 import io.dropwizard.hibernate.HibernateBundle;
+import io.dropwizard.lifecycle.Managed;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 import io.dropwizard.views.ViewBundle;
@@ -13,7 +16,15 @@ import tartan.smarthome.auth.TartanAuthenticator;
 import tartan.smarthome.auth.TartanUser;
 import tartan.smarthome.core.TartanHomeData;
 import tartan.smarthome.db.HomeDAO;
+import tartan.smarthome.resources.TartanHomeService;
 import tartan.smarthome.resources.TartanResource;
+import tartan.smarthome.resources.iotcontroller.IoTBufferPool;
+import tartan.smarthome.resources.iotcontroller.IoTOverloadController;
+import tartan.smarthome.resources.iotcontroller.IoTPhasePlanner;
+import tartan.smarthome.resources.iotcontroller.IoTPriority;
+import tartan.smarthome.resources.iotcontroller.IoTScheduler;
+import tartan.smarthome.resources.iotcontroller.IoTShardPool;
+import tartan.smarthome.resources.iotcontroller.IoTSelectorEngine;
 
 /**
  * This is the driver for the program.
@@ -62,19 +73,209 @@ public class TartanHomeApplication extends Application<TartanHomeConfiguration>
      * Run the system.
      * @param configuration system settings
      * @param environment system environment
+     * @throws Exception if the I/O engine cannot be started
      */
     @Override
     public void run(final TartanHomeConfiguration configuration,
-                    final Environment environment) {
+                    final Environment environment) throws Exception {
         HomeDAO dao = new HomeDAO(hibernateBundle.getSessionFactory());
 
         TartanAuthenticator auth = new TartanAuthenticator();
         auth.setValidUsers(configuration);
 
+        // The engine must be running before the resource connects to the houses
+        IoTSelectorEngine ioEngine = null;
+        if (configuration.getIoThreads() != null && configuration.getIoThreads() > 0) {
+            final IoTSelectorEngine engine = new IoTSelectorEngine(configuration.getIoThreads());
+            engine.start();
+            environment.lifecycle().manage(new Managed() {
+                @Override
+                public void start() throws Exception { /* already running */ }
+
+                @Override
+                public void stop() throws Exception {
+                    engine.stop();
+                }
+            });
+            ioEngine = engine;
+        }
+
+        // house updates, historians and timers share a fixed pool of workers; the changes to each house
+        // run in order on the shard it is pinned to
+        final IoTScheduler scheduler = new IoTScheduler(configuration.getSchedulerThreads() != null
+                ? configuration.getSchedulerThreads() : IoTScheduler.DEFAULT_THREADS,
+                configuration.getHouseShards() != null && configuration.getHouseShards() > 0
+                ? configuration.getHouseShards() : IoTScheduler.DEFAULT_SHARDS);
+        scheduler.start();
+        if (configuration.getPhaseJitter() != null) {
+            scheduler.getPhases().setJitter(configuration.getPhaseJitter());
+        }
+        final IoTOverloadController overload = scheduler.getOverload();
+        overload.setLimits(
+                configuration.getOverloadMaxLag() != null
+                        ? configuration.getOverloadMaxLag() : IoTOverloadController.DEFAULT_MAX_LAG,
+                configuration.getOverloadMaxQueued() != null
+                        ? configuration.getOverloadMaxQueued() : IoTOverloadController.DEFAULT_MAX_QUEUED,
+                configuration.getOverloadMaxDbLatency() != null
+                        ? configuration.getOverloadMaxDbLatency() : IoTOverloadController.DEFAULT_MAX_DB_LATENCY);
+        environment.lifecycle().manage(new Managed() {
+            @Override
+            public void start() throws Exception { /* already running */ }
+
+            @Override
+            public void stop() throws Exception {
+                scheduler.stop();
+            }
+        });
+        environment.metrics().register(MetricRegistry.name(IoTScheduler.class, "queued"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return scheduler.getQueued();
+            }
+        });
+        environment.metrics().register(MetricRegistry.name(IoTScheduler.class, "active"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return scheduler.getActive();
+            }
+        });
+        environment.metrics().register(MetricRegistry.name(IoTScheduler.class, "lag"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return scheduler.getLastLag();
+            }
+        });
+        environment.metrics().register(MetricRegistry.name(IoTScheduler.class, "maxLag"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return scheduler.getMaxLag();
+            }
+        });
+        environment.metrics().register(MetricRegistry.name(IoTShardPool.class, "queued"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return scheduler.getShards().getQueued();
+            }
+        });
+        environment.metrics().register(MetricRegistry.name(IoTShardPool.class, "maxHouses"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return scheduler.getShards().getMaxHouses();
+            }
+        });
+        // how long each class of house work waits for its shard
+        for (final IoTPriority priority : IoTPriority.values()) {
+            String name = priority.name().toLowerCase();
+            environment.metrics().register(MetricRegistry.name(IoTShardPool.class, "wait", name, "mean"), new Gauge<Double>() {
+                @Override
+                public Double getValue() {
+                    return scheduler.getShards().getMeanWait(priority);
+                }
+            });
+            environment.metrics().register(MetricRegistry.name(IoTShardPool.class, "wait", name, "max"), new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return scheduler.getShards().getMaxWait(priority);
+                }
+            });
+        }
+
+        // what the platform has given up to keep up
+        environment.metrics().register(MetricRegistry.name(IoTOverloadController.class, "level"), new Gauge<String>() {
+            @Override
+            public String getValue() {
+                return overload.getLevel().name();
+            }
+        });
+        environment.metrics().register(MetricRegistry.name(IoTOverloadController.class, "dbLatency"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return overload.getDbLatency();
+            }
+        });
+        for (final IoTOverloadController.Action action : IoTOverloadController.Action.values()) {
+            environment.metrics().register(MetricRegistry.name(IoTOverloadController.class, "shed",
+                    action.name().toLowerCase()), new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return overload.getShed(action);
+                }
+            });
+        }
+
+        environment.metrics().register(MetricRegistry.name(IoTPhasePlanner.class, "skew"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return scheduler.getPhases().getSkew();
+            }
+        });
+        environment.metrics().register(MetricRegistry.name(IoTPhasePlanner.class, "members"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return scheduler.getPhases().getMembers();
+            }
+        });
+
+        // house sockets read and write through pooled direct buffers
+        final IoTBufferPool buffers = IoTBufferPool.shared();
+        environment.metrics().register(MetricRegistry.name(IoTBufferPool.class, "hits"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return buffers.getHits();
+            }
+        });
+        environment.metrics().register(MetricRegistry.name(IoTBufferPool.class, "misses"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return buffers.getMisses();
+            }
+        });
+
         final TartanResource resource = new TartanResource(configuration.getHouses(),
-                dao, Integer.parseInt(configuration.getHistoryTimer()));
+                dao, Integer.parseInt(configuration.getHistoryTimer()), ioEngine, scheduler,
+                configuration.getConnectParallelism() != null && configuration.getConnectParallelism() > 0
+                ? configuration.getConnectParallelism() : TartanResource.DEFAULT_CONNECT_PARALLELISM);
+
+        environment.lifecycle().manage(new Managed() {
+            @Override
+            public void start() throws Exception { /* already connecting */ }
+
+            @Override
+            public void stop() throws Exception {
+                resource.stop();
+            }
+        });
 
         environment.jersey().register(resource);
+        environment.metrics().register(MetricRegistry.name(TartanResource.class, "skippedEvaluations"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return resource.getSkippedEvaluations();
+            }
+        });
+        environment.metrics().register(MetricRegistry.name(TartanResource.class, "connecting"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return resource.getConnecting();
+            }
+        });
+        // how full each house's bulkhead is, and how many requests it turned away
+        for (final TartanHomeService service : resource.getHomeServices()) {
+            environment.metrics().register(MetricRegistry.name(TartanResource.class, "bulkhead", service.getName(),
+                    "inUse"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return service.getBulkheadInUse();
+                }
+            });
+            environment.metrics().register(MetricRegistry.name(TartanResource.class, "bulkhead", service.getName(),
+                    "rejected"), new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return service.getBulkheadRejections();
+                }
+            });
+        }
         environment.jersey().register(new AuthDynamicFeature(new BasicCredentialAuthFilter.Builder<TartanUser>()
                 .setAuthenticator(auth)
                 .buildAuthFilter()));
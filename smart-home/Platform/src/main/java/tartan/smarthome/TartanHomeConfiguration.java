@@ -4,6 +4,9 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import io.dropwizard.Configuration;
 import io.dropwizard.db.DataSourceFactory;
 import org.hibernate.validator.constraints.NotEmpty;
+import tartan.smarthome.resources.TartanResource;
+import tartan.smarthome.resources.iotcontroller.IoTOverloadController;
+import tartan.smarthome.resources.iotcontroller.IoTScheduler;
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
 import java.util.List;
@@ -23,6 +26,38 @@ public class TartanHomeConfiguration extends Configuration {
     @JsonProperty
     private String historyTimer;
 
+    // the number of selector threads that own the house sockets; 0 keeps a blocking socket per house
+    @JsonProperty
+    private Integer ioThreads = 0;
+
+    // the number of worker threads that run house updates, historians and timers for all houses
+    @JsonProperty
+    private Integer schedulerThreads = IoTScheduler.DEFAULT_THREADS;
+
+    // the number of threads that change house state; each house is pinned to one of them
+    @JsonProperty
+    private Integer houseShards = IoTScheduler.DEFAULT_SHARDS;
+
+    // the number of houses connected at the same time while the platform starts
+    @JsonProperty
+    private Integer connectParallelism = TartanResource.DEFAULT_CONNECT_PARALLELISM;
+
+    // how far, as a percentage of the gap between houses, each poll and historian entry is moved at
+    // random so the houses do not drift into step
+    @JsonProperty
+    private Integer phaseJitter = 0;
+
+    // the platform sheds work while scheduled tasks start more than this many ms late, more than
+    // this many house tasks wait, or historian writes take more than this many ms
+    @JsonProperty
+    private Long overloadMaxLag = IoTOverloadController.DEFAULT_MAX_LAG;
+
+    @JsonProperty
+    private Integer overloadMaxQueued = IoTOverloadController.DEFAULT_MAX_QUEUED;
+
+    @JsonProperty
+    private Long overloadMaxDbLatency = IoTOverloadController.DEFAULT_MAX_DB_LATENCY;
+
     @Valid
     @NotNull
     private DataSourceFactory database = new DataSourceFactory();
@@ -51,4 +86,44 @@ public class TartanHomeConfiguration extends Configuration {
     public String getHistoryTimer() {
         return historyTimer;
     }
+
+    @JsonProperty
+    public Integer getIoThreads() {
+        return ioThreads;
+    }
+
+    @JsonProperty
+    public Integer getSchedulerThreads() {
+        return schedulerThreads;
+    }
+
+    @JsonProperty
+    public Integer getHouseShards() {
+        return houseShards;
+    }
+
+    @JsonProperty
+    public Integer getConnectParallelism() {
+        return connectParallelism;
+    }
+
+    @JsonProperty
+    public Integer getPhaseJitter() {
+        return phaseJitter;
+    }
+
+    @JsonProperty
+    public Long getOverloadMaxLag() {
+        return overloadMaxLag;
+    }
+
+    @JsonProperty
+    public Integer getOverloadMaxQueued() {
+        return overloadMaxQueued;
+    }
+
+    @JsonProperty
+    public Long getOverloadMaxDbLatency() {
+        return overloadMaxDbLatency;
+    }
 }
@@ -53,6 +53,59 @@ public class TartanHomeSettings {
     @JsonProperty
     private String groupExperiment;
 
+    // optional: tag requests with sequence ids so several can be in flight (needs ioThreads)
+    @JsonProperty
+    private Boolean pipelining = false;
+
+    // optional: offer the compact binary protocol; houses that do not support it stay on text
+    @JsonProperty
+    private Boolean binaryProtocol = false;
+
+    // optional: ask the house to push updates on change instead of polling it (needs ioThreads)
+    @JsonProperty
+    private Boolean pushUpdates = false;
+
+    // optional: milliseconds to wait for the house to accept a connection
+    @JsonProperty
+    private Integer connectTimeout = 5000;
+
+    // optional: milliseconds to wait for the house to answer a request
+    @JsonProperty
+    private Integer readTimeout = 5000;
+
+    // optional: milliseconds during which rapid updates are merged into one; 0 applies each on its own
+    @JsonProperty
+    private Integer coalesceWindow = 0;
+
+    // optional: the most REST requests that may wait on this house at once; more are turned away
+    @JsonProperty
+    private Integer maxConcurrentRequests;
+
+    // optional: the id of this house behind a gateway. Houses with the same address and port and a
+    // unit share one connection (needs ioThreads)
+    @JsonProperty
+    private String unit;
+
+    // optional: how the house is reached: tcp (the default), unix for a Unix domain socket whose
+    // path is the address, or loopback for a simulated house in this process
+    @JsonProperty
+    private String transport;
+
+    // optional: the fastest and slowest poll periods in ms. Occupied, alarmed or changing houses are
+    // polled at the fastest rate; quiet vacant houses back off towards the slowest
+    @JsonProperty
+    private Integer pollMinPeriod;
+
+    @JsonProperty
+    private Integer pollMaxPeriod;
+
+    // optional: the most entries and bytes of event log kept for the house; older entries are dropped
+    @JsonProperty
+    private Integer eventLogEntries;
+
+    @JsonProperty
+    private Integer eventLogBytes;
+
     public String getTargetTemp() {
         return targetTemp;
     }
@@ -134,4 +187,108 @@ public class TartanHomeSettings {
     public void setGroupExperiment(String groupExperiment) {
         this.groupExperiment = groupExperiment;
     }
+
+    public Boolean getPipelining() {
+        return pipelining;
+    }
+
+    public void setPipelining(Boolean pipelining) {
+        this.pipelining = pipelining;
+    }
+
+    public Boolean getBinaryProtocol() {
+        return binaryProtocol;
+    }
+
+    public void setBinaryProtocol(Boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+    }
+
+    public Boolean getPushUpdates() {
+        return pushUpdates;
+    }
+
+    public void setPushUpdates(Boolean pushUpdates) {
+        this.pushUpdates = pushUpdates;
+    }
+
+    public Integer getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(Integer connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public Integer getReadTimeout() {
+        return readTimeout;
+    }
+
+    public void setReadTimeout(Integer readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public Integer getCoalesceWindow() {
+        return coalesceWindow;
+    }
+
+    public void setCoalesceWindow(Integer coalesceWindow) {
+        this.coalesceWindow = coalesceWindow;
+    }
+
+    public Integer getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    public void setMaxConcurrentRequests(Integer maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    public void setUnit(String unit) {
+        this.unit = unit;
+    }
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    public Integer getPollMinPeriod() {
+        return pollMinPeriod;
+    }
+
+    public void setPollMinPeriod(Integer pollMinPeriod) {
+        this.pollMinPeriod = pollMinPeriod;
+    }
+
+    public Integer getPollMaxPeriod() {
+        return pollMaxPeriod;
+    }
+
+    public void setPollMaxPeriod(Integer pollMaxPeriod) {
+        this.pollMaxPeriod = pollMaxPeriod;
+    }
+
+    public Integer getEventLogEntries() {
+        return eventLogEntries;
+    }
+
+    public void setEventLogEntries(Integer eventLogEntries) {
+        this.eventLogEntries = eventLogEntries;
+    }
+
+    public Integer getEventLogBytes() {
+        return eventLogBytes;
+    }
+
+    public void setEventLogBytes(Integer eventLogBytes) {
+        this.eventLogBytes = eventLogBytes;
+    }
 }
@@ -99,6 +99,10 @@ public class TartanHome {
     @JsonProperty
     private Long minutesLightsOn;
 
+    // the state of the link to the house: CONNECTING, UP, SUSPECT, DOWN or CLOSED
+    @JsonProperty
+    private String linkState;
+
   
     /**
      * Empty constructor needed by Jackson deserialization
@@ -437,4 +441,12 @@ public class TartanHome {
     public void setMinutesLightsOn(Long minutesLightsOn) {
         this.minutesLightsOn = minutesLightsOn;
     }
+
+    public String getLinkState() {
+        return linkState;
+    }
+
+    public void setLinkState(String linkState) {
+        this.linkState = linkState;
+    }
 }
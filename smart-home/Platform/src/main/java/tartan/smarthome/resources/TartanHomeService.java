@@ -1,7 +1,22 @@
 package tartan.smarthome.resources;
 
 
+import tartan.smarthome.resources.iotcontroller.IoTConnection;
 import tartan.smarthome.resources.iotcontroller.IoTControlManager;
+import tartan.smarthome.resources.iotcontroller.IoTEventLog;
+import tartan.smarthome.resources.iotcontroller.IoTGateway;
+import tartan.smarthome.resources.iotcontroller.IoTLinkState;
+import tartan.smarthome.resources.iotcontroller.IoTLoopbackTransport;
+import tartan.smarthome.resources.iotcontroller.IoTOverloadController;
+import tartan.smarthome.resources.iotcontroller.IoTPhasePlanner;
+import tartan.smarthome.resources.iotcontroller.IoTPriority;
+import tartan.smarthome.resources.iotcontroller.IoTScheduler;
+import tartan.smarthome.resources.iotcontroller.IoTSelectorEngine;
+import tartan.smarthome.resources.iotcontroller.IoTStateSnapshot;
+import tartan.smarthome.resources.iotcontroller.IoTTcpTransport;
+import tartan.smarthome.resources.iotcontroller.IoTTimeoutException;
+import tartan.smarthome.resources.iotcontroller.IoTTransport;
+import tartan.smarthome.resources.iotcontroller.IoTUnixTransport;
 import tartan.smarthome.resources.iotcontroller.IoTValues;
 import io.dropwizard.hibernate.UnitOfWork;
 import org.slf4j.Logger;
@@ -14,9 +29,18 @@ import tartan.smarthome.db.HomeDAO;
 import tartan.smarthome.utils.TartanTimeUtils;
 
 import java.time.LocalTime;
+import java.util.Collections;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.time.temporal.ChronoUnit.MILLIS;
 
@@ -43,6 +67,38 @@ public class TartanHomeService {
     private String password;
     private String nightStartTime;
     private String nightEndTime;
+    private Boolean pipelining;
+
+    // Offer the binary protocol when connecting
+    private Boolean binaryProtocol;
+
+    // Ask the house to push its updates
+    private Boolean pushUpdates;
+
+    // Deadlines for the house, in milliseconds
+    private Integer connectTimeout;
+    private Integer readTimeout;
+
+    // Updates that arrive within this many milliseconds of the first are applied together; 0 applies
+    // each one on its own
+    private int coalesceWindow;
+
+    // The batch collecting updates during the current window, or null when no window is open
+    private UpdateBatch openBatch;
+    private final Object batchLock = new Object();
+
+    // Updates that were folded into another caller's batch
+    private final AtomicLong coalescedUpdates = new AtomicLong();
+
+    /** the default number of REST requests that may wait on one house at once */
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 8;
+
+    // Bounds the request threads that wait on this house, so a slow house cannot hold them all
+    private int maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+    private Semaphore bulkhead = new Semaphore(DEFAULT_MAX_CONCURRENT_REQUESTS);
+
+    // Requests turned away because the bulkhead was full
+    private final AtomicLong bulkheadRejections = new AtomicLong();
 
     // A/B Testing Parameters
     private String groupExperiment;
@@ -53,18 +109,53 @@ public class TartanHomeService {
 
     // status parameters
     private HomeDAO homeDAO;
+    private IoTSelectorEngine ioEngine;
+
+    // The gateway this house sits behind and its id there, or null for a house of its own
+    private IoTGateway gateway;
+    private String unit;
+
+    // How the house is reached, one of the IoTTransport names
+    private String transport;
     private boolean authenticated;
 
     // historian parameters
     private Boolean logHistory;
     private int historyTimer = 60000;
+    private ScheduledFuture<?> historian;
+    private IoTPhasePlanner.Phase historianPhase;
+    private final Object historianLock = new Object();
+
+    // Runs the historian and the house update cycles
+    private IoTScheduler scheduler;
 
     /**
      * Create a new Tartan Home Service
      * @param dao handle to a database
      */
     public TartanHomeService(HomeDAO dao) {
+        this(dao, null);
+    }
+
+    /**
+     * Create a new Tartan Home Service that shares a non-blocking I/O engine with other houses
+     * @param dao handle to a database
+     * @param ioEngine the engine that owns the house socket, or null for a dedicated blocking socket
+     */
+    public TartanHomeService(HomeDAO dao, IoTSelectorEngine ioEngine) {
+        this(dao, ioEngine, IoTScheduler.shared());
+    }
+
+    /**
+     * Create a new Tartan Home Service that shares an I/O engine and a scheduler with other houses
+     * @param dao handle to a database
+     * @param ioEngine the engine that owns the house socket, or null for a dedicated blocking socket
+     * @param scheduler runs the house updates and historian
+     */
+    public TartanHomeService(HomeDAO dao, IoTSelectorEngine ioEngine, IoTScheduler scheduler) {
         this.homeDAO = dao;
+        this.ioEngine = ioEngine;
+        this.scheduler = scheduler;
     }
 
     /**
@@ -79,6 +170,30 @@ public class TartanHomeService {
         this.name = settings.getName();
         this.address = settings.getAddress();
         this.port = settings.getPort();
+        this.unit = settings.getUnit();
+        this.transport = settings.getTransport() != null ? settings.getTransport() : IoTTransport.TCP;
+        if (!this.transport.equals(IoTTransport.TCP) && !this.transport.equals(IoTTransport.UNIX)
+                && !this.transport.equals(IoTTransport.LOOPBACK)) {
+            LOGGER.warn("House " + this.name + " has unknown transport " + this.transport + ", using tcp");
+            this.transport = IoTTransport.TCP;
+        }
+        this.pipelining = Boolean.TRUE.equals(settings.getPipelining());
+        this.binaryProtocol = Boolean.TRUE.equals(settings.getBinaryProtocol());
+        this.pushUpdates = Boolean.TRUE.equals(settings.getPushUpdates());
+        this.connectTimeout = settings.getConnectTimeout() != null
+                ? settings.getConnectTimeout() : IoTConnection.DEFAULT_CONNECT_TIMEOUT;
+        this.readTimeout = settings.getReadTimeout() != null
+                ? settings.getReadTimeout() : IoTConnection.DEFAULT_READ_TIMEOUT;
+        this.coalesceWindow = settings.getCoalesceWindow() != null ? settings.getCoalesceWindow() : 0;
+        if (settings.getMaxConcurrentRequests() != null) {
+            if (settings.getMaxConcurrentRequests() > 0) {
+                this.maxConcurrentRequests = settings.getMaxConcurrentRequests();
+                this.bulkhead = new Semaphore(this.maxConcurrentRequests);
+            } else {
+                LOGGER.warn("House " + settings.getName() + " has an invalid request limit, allowing "
+                        + DEFAULT_MAX_CONCURRENT_REQUESTS);
+            }
+        }
         this.authenticated = false;
 
         // AB testing - should not be part of DB
@@ -100,6 +215,24 @@ public class TartanHomeService {
 
         // Create and initialize the controller for this house
         this.controller = new IoTControlManager(user, password, new StaticTartanStateEvaluator());
+        this.controller.setScheduler(scheduler);
+
+        long pollMin = settings.getPollMinPeriod() != null ? settings.getPollMinPeriod() : IoTControlManager.POLL_PERIOD;
+        long pollMax = settings.getPollMaxPeriod() != null ? settings.getPollMaxPeriod() : Math.max(pollMin, IoTControlManager.POLL_PERIOD);
+        if (pollMin > 0 && pollMax >= pollMin) {
+            this.controller.setPollPeriods(pollMin, pollMax);
+        } else {
+            LOGGER.warn("House " + this.name + " has invalid poll periods " + pollMin + "-" + pollMax + ", polling every "
+                    + IoTControlManager.POLL_PERIOD + " ms");
+        }
+
+        int logEntries = settings.getEventLogEntries() != null ? settings.getEventLogEntries() : IoTEventLog.DEFAULT_MAX_ENTRIES;
+        int logBytes = settings.getEventLogBytes() != null ? settings.getEventLogBytes() : IoTEventLog.DEFAULT_MAX_BYTES;
+        if (logEntries > 0 && logBytes > 0) {
+            this.controller.setEventLogLimits(logEntries, logBytes);
+        } else {
+            LOGGER.warn("House " + this.name + " has invalid event log limits, keeping the defaults");
+        }
 
 
         Map<String, Object> userSettings = new Hashtable<String, Object>();
@@ -109,6 +242,7 @@ public class TartanHomeService {
         userSettings.put(IoTValues.NIGHT_START_TIME, TartanTimeUtils.localTimeFromString(this.nightStartTime));
         userSettings.put(IoTValues.NIGHT_END_TIME, TartanTimeUtils.localTimeFromString(this.nightEndTime));
         controller.updateSettings(userSettings);
+        controller.setPushRequested(this.pushUpdates);
 
         LOGGER.info("House " + this.name + " configured");
     }
@@ -117,34 +251,69 @@ public class TartanHomeService {
      * Stop logging history
      */
     public void stopHistorian() {
-        this.logHistory = false;
+        synchronized (historianLock) {
+            this.logHistory = false;
+            if (historian != null) {
+                historian.cancel(false);
+                historian = null;
+            }
+            if (historianPhase != null) {
+                historianPhase.leave();
+                historianPhase = null;
+            }
+        }
     }
 
     /**
-     * Start a thread to log house history on a delay
+     * Log house history on a delay, on the shared scheduler. Each house logs at its own phase of the
+     * delay, so the houses do not all write to the database at once
      */
     public void startHistorian() {
+        synchronized (historianLock) {
+            this.logHistory = true;
+            if (historianPhase != null) {
+                return;
+            }
+            historianPhase = scheduler.getPhases().join();
+            historian = scheduler.schedule(historianTask, historianPhase.align(historyTimer) % historyTimer);
+        }
+    }
 
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                while (logHistory) {
-                    try {
-                        TartanHome state = getState();
-                        if (state != null) {
-                            TartanHomeData home = new TartanHomeData(state);
-                            LOGGER.info("Logging " + name + "@" + address + " state");
-                            logHistory(home);
-                        }
-
-                        Thread.sleep(historyTimer);
-                    } catch (Exception x) {
-                        LOGGER.error("Failed to save " + name + "@" + address + " state");
-                    }
+    /**
+     * Log the state once and schedule the next entry
+     */
+    private final Runnable historianTask = new Runnable() {
+        @Override
+        public void run() {
+            IoTPhasePlanner.Phase phase;
+            synchronized (historianLock) {
+                phase = historianPhase;
+                if (phase == null || !logHistory) {
+                    return;
                 }
             }
-        }).start();
-    }
+            phase.ran(historyTimer);
+            IoTOverloadController overload = scheduler.getOverload();
+            try {
+                // when the platform is behind, entries are sampled and then skipped
+                TartanHome state = overload.admitHistory() ? getState() : null;
+                if (state != null) {
+                    TartanHomeData home = new TartanHomeData(state);
+                    LOGGER.info("Logging " + name + "@" + address + " state");
+                    long start = System.currentTimeMillis();
+                    logHistory(home);
+                    overload.recordDbWrite(System.currentTimeMillis() - start);
+                }
+            } catch (Exception x) {
+                LOGGER.error("Failed to save " + name + "@" + address + " state");
+            }
+            synchronized (historianLock) {
+                if (historianPhase == phase) {
+                    historian = scheduler.schedule(this, phase.align(historyTimer));
+                }
+            }
+        }
+    };
 
     /**
      * Save the current state of the house
@@ -176,6 +345,30 @@ public class TartanHomeService {
         return address;
     }
 
+    /**
+     * Get the house port
+     * @return the port
+     */
+    public Integer getPort() {
+        return port;
+    }
+
+    /**
+     * Get the id of this house behind a gateway
+     * @return the house id, or null if the house has a connection of its own
+     */
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * Reach this house through a gateway it shares with other houses. Call before connecting
+     * @param gateway the gateway
+     */
+    public void setGateway(IoTGateway gateway) {
+        this.gateway = gateway;
+    }
+
     /**
      *  Get the house connected state
      * @return true if connected; false otherwise
@@ -184,6 +377,21 @@ public class TartanHomeService {
         return controller.isConnected();
     }
 
+    /**
+     * Show the house as connecting until the first attempt to connect is made
+     */
+    public void connectPending() {
+        controller.connectPending();
+    }
+
+    /**
+     * Get the state of the link to the house
+     * @return the link state
+     */
+    public IoTLinkState getLinkState() {
+        return controller.getLinkState();
+    }
+
     /**
      * Convert humidifier state
      * @param tartanHome the home
@@ -346,32 +554,209 @@ public class TartanHomeService {
 
 
     /**
-     * Set the house state in the hardware
+     * Set the house state in the hardware. Updates that arrive within the coalescing window are
+     * merged, later values winning, and applied with one evaluation and one set state request. The
+     * scheduler closes the window; every caller waits until the merged update has been applied
      * @param h the new state
      * @return true
+     * @throws IoTTimeoutException if the house does not answer in time, or the wait is interrupted
      */
     public Boolean setState(TartanHome h) {
-        synchronized (controller) {
-                        
-            Map<String, Object> userSettings = new Hashtable<String, Object>();
-            if (h.getAlarmDelay()!=null) {
-                this.alarmDelay = h.getAlarmDelay();
-                userSettings.put(IoTValues.ALARM_DELAY, Integer.parseInt(this.alarmDelay)); 
 
+        Map<String, Object> userSettings = new Hashtable<String, Object>();
+        if (h.getAlarmDelay()!=null) {
+            this.alarmDelay = h.getAlarmDelay();
+            userSettings.put(IoTValues.ALARM_DELAY, Integer.parseInt(this.alarmDelay)); 
+
+        }
+        if (h.getTargetTemp()!=null) {
+            this.targetTemp = h.getTargetTemp();
+            userSettings.put(IoTValues.TARGET_TEMP, Integer.parseInt(this.targetTemp)); 
+        }
+        Map<String, Object> state = toIotState(h);
+
+        if (this.coalesceWindow <= 0) {
+            applyUpdate(userSettings, state);
+            return true;
+        }
+
+        UpdateBatch batch;
+        synchronized (batchLock) {
+            if (openBatch == null) {
+                // the first update opens the window; the scheduler closes it and applies the batch
+                openBatch = new UpdateBatch();
+                try {
+                    scheduler.schedule(flushBatch, this.coalesceWindow);
+                } catch (RuntimeException e) {
+                    openBatch = null;
+                    throw e;
+                }
+            } else {
+                coalescedUpdates.incrementAndGet();
             }
-            if (h.getTargetTemp()!=null) {
-                this.targetTemp = h.getTargetTemp();
-                userSettings.put(IoTValues.TARGET_TEMP, Integer.parseInt(this.targetTemp)); 
-            }
-            controller.updateSettings(userSettings);  
-            controller.processStateUpdate(toIotState(h));
+            batch = openBatch;
+            batch.userSettings.putAll(userSettings);
+            batch.state.putAll(state);
         }
+        awaitBatch(batch);
         return true;
     }
 
+    /**
+     * Wait for a batch to be applied. The batch may wait out its window, a turn on the house's shard
+     * and the exchange with the house
+     * @param batch the batch
+     * @throws IoTTimeoutException if the batch is not applied in time, or the wait is interrupted
+     */
+    private void awaitBatch(UpdateBatch batch) {
+        try {
+            batch.done.get(this.coalesceWindow + 2L * this.readTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException te) {
+            throw new IoTTimeoutException("The house did not apply the update in time");
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IoTTimeoutException("Interrupted while the update was applied");
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            throw new IllegalStateException("The update failed", ee.getCause());
+        }
+    }
+
+    /**
+     * Closes the open window and queues its batch on the house's shard. Runs on the scheduler, so no
+     * request thread waits out the window
+     */
+    private final Runnable flushBatch = new Runnable() {
+        @Override
+        public void run() {
+            final UpdateBatch batch;
+            synchronized (batchLock) {
+                batch = openBatch;
+                openBatch = null;
+            }
+            if (batch == null) {
+                return;
+            }
+            final long queued = System.currentTimeMillis();
+            controller.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // like any other update, one that cannot start before the read deadline is dropped
+                        if (System.currentTimeMillis() - queued > readTimeout) {
+                            throw new IoTTimeoutException("The house is busy");
+                        }
+                        controller.updateSettings(batch.userSettings);
+                        controller.processStateUpdate(batch.state);
+                        batch.done.complete(null);
+                    } catch (RuntimeException e) {
+                        batch.done.completeExceptionally(e);
+                    } finally {
+                        // whatever went wrong, do not leave the callers waiting
+                        if (!batch.done.isDone()) {
+                            batch.done.completeExceptionally(new IllegalStateException("The update was not applied"));
+                        }
+                    }
+                }
+            }, touchesAlarm(batch.state) ? IoTPriority.SECURITY : IoTPriority.USER);
+        }
+    };
+
+    /**
+     * Apply user settings and a state change to the house. The update is queued on the house's shard
+     * ahead of routine polls; arming, disarming or silencing the alarm goes ahead of other user
+     * updates too. One that cannot start before the read deadline times out
+     * @param userSettings the changed settings
+     * @param state the requested state
+     * @throws IoTTimeoutException if the house is busy or does not answer in time
+     */
+    private void applyUpdate(final Map<String, Object> userSettings, final Map<String, Object> state) {
+        controller.call(new Callable<Void>() {
+            @Override
+            public Void call() {
+                controller.updateSettings(userSettings);
+                controller.processStateUpdate(state);
+                return null;
+            }
+        }, this.readTimeout, touchesAlarm(state) ? IoTPriority.SECURITY : IoTPriority.USER);
+    }
+
+    /**
+     * Does a state change arm, disarm or silence the alarm?
+     * @param state the requested state
+     * @return true if it carries a passcode or sets the alarm
+     */
+    private static boolean touchesAlarm(Map<String, Object> state) {
+        return state.containsKey(IoTValues.GIVEN_PASSCODE) || state.containsKey(IoTValues.ALARM_STATE)
+                || state.containsKey(IoTValues.ALARM_ACTIVE);
+    }
+
+    /**
+     * Get the number of update cycles that found nothing new to evaluate
+     * @return the count
+     */
+    public long getSkippedEvaluations() {
+        return controller.getSkippedEvaluations();
+    }
+
+    /**
+     * Take a place in the house's bulkhead before doing request work that may wait on the house.
+     * Does not wait: when every place is taken the request should be turned away
+     * @return true if a place was taken; release it with {@link #leaveBulkhead()}
+     */
+    public boolean enterBulkhead() {
+        if (bulkhead.tryAcquire()) {
+            return true;
+        }
+        bulkheadRejections.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Give back a place taken with {@link #enterBulkhead()}
+     */
+    public void leaveBulkhead() {
+        bulkhead.release();
+    }
+
+    /**
+     * Get the number of requests currently inside the bulkhead
+     * @return the count
+     */
+    public int getBulkheadInUse() {
+        return maxConcurrentRequests - bulkhead.availablePermits();
+    }
+
+    /**
+     * Get the number of requests the bulkhead lets in at once
+     * @return the count
+     */
+    public int getBulkheadSize() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * Get the number of requests turned away because the bulkhead was full
+     * @return the count
+     */
+    public long getBulkheadRejections() {
+        return bulkheadRejections.get();
+    }
+
+    /**
+     * Get the number of updates that were folded into another caller's batch
+     * @return the count
+     */
+    public long getCoalescedUpdates() {
+        return coalescedUpdates.get();
+    }
+
     /**
      * Fetch the current state of the house
      * @return the current state
+     * @throws IoTTimeoutException if the house has not reported yet and does not answer in time
      */
     public TartanHome getState() {
 
@@ -389,15 +774,20 @@ public class TartanHomeService {
 
 
 
-        tartanHome.setEventLog(controller.getLogMessages());
-        tartanHome.setAuthenticated(String.valueOf(this.authenticated));
+        // when the platform is behind, reads make do with the last known state
+        boolean fullRead = scheduler.getOverload().admitFullRead();
 
-        Map<String, Object> state = null;
-        synchronized (controller) {
-            state = controller.getCurrentState();            
-//            for (String l : controller.getLogMessages()) {
-//                LOGGER.info(l);
-//            }
+        tartanHome.setEventLog(fullRead ? controller.getLogMessages() : Collections.<String>emptyList());
+        tartanHome.setAuthenticated(String.valueOf(this.authenticated));
+        tartanHome.setLinkState(controller.getLinkState().name());
+
+        // the latest snapshot; reading it does not wait for updates or the poll
+        Map<String, Object> state;
+        if (fullRead) {
+            state = controller.getCurrentState();
+        } else {
+            IoTStateSnapshot snapshot = controller.getSnapshot();
+            state = controller.isConnected() && !snapshot.isEmpty() ? snapshot.getState() : null;
         }
         if (state == null) {
             LOGGER.info("zUsing default state");
@@ -655,9 +1045,41 @@ public class TartanHomeService {
      */
     public void connect() throws TartanHomeConnectException {
         if (controller.isConnected() == false) {
-            if (!controller.connectToHouse(this.address, this.port, this.user, this.password)) {
+            IoTConnection conn;
+            if (gateway != null) {
+                conn = gateway.connectionFor(this.unit);
+            } else if (this.transport.equals(IoTTransport.LOOPBACK)) {
+                conn = IoTLoopbackTransport.shared().createConnection(this.address, this.port);
+            } else if (this.transport.equals(IoTTransport.UNIX)) {
+                conn = new IoTUnixTransport().createConnection(this.address, this.port);
+            } else if (ioEngine != null) {
+                conn = new IoTTcpTransport(ioEngine, this.pipelining).createConnection(this.address, this.port);
+            } else {
+                if (this.pipelining) {
+                    LOGGER.warn("House " + this.name + " requests pipelining, which needs ioThreads > 0");
+                }
+                if (this.pushUpdates) {
+                    LOGGER.warn("House " + this.name + " requests push updates, which need ioThreads > 0");
+                }
+                if (this.unit != null) {
+                    LOGGER.warn("House " + this.name + " is behind a gateway, which needs ioThreads > 0");
+                }
+                conn = new IoTTcpTransport().createConnection(this.address, this.port);
+            }
+            conn.setBinaryOffered(this.binaryProtocol);
+            conn.setTimeouts(this.connectTimeout, this.readTimeout);
+            if (!controller.connectToHouse(conn, this.user, this.password)) {
                 throw new TartanHomeConnectException();
             }
         }
     }
+
+    /**
+     * The updates collected during one coalescing window
+     */
+    private static class UpdateBatch {
+        final Map<String, Object> userSettings = new Hashtable<>();
+        final Map<String, Object> state = new Hashtable<>();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+    }
 }
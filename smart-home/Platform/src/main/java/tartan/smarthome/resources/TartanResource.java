@@ -9,13 +9,27 @@ import tartan.smarthome.TartanHomeSettings;
 import tartan.smarthome.auth.TartanUser;
 import tartan.smarthome.core.TartanHome;
 import tartan.smarthome.db.HomeDAO;
+import tartan.smarthome.resources.iotcontroller.IoTBackoff;
+import tartan.smarthome.resources.iotcontroller.IoTGateway;
+import tartan.smarthome.resources.iotcontroller.IoTScheduler;
+import tartan.smarthome.resources.iotcontroller.IoTSelectorEngine;
+import tartan.smarthome.resources.iotcontroller.IoTTimeoutException;
 import tartan.smarthome.views.SmartHomeView;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The resource class implements the HTTP handlers via Jersey.
@@ -27,9 +41,25 @@ public class TartanResource {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(TartanResource.class);
 
+    // JAX-RS 2.0 has no constant for 429 Too Many Requests
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    /** the default number of houses connected at the same time */
+    public static final int DEFAULT_CONNECT_PARALLELISM = 16;
+
+    /** the shortest and longest nominal wait before a house that failed to connect is tried again, in ms */
+    private static final long RETRY_BASE_DELAY = 1000;
+    private static final long RETRY_MAX_DELAY = 60000;
+
     // There is one service per home
     private ArrayList<TartanHomeService> services;
 
+    // Makes the connection attempts, a bounded number at a time
+    private ThreadPoolExecutor connector;
+
+    // Waits out the delay before a failed house is tried again
+    private IoTScheduler scheduler;
+
     /**
      * Create and connect to a list of houses
      * @param houses the settings for each hose
@@ -37,26 +67,162 @@ public class TartanResource {
      * @param historyTimer how often to log history
      */
     public TartanResource(List<TartanHomeSettings> houses, HomeDAO homeDAO, Integer historyTimer) {
+        this(houses, homeDAO, historyTimer, null);
+    }
+
+    /**
+     * Create and connect to a list of houses whose sockets are owned by a shared I/O engine
+     * @param houses the settings for each hose
+     * @param homeDAO the historian
+     * @param historyTimer how often to log history
+     * @param ioEngine the non-blocking I/O engine, or null to use a blocking socket per house
+     */
+    public TartanResource(List<TartanHomeSettings> houses, HomeDAO homeDAO, Integer historyTimer,
+                          IoTSelectorEngine ioEngine) {
+        this(houses, homeDAO, historyTimer, ioEngine, IoTScheduler.shared());
+    }
+
+    /**
+     * Create and connect to a list of houses that share an I/O engine and a scheduler
+     * @param houses the settings for each hose
+     * @param homeDAO the historian
+     * @param historyTimer how often to log history
+     * @param ioEngine the non-blocking I/O engine, or null to use a blocking socket per house
+     * @param scheduler runs the house updates and historians
+     */
+    public TartanResource(List<TartanHomeSettings> houses, HomeDAO homeDAO, Integer historyTimer,
+                          IoTSelectorEngine ioEngine, IoTScheduler scheduler) {
+        this(houses, homeDAO, historyTimer, ioEngine, scheduler, DEFAULT_CONNECT_PARALLELISM);
+    }
+
+    /**
+     * Create a list of houses and connect to them in the background. Every house is available at
+     * once, as CONNECTING; a few houses are connected at a time, each attempt bounded by the house's
+     * connect and read timeouts. A house that cannot be reached is tried again, further and further
+     * apart, until it answers, or until {@link #stop()}
+     * @param houses the settings for each hose
+     * @param homeDAO the historian
+     * @param historyTimer how often to log history
+     * @param ioEngine the non-blocking I/O engine, or null to use a blocking socket per house
+     * @param scheduler runs the house updates and historians
+     * @param connectParallelism the most houses connected at the same time
+     */
+    public TartanResource(List<TartanHomeSettings> houses, HomeDAO homeDAO, Integer historyTimer,
+                          IoTSelectorEngine ioEngine, IoTScheduler scheduler, int connectParallelism) {
 
         this.services = new ArrayList<>(houses.size());
+        this.scheduler = scheduler;
+
+        final AtomicInteger count = new AtomicInteger();
+        this.connector = new ThreadPoolExecutor(connectParallelism, connectParallelism, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "house-connect-" + count.getAndIncrement());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        // the threads are only needed while houses are coming up
+        this.connector.allowCoreThreadTimeOut(true);
+
+        // houses behind the same gateway share its connection
+        Map<String, IoTGateway> gateways = new HashMap<>();
         for (TartanHomeSettings homeSettings : houses) {
-            TartanHomeService service = new TartanHomeService(homeDAO);
+            TartanHomeService service = new TartanHomeService(homeDAO, ioEngine, scheduler);
             service.initializeSettings(homeSettings, historyTimer);
 
+            if (service.getUnit() != null && ioEngine != null) {
+                String hub = service.getAddress() + ":" + service.getPort();
+                IoTGateway gateway = gateways.get(hub);
+                if (gateway == null) {
+                    gateway = new IoTGateway(service.getAddress(), service.getPort(), ioEngine);
+                    gateways.put(hub, gateway);
+                }
+                service.setGateway(gateway);
+            }
+
+            this.services.add(service);
             if (!service.isConnected()) {
-                try {
+                service.connectPending();
+                connect(service, new IoTBackoff(RETRY_BASE_DELAY, RETRY_MAX_DELAY));
+            }
+        }
+    }
+
+    /**
+     * Connect to a house in the background and start its historian; try again later if it fails
+     * @param service the house
+     * @param backoff how long to wait between attempts
+     */
+    private void connect(final TartanHomeService service, final IoTBackoff backoff) {
+        try {
+            connector.execute(attempt(service, backoff));
+        } catch (RejectedExecutionException stopped) {
+            // the platform is shutting down
+        }
+    }
 
+    /**
+     * Make one attempt to connect to a house
+     * @param service the house
+     * @param backoff how long to wait between attempts
+     * @return the attempt
+     */
+    private Runnable attempt(final TartanHomeService service, final IoTBackoff backoff) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (connector.isShutdown()) {
+                    return;
+                }
+                try {
                     service.connect();
-                    this.services.add(service);
                     LOGGER.info("Connected to house " + service.getName() + " @ " + service.getAddress());
-
+                    startHistorian(service);
+                    return;
                 } catch (TartanHomeConnectException thce) {
-                    LOGGER.error("Could not connect to house " + service.getName() + " @ " + service.getAddress());
+                    // tried again below
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Connecting to house " + service.getName() + " failed: " + e.getMessage());
                 }
 
-                startHistorian(service);
+                final long delay = backoff.nextDelay();
+                LOGGER.warn("Could not reach house " + service.getName() + " @ " + service.getAddress()
+                        + ", trying again in " + delay + " ms");
+                try {
+                    scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            connect(service, backoff);
+                        }
+                    }, delay);
+                } catch (IllegalStateException stopped) {
+                    // the platform is shutting down
+                }
+            }
+        };
+    }
+
+    /**
+     * Stop connecting to houses. An attempt in progress finishes; no more are made
+     */
+    public void stop() {
+        connector.shutdown();
+    }
+
+    /**
+     * Get the number of houses that are not connected: still coming up, or lost and reconnecting
+     * @return the count
+     */
+    public int getConnecting() {
+        int connecting = 0;
+        for (TartanHomeService h : services) {
+            if (!h.isConnected()) {
+                connecting++;
             }
         }
+        return connecting;
     }
 
     /**
@@ -69,6 +235,26 @@ public class TartanResource {
         }
     }
 
+    /**
+     * Get the number of update cycles, over all houses, that found nothing new to evaluate
+     * @return the count
+     */
+    public long getSkippedEvaluations() {
+        long skipped = 0;
+        for (TartanHomeService h : services) {
+            skipped += h.getSkippedEvaluations();
+        }
+        return skipped;
+    }
+
+    /**
+     * Get the services of the houses
+     * @return the services, one per house
+     */
+    public List<TartanHomeService> getHomeServices() {
+        return Collections.unmodifiableList(services);
+    }
+
     /**
      * Fetch the service for a house
      * @param houseName the target house
@@ -88,6 +274,8 @@ public class TartanResource {
      * @param house the house
      * @param user the user allowed to access this house
      * @return a view of the house or null
+     * @throws WebApplicationException GATEWAY_TIMEOUT if the house does not answer in time, or 429 if
+     * too many requests already wait on the house
      */
     @GET
     @Produces({MediaType.TEXT_HTML, MediaType.APPLICATION_JSON})
@@ -101,7 +289,18 @@ public class TartanResource {
             TartanHomeService service = getHomeService(house);
             if (service == null) return null;
 
-            return new SmartHomeView(service.getState());
+            if (!service.enterBulkhead()) {
+                LOGGER.warn("Too many requests wait on house " + house + ", turning a GET away");
+                throw new WebApplicationException(Response.status(TOO_MANY_REQUESTS).build());
+            }
+            try {
+                return new SmartHomeView(service.getState());
+            } catch (IoTTimeoutException te) {
+                LOGGER.warn(te.getMessage());
+                throw new WebApplicationException(Response.Status.GATEWAY_TIMEOUT);
+            } finally {
+                service.leaveBulkhead();
+            }
         }
         return null;
     }
@@ -111,7 +310,8 @@ public class TartanResource {
      * @param house the house
      * @param user the user allowed to access this house
      * @param h the new state
-     * @return either HTTP OK or UNAUTHORIZED
+     * @return HTTP OK, UNAUTHORIZED, SERVICE_UNAVAILABLE if the house is not connected, 429 if too
+     * many requests already wait on the house, or GATEWAY_TIMEOUT if the house does not answer in time
      */
     @POST
     @Path("/update/{house}")
@@ -122,8 +322,29 @@ public class TartanResource {
             LOGGER.info("Received a house POST to house " + house);
             TartanHomeService service = getHomeService(house);
             if (service != null) {
+                // an update cannot reach a house that is not there; say so rather than wait
+                if (!service.isConnected()) {
+                    return Response
+                            .status(Response.Status.SERVICE_UNAVAILABLE)
+                            .build();
+                }
+                if (!service.enterBulkhead()) {
+                    LOGGER.warn("Too many requests wait on house " + house + ", turning a POST away");
+                    return Response
+                            .status(TOO_MANY_REQUESTS)
+                            .build();
+                }
                 // tell the house about the update
-                service.setState(h);
+                try {
+                    service.setState(h);
+                } catch (IoTTimeoutException te) {
+                    LOGGER.warn(te.getMessage());
+                    return Response
+                            .status(Response.Status.GATEWAY_TIMEOUT)
+                            .build();
+                } finally {
+                    service.leaveBulkhead();
+                }
 
                 return Response
                         .status(Response.Status.OK)
@@ -135,4 +356,3 @@ public class TartanResource {
                 .build();
     }
 }
-
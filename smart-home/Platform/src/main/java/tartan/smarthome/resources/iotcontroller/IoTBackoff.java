@@ -0,0 +1,69 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.Random;
+
+/**
+ * Jittered exponential backoff for reconnect attempts. The nth delay is drawn uniformly from the
+ * upper half of min(cap, base * 2^n), so a fleet of houses that lost the platform at the same moment
+ * does not reconnect in lockstep, yet no attempt comes sooner than half the nominal delay.
+ */
+public class IoTBackoff {
+
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random;
+
+    private int attempts = 0;
+
+    /**
+     * Create a backoff
+     * @param baseDelay the nominal first delay in ms
+     * @param maxDelay the largest nominal delay in ms
+     * @param random the source of jitter
+     */
+    public IoTBackoff(long baseDelay, long maxDelay, Random random) {
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.random = random;
+    }
+
+    /**
+     * Create a backoff with its own source of jitter
+     * @param baseDelay the nominal first delay in ms
+     * @param maxDelay the largest nominal delay in ms
+     */
+    public IoTBackoff(long baseDelay, long maxDelay) {
+        this(baseDelay, maxDelay, new Random());
+    }
+
+    /**
+     * Get the delay before the next attempt and count the attempt
+     * @return the delay in ms
+     */
+    public long nextDelay() {
+        long nominal = baseDelay;
+        for (int i = 0; i < attempts && nominal < maxDelay; i++) {
+            nominal *= 2;
+        }
+        nominal = Math.min(nominal, maxDelay);
+        attempts++;
+
+        long half = nominal / 2;
+        return half + (long) (random.nextDouble() * (nominal - half));
+    }
+
+    /**
+     * Start over after a successful attempt
+     */
+    public void reset() {
+        attempts = 0;
+    }
+
+    /**
+     * Get the number of attempts since the last reset
+     * @return the attempts
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+}
@@ -0,0 +1,268 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * The compact binary house protocol. It is negotiated at connect time with a
+ * {@code HELLO:BIN1.} handshake; once both sides agree every message is a frame
+ *
+ * <pre>
+ *   varint length | varint sequence | type | payload
+ * </pre>
+ *
+ * where length counts everything after itself and the house echoes the sequence id of the request
+ * it answers. The connection owns the length and sequence; this class reads and writes the type and
+ * payload:
+ *
+ * <ul>
+ *     <li>{@code GET_STATE} has no payload, or a varint mask of the slots wanted</li>
+ *     <li>{@code STATE_UPDATE} is a varint mask of the slots present, a varint of the flag bits
+ *     (bit n holds slot n), then a zigzag varint for each numeric reading present</li>
+ *     <li>{@code SET_STATE} is a varint mask of the slots to set followed by a varint of their bits</li>
+ *     <li>{@code OK} has no payload</li>
+ *     <li>{@code SUBSCRIBE} has no payload; the house answers {@code OK} and from then on sends a
+ *     {@code PUSH_UPDATE}, laid out like a {@code STATE_UPDATE}, whenever a sensor changes</li>
+ * </ul>
+ *
+ * A full state update is about ten bytes instead of eighty.
+ */
+public final class IoTBinaryCodec {
+
+    public static final byte GET_STATE = 1;
+    public static final byte SET_STATE = 2;
+    public static final byte STATE_UPDATE = 3;
+    public static final byte OK = 4;
+    public static final byte PUSH_UPDATE = 5;
+    public static final byte SUBSCRIBE = 6;
+
+    /** the largest varint this protocol uses (a 32 bit value) */
+    public static final int MAX_VARINT = 5;
+
+    private IoTBinaryCodec() { }
+
+    /**
+     * Write a get state request
+     * @param frame the buffer
+     */
+    public static void encodeGetState(ByteBuffer frame) {
+        frame.put(GET_STATE);
+    }
+
+    /**
+     * Write a get state request for some of the slots. A house that does not support this ignores
+     * the payload and answers with every slot
+     * @param mask the slots wanted; 0 or {@link IoTState#ALL_SLOTS} for all of them
+     * @param frame the buffer
+     */
+    public static void encodeGetState(int mask, ByteBuffer frame) {
+        frame.put(GET_STATE);
+        if (mask != 0 && mask != IoTState.ALL_SLOTS) {
+            putVarint(frame, mask);
+        }
+    }
+
+    /**
+     * Write a subscribe request
+     * @param frame the buffer
+     */
+    public static void encodeSubscribe(ByteBuffer frame) {
+        frame.put(SUBSCRIBE);
+    }
+
+    /**
+     * Write an acknowledgement
+     * @param frame the buffer
+     */
+    public static void encodeOk(ByteBuffer frame) {
+        frame.put(OK);
+    }
+
+    /**
+     * Write a state update
+     * @param state the state to report
+     * @param frame the buffer
+     */
+    public static void encodeStateUpdate(IoTState state, ByteBuffer frame) {
+        frame.put(STATE_UPDATE);
+        putVarint(frame, state.presentMask());
+        putVarint(frame, flagBits(state, state.presentMask()));
+        for (int slot = 0; slot < IoTState.KEY_COUNT; slot++) {
+            if (IoTState.isReading(slot) && state.has(slot)) {
+                putVarint(frame, zigzag(state.get(slot)));
+            }
+        }
+    }
+
+    /**
+     * Write a set state request for the settable keys found in a state map
+     * @param state the state in the form used by the controller
+     * @param frame the buffer
+     */
+    public static void encodeSetState(Map<String, Object> state, ByteBuffer frame) {
+        int mask = 0;
+        int bits = 0;
+        for (int slot = 0; slot < IoTState.KEY_COUNT; slot++) {
+            if (!IoTStateCodec.isSettable(slot)) {
+                continue;
+            }
+            Object value = state.get(IoTState.keyOf(slot));
+            if (value instanceof Boolean) {
+                mask |= 1 << slot;
+                if ((Boolean) value) {
+                    bits |= 1 << slot;
+                }
+            }
+        }
+        frame.put(SET_STATE);
+        putVarint(frame, mask);
+        putVarint(frame, bits);
+    }
+
+    /**
+     * Write a set state request for the settable slots of a state
+     * @param state the state
+     * @param frame the buffer
+     */
+    public static void encodeSetState(IoTState state, ByteBuffer frame) {
+        int mask = 0;
+        for (int slot = 0; slot < IoTState.KEY_COUNT; slot++) {
+            if (IoTStateCodec.isSettable(slot) && state.has(slot)) {
+                mask |= 1 << slot;
+            }
+        }
+        frame.put(SET_STATE);
+        putVarint(frame, mask);
+        putVarint(frame, flagBits(state, mask));
+    }
+
+    /**
+     * Decode a state update, either the answer to a get state request or a pushed update
+     * @param frame the type and payload
+     * @param state the holder to fill; it is cleared first
+     * @return true if the frame is a well formed state update
+     */
+    public static boolean decodeStateUpdate(ByteBuffer frame, IoTState state) {
+        state.clear();
+        if (!frame.hasRemaining()) {
+            return false;
+        }
+        byte type = frame.get();
+        if (type != STATE_UPDATE && type != PUSH_UPDATE) {
+            return false;
+        }
+        int mask = getVarint(frame);
+        int bits = getVarint(frame);
+        if (mask < 0 || bits < 0) {
+            return false;
+        }
+        for (int slot = 0; slot < IoTState.KEY_COUNT; slot++) {
+            if ((mask & (1 << slot)) == 0) {
+                continue;
+            }
+            if (IoTState.isReading(slot)) {
+                int value = getVarint(frame);
+                if (value == -1) {
+                    return false;
+                }
+                state.set(slot, unzigzag(value));
+            } else {
+                state.setFlag(slot, (bits & (1 << slot)) != 0);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decode a set state request (the house side of the protocol)
+     * @param frame the type and payload
+     * @param state the holder to fill with the requested slots; it is cleared first
+     * @return true if the frame is a well formed set state request
+     */
+    public static boolean decodeSetState(ByteBuffer frame, IoTState state) {
+        state.clear();
+        if (!frame.hasRemaining() || frame.get() != SET_STATE) {
+            return false;
+        }
+        int mask = getVarint(frame);
+        int bits = getVarint(frame);
+        if (mask < 0 || bits < 0) {
+            return false;
+        }
+        for (int slot = 0; slot < IoTState.KEY_COUNT; slot++) {
+            if ((mask & (1 << slot)) != 0) {
+                state.setFlag(slot, (bits & (1 << slot)) != 0);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Is the frame an acknowledgement?
+     * @param frame the type and payload
+     * @return true for OK
+     */
+    public static boolean isOk(ByteBuffer frame) {
+        return frame.hasRemaining() && frame.get(frame.position()) == OK;
+    }
+
+    /**
+     * Get the message type of a frame without consuming it
+     * @param frame the type and payload
+     * @return the type, or 0 for an empty frame
+     */
+    public static byte typeOf(ByteBuffer frame) {
+        return frame.hasRemaining() ? frame.get(frame.position()) : 0;
+    }
+
+    /**
+     * Write an unsigned varint: seven bits per byte, low bits first, high bit set on all but the last
+     * @param dst the buffer
+     * @param value the value, treated as unsigned
+     */
+    public static void putVarint(ByteBuffer dst, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    /**
+     * Read an unsigned varint
+     * @param src the buffer
+     * @return the value, or -1 if the buffer ends inside the varint or it is too long
+     */
+    public static int getVarint(ByteBuffer src) {
+        int value = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT; shift += 7) {
+            if (!src.hasRemaining()) {
+                return -1;
+            }
+            byte b = src.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private static int flagBits(IoTState state, int mask) {
+        int bits = 0;
+        for (int slot = 0; slot < IoTState.KEY_COUNT; slot++) {
+            if ((mask & (1 << slot)) != 0 && !IoTState.isReading(slot) && state.getFlag(slot)) {
+                bits |= 1 << slot;
+            }
+        }
+        return bits;
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
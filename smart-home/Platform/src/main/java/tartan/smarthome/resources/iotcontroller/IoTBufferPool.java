@@ -0,0 +1,113 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct buffers for house socket I/O. Direct buffers are read into and written from by
+ * the socket without an extra copy, but they are expensive to allocate and are only reclaimed by the
+ * garbage collector, so connections borrow them and give them back when they close.
+ *
+ * A buffer must not be used after it is released. When the pool is empty a new buffer is allocated
+ * (a miss); when it is full a released buffer is left to the garbage collector.
+ */
+public class IoTBufferPool {
+
+    /** the size of each buffer; large enough for any text line or binary frame of a single house */
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    /** how many idle buffers the pool keeps */
+    public static final int DEFAULT_MAX_POOLED = 256;
+
+    private static final IoTBufferPool SHARED = new IoTBufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+
+    private final int bufferSize;
+    private final int maxPooled;
+
+    private final Queue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Create a pool
+     * @param bufferSize the capacity of each buffer
+     * @param maxPooled how many idle buffers to keep
+     */
+    public IoTBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Get the pool shared by all house connections
+     * @return the pool
+     */
+    public static IoTBufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Borrow a buffer
+     * @return a cleared direct buffer of {@link #getBufferSize()} bytes
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = idle.poll();
+        if (buffer != null) {
+            idleCount.decrementAndGet();
+            hits.incrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+        misses.incrementAndGet();
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Give a buffer back. Buffers that did not come from this pool are ignored
+     * @param buffer the buffer, or null
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (idleCount.incrementAndGet() > maxPooled) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        idle.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Get the number of buffers handed out from the pool
+     * @return the count
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of buffers that had to be allocated because the pool was empty
+     * @return the count
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of idle buffers in the pool
+     * @return the count
+     */
+    public int getIdle() {
+        return idleCount.get();
+    }
+}
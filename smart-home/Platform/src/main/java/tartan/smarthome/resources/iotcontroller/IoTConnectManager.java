@@ -1,9 +1,17 @@
 package tartan.smarthome.resources.iotcontroller;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
 import java.util.Hashtable;
 import java.util.Map;
-import java.util.Set;
-import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Manages connection to the IoT house
@@ -14,9 +22,32 @@ import java.util.StringTokenizer;
  * 1.0 November 2015 - initial version
  */
 public class IoTConnectManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IoTConnectManager.class);
+
+    // An acknowledgement as the house sends it
+    private static final byte[] OK_LINE = (IoTValues.OK + IoTValues.MSG_END).getBytes(StandardCharsets.US_ASCII);
+
     // Connection to the house
     private IoTConnection connection;
 
+    // Frames are encoded and decoded with per-thread buffers. A connection that answers in place
+    // hands back a slice of its read buffer, so a poll cycle allocates nothing but the state map
+    // handed to the caller; other connections answer with a string that is decoded from a copy
+    private static final ThreadLocal<CodecContext> CODEC = new ThreadLocal<CodecContext>() {
+        @Override
+        protected CodecContext initialValue() {
+            return new CodecContext();
+        }
+    };
+
+    // What the house is known to be doing: the last state it reported, updated with every set state
+    // request it acknowledged. Only the settable slots that differ from it are sent
+    private final IoTState houseState = new IoTState();
+
+    // Set state requests that were not sent because nothing changed
+    private final AtomicLong unchangedSetStates = new AtomicLong();
+
     /**
      * Set up the connection manager with a connection
      * @param conn the (established) connection
@@ -36,179 +67,385 @@ public class IoTConnectManager {
      * Get the state from the house
      * @return the new state of things
      */
-    public synchronized Map<String,Object> getState() {
+    public Map<String,Object> getState() {
+
+        if (isBinary()) {
+            CodecContext ctx = CODEC.get();
+            ctx.frame.clear();
+            IoTBinaryCodec.encodeGetState(ctx.frame);
+            ctx.frame.flip();
+            return exchangeState(ctx.frame, true);
+        }
+        if (answersInPlace()) {
+            return exchangeLineState(IoTState.ALL_SLOTS, true);
+        }
 
-        System.out.println("Requesting state");
+        String update = exchange(IoTValues.GET_STATE + IoTValues.MSG_END);
+        if (update == null) {
+            return null;
+        }
+
+        return handleStateUpdate(update, true);
+    }
 
+    /**
+     * Get some of the state from the house. Only the named keys are asked for; the others are filled
+     * in from the last state the house reported
+     * @param keys the keys wanted, e.g. {@link IoTValues#SECURITY_KEYS}
+     * @return the new state of things
+     */
+    public Map<String,Object> getState(Collection<String> keys) {
+        int mask = IoTState.maskOf(keys);
+        if (mask == 0 || mask == IoTState.ALL_SLOTS) {
+            return getState();
+        }
+
+        CodecContext ctx = CODEC.get();
+        ctx.frame.clear();
+        if (isBinary()) {
+            IoTBinaryCodec.encodeGetState(mask, ctx.frame);
+            ctx.frame.flip();
+            return exchangeState(ctx.frame, false);
+        }
+        if (answersInPlace()) {
+            return exchangeLineState(mask, false);
+        }
+        ctx.codec.encodeGetState(mask, ctx.frame);
+        ctx.frame.flip();
+        return handleStateUpdate(exchange(ctx.frame), false);
+    }
+
+    /**
+     * Send a message and wait for the response. A pipelined connection correlates responses itself,
+     * so callers share it without a mutex; otherwise exchanges are serialized on the connection
+     * @param msg the message to send
+     * @return the response or null
+     */
+    private String exchange(String msg) {
+        if (connection.isPipelined()) {
+            return connection.sendMessageToHouse(msg);
+        }
         synchronized (connection) {
-            String update = connection.sendMessageToHouse(IoTValues.GET_STATE + IoTValues.MSG_END);
-            if (update == null) {
+            return connection.sendMessageToHouse(msg);
+        }
+    }
+
+    /**
+     * Send an encoded frame and wait for the response
+     * @param frame the frame
+     * @return the response or null
+     */
+    private String exchange(ByteBuffer frame) {
+        if (connection.isPipelined()) {
+            return connection.sendMessageToHouse(frame);
+        }
+        synchronized (connection) {
+            return connection.sendMessageToHouse(frame);
+        }
+    }
+
+    /**
+     * Send a binary get state request and decode the answer. A blocking connection answers with a
+     * slice of its read buffer, so the answer is decoded before the connection is released
+     * @param frame the message type and payload
+     * @param complete true if every slot was asked for
+     * @return the new state or null
+     */
+    private Map<String,Object> exchangeState(ByteBuffer frame, boolean complete) {
+        if (connection.isPipelined()) {
+            return handleStateUpdate(connection.sendFrameToHouse(frame), complete);
+        }
+        synchronized (connection) {
+            return handleStateUpdate(connection.sendFrameToHouse(frame), complete);
+        }
+    }
+
+    /**
+     * Send a binary set state request and read the acknowledgement
+     * @param frame the message type and payload
+     * @return true if acknowledged, false if refused, or null if there was no answer
+     */
+    private Boolean exchangeAck(ByteBuffer frame) {
+        if (connection.isPipelined()) {
+            return isAck(connection.sendFrameToHouse(frame));
+        }
+        synchronized (connection) {
+            return isAck(connection.sendFrameToHouse(frame));
+        }
+    }
+
+    private static Boolean isAck(ByteBuffer response) {
+        return response != null ? IoTBinaryCodec.isOk(response) : null;
+    }
+
+    /**
+     * Does the connection answer text requests with a slice of its read buffer?
+     * @return true if it does and is not shared between exchanges in flight
+     */
+    private boolean answersInPlace() {
+        return !connection.isPipelined() && connection.answersInPlace();
+    }
+
+    /**
+     * Send a text get state request and decode the answer straight from the connection's read
+     * buffer, before the connection is released
+     * @param mask the slots wanted
+     * @param complete true if every slot was asked for
+     * @return the new state or null
+     */
+    private Map<String,Object> exchangeLineState(int mask, boolean complete) {
+        CodecContext ctx = CODEC.get();
+        ctx.frame.clear();
+        ctx.codec.encodeGetState(mask, ctx.frame);
+        ctx.frame.flip();
+        synchronized (connection) {
+            ByteBuffer line = connection.sendLineToHouse(ctx.frame);
+            if (line == null || !line.hasRemaining() || !ctx.codec.decodeStateUpdate(line, ctx.state)) {
+                return null;
+            }
+            recordHouseState(ctx.state, complete);
+        }
+        return ctx.state.putInto(new Hashtable<String, Object>());
+    }
+
+    /**
+     * Send a text set state request and read the acknowledgement from the connection's read buffer
+     * @param frame the request
+     * @return true if acknowledged, false if refused, or null if there was no answer
+     */
+    private Boolean exchangeLineAck(ByteBuffer frame) {
+        synchronized (connection) {
+            ByteBuffer line = connection.sendLineToHouse(frame);
+            if (line == null) {
                 return null;
             }
+            // the house terminates its acknowledgement like any other message
+            int length = line.remaining();
+            return (length == OK_LINE.length || length == OK_LINE.length - 1)
+                    && line.equals(ByteBuffer.wrap(OK_LINE, 0, length));
+        }
+    }
 
-            return handleStateUpdate(update);
+    /**
+     * Read a text acknowledgement
+     * @param response the answer to a set state request
+     * @return true if acknowledged, false if refused, or null if there was no answer
+     */
+    private static Boolean isAck(String response) {
+        if (response == null) {
+            return null;
         }
+        // the house terminates its acknowledgement like any other message
+        return response.equals(IoTValues.OK) || response.equals(IoTValues.OK + IoTValues.MSG_END);
     }
 
+    /**
+     * Has the binary protocol been agreed with the house?
+     * @return true for binary, false for text
+     */
+    private boolean isBinary() {
+        return connection.getProtocol() == IoTProtocol.BINARY;
+    }
 
+    /**
+     * Get the state from the house without waiting. The response is handed back to this manager on
+     * the connection's I/O thread. A caller that gives up on the answer (completes or cancels it
+     * first, e.g. on a deadline) cancels the request on the connection too
+     * @return the pending state; it completes with null if the house did not answer
+     */
+    public CompletableFuture<Map<String,Object>> getStateAsync() {
+        if (isBinary()) {
+            CodecContext ctx = CODEC.get();
+            ctx.frame.clear();
+            IoTBinaryCodec.encodeGetState(ctx.frame);
+            ctx.frame.flip();
+            return answer(connection.sendFrameAsync(ctx.frame),
+                    new Function<ByteBuffer, Map<String, Object>>() {
+                        @Override
+                        public Map<String, Object> apply(ByteBuffer update) {
+                            return handleStateUpdate(update, true);
+                        }
+                    });
+        }
+        return answer(connection.sendMessageAsync(IoTValues.GET_STATE + IoTValues.MSG_END),
+                new Function<String, Map<String, Object>>() {
+                    @Override
+                    public Map<String, Object> apply(String update) {
+                        return handleStateUpdate(update, true);
+                    }
+                });
+    }
 
     /**
-     * Send a state change request to the house
+     * Send a state change request to the house without waiting. Like {@link #setState}, only the
+     * keys that differ from what the house is known to be doing are sent
      * @param state the new state
-     * @return true if the state was accepted; false otherwise
+     * @return the pending answer: true if the state was accepted (or already in effect), false if
+     * it was refused or the house did not answer
      */
-    public synchronized Boolean setState(Map<String, Object> state) {
-
-        StringBuffer newState = new StringBuffer();
-        Set<String> keys = state.keySet();
-        int count = 0;
-        for (String key : keys) {
-
-            if (key.equals(IoTValues.DOOR_STATE)) {
-
-                Boolean newDoorState = (Boolean) state.get(key);
-                newState.append(IoTValues.DOOR_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newDoorState) {
-                    newState.append(IoTValues.DOOR_OPEN);
-                } else {
-                    newState.append(IoTValues.DOOR_CLOSE);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.LOCK_STATE)) {
-                Boolean newLockState = (Boolean) state.get(key);
-                newState.append(IoTValues.LOCK_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newLockState) {
-                    newState.append(IoTValues.LOCKED);
-                } else {
-                    newState.append(IoTValues.UNLOCKED);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.NIGHT_MODE)) {
-                Boolean newLockState = (Boolean) state.get(key);
-                newState.append(IoTValues.NIGHT_MODE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newLockState) {
-                    newState.append("1");
-                } else {
-                    newState.append("0");
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.LIGHT_STATE)) {
-                Boolean newLightState = (Boolean) state.get(key);
-                newState.append(IoTValues.LIGHT_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newLightState) {
-                    newState.append(IoTValues.LIGHT_ON);
-                } else {
-                    newState.append(IoTValues.LIGHT_OFF);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.ALARM_STATE)) {
-                Boolean newAlarmState = (Boolean) state.get(key);
-                newState.append(IoTValues.ALARM_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newAlarmState) {
-                    newState.append(IoTValues.ALARM_ENABLED);
-                } else {
-                    newState.append(IoTValues.ALARM_DISABLED);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.ALARM_ACTIVE)) {
-                Boolean newAlarmState = (Boolean) state.get(key);
-                newState.append(IoTValues.ALARM_ACTIVE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newAlarmState) {
-                    newState.append(IoTValues.ALARM_ON);
-                } else {
-                    newState.append(IoTValues.ALARM_OFF);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            }else if (key.equals(IoTValues.HUMIDIFIER_STATE)) {
-                Boolean newHumidifierState = (Boolean) state.get(key);
-                newState.append(IoTValues.HUMIDIFIER_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newHumidifierState) {
-                    newState.append(IoTValues.HUMIDIFIER_ON);
-                } else {
-                    newState.append(IoTValues.HUMIDIFIER_OFF);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.CHILLER_STATE)) {
-                Boolean newChillerState = (Boolean) state.get(key);
-                newState.append(IoTValues.CHILLER_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newChillerState) {
-                    newState.append(IoTValues.CHILLER_ON);
-                } else {
-                    newState.append(IoTValues.CHILLER_OFF);
+    public CompletableFuture<Boolean> setStateAsync(Map<String, Object> state) {
+        CodecContext ctx = CODEC.get();
+        if (!changes(state, ctx.delta)) {
+            unchangedSetStates.incrementAndGet();
+            return CompletableFuture.completedFuture(true);
+        }
+        // the answer arrives on the I/O thread, after this thread has reused its buffers
+        final IoTState sent = new IoTState();
+        sent.copyFrom(ctx.delta);
+
+        ctx.frame.clear();
+        if (isBinary()) {
+            IoTBinaryCodec.encodeSetState(sent, ctx.frame);
+            ctx.frame.flip();
+            return answer(connection.sendFrameAsync(ctx.frame), new Function<ByteBuffer, Boolean>() {
+                @Override
+                public Boolean apply(ByteBuffer response) {
+                    return accepted(sent, isAck(response));
                 }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
+            });
+        }
+        ctx.codec.encodeSetState(sent, ctx.frame);
+        ctx.frame.flip();
+        return answer(connection.sendMessageAsync(ctx.frame), new Function<String, Boolean>() {
+            @Override
+            public Boolean apply(String response) {
+                return accepted(sent, isAck(response));
+            }
+        });
+    }
+
+    /**
+     * Decode the answer to an async request. If the decoded answer is given up on before the house
+     * answers, the request is cancelled on the connection, which drops a link that would otherwise
+     * match the late answer to the next request
+     * @param request the request in flight
+     * @param decode decodes its answer
+     * @return the decoded answer
+     */
+    private <R, T> CompletableFuture<T> answer(final CompletableFuture<R> request, Function<R, T> decode) {
+        CompletableFuture<T> answer = request.thenApply(decode);
+        answer.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T value, Throwable failure) {
+                if (failure != null && !request.isDone()) {
+                    connection.cancel(request);
                 }
-            } else if (key.equals(IoTValues.HEATER_STATE)) {
-                Boolean newHeaterState = (Boolean) state.get(key);
-                newState.append(IoTValues.HEATER_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newHeaterState) {
-                    newState.append(IoTValues.HEATER_ON);
-                } else {
-                    newState.append(IoTValues.HEATER_OFF);
+            }
+        });
+        return answer;
+    }
+
+    /**
+     * Record the answer to a set state request
+     * @param sent the slots that were sent
+     * @param ack the acknowledgement, or null if there was no answer
+     * @return true if the house took the state
+     */
+    private Boolean accepted(IoTState sent, Boolean ack) {
+        if (ack == null) {
+            LOGGER.debug("No response to a set state request");
+            return false;
+        }
+        if (ack) {
+            synchronized (houseState) {
+                houseState.merge(sent);
+            }
+        }
+        return ack;
+    }
+
+    /**
+     * Work out which slots of a new state differ from what the house is known to be doing
+     * @param state the new state
+     * @param delta receives the settable slots that differ
+     * @return true if there is anything to send
+     */
+    private boolean changes(Map<String, Object> state, IoTState delta) {
+        delta.clear();
+        delta.copyFrom(state);
+        synchronized (houseState) {
+            for (int slot = 0; slot < IoTState.KEY_COUNT; slot++) {
+                if (!delta.has(slot)) {
+                    continue;
                 }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
+                if (!IoTStateCodec.isSettable(slot)
+                        || (houseState.has(slot) && houseState.get(slot) == delta.get(slot))) {
+                    delta.remove(slot);
                 }
             }
         }
+        return delta.presentMask() != 0;
+    }
 
-        //newState.append(IoTValues.MSG_END); // append protocol request terminator
-        StringBuffer msg
-                = new StringBuffer(IoTValues.SET_STATE + IoTValues.MSG_DELIM + newState.toString() + IoTValues.MSG_END);
-        System.out.println("New state for house: " + msg.toString());
+    /**
+     * Send a state change request to the house. Only the keys that differ from what the house is
+     * known to be doing are sent; if nothing differs no request is sent at all
+     * @param state the new state
+     * @return true if the state was accepted (or already in effect); false otherwise
+     */
+    public Boolean setState(Map<String, Object> state) {
 
-        String response = null;
-        synchronized (connection) {
-            response = connection.sendMessageToHouse(msg.toString());
+        CodecContext ctx = CODEC.get();
+        if (!changes(state, ctx.delta)) {
+            unchangedSetStates.incrementAndGet();
+            return true;
         }
-        if (response == null) {
-            System.out.println("No response");
-            return false;
+
+        ctx.frame.clear();
+        if (isBinary()) {
+            IoTBinaryCodec.encodeSetState(ctx.delta, ctx.frame);
+            ctx.frame.flip();
+
+            return accepted(ctx.delta, exchangeAck(ctx.frame));
         }
-        System.out.println("Response: " + response);
+        ctx.codec.encodeSetState(ctx.delta, ctx.frame);
+        ctx.frame.flip();
 
-        return response.equals(IoTValues.OK);
+        return accepted(ctx.delta, answersInPlace() ? exchangeLineAck(ctx.frame) : isAck(exchange(ctx.frame)));
+    }
+
+    /**
+     * Record the state the house reported; it is the base the next set state request is compared to
+     * @param reported the state from the house. If it is partial, it is completed from the last
+     *                 known state
+     * @param complete true if every slot was asked for
+     */
+    private void recordHouseState(IoTState reported, boolean complete) {
+        synchronized (houseState) {
+            if (complete) {
+                houseState.copyFrom(reported);
+            } else {
+                houseState.merge(reported);
+                reported.copyFrom(houseState);
+            }
+        }
+    }
+
+    /**
+     * Forget what the house is known to be doing, so the next set state request is sent in full.
+     * Use this when the link to the house has been re-established
+     */
+    public void forgetHouseState() {
+        synchronized (houseState) {
+            houseState.clear();
+        }
+    }
+
+    /**
+     * Get the number of set state requests that were not sent because nothing changed
+     * @return the count
+     */
+    public long getUnchangedSetStates() {
+        return unchangedSetStates.get();
     }
 
     /**
      * Process the new state reported by the house
      * @param stateUpdateMsg the new state message
+     * @param complete true if every slot was asked for
      * @return the new state
      */
-    private Map<String,Object> handleStateUpdate(String stateUpdateMsg) {
+    private Map<String,Object> handleStateUpdate(String stateUpdateMsg, boolean complete) {
 
         if (stateUpdateMsg == null) {
             return null;
@@ -217,116 +454,49 @@ public class IoTConnectManager {
             return null;
         }
 
-        System.out.println("State Update: " + stateUpdateMsg);
-        Hashtable<String,Object> state = new Hashtable<String, Object>();
-
-        String[] req = stateUpdateMsg.split(IoTValues.MSG_DELIM);
-
-        // invalid state update
-        if (req.length != 2) {
+        CodecContext ctx = CODEC.get();
+        if (!ctx.codec.decodeStateUpdate(stateUpdateMsg, ctx.state)) {
+            // invalid state update
             return null;
         }
-        // is this a state update
-        String cmd = req[0];
-        String body = req[1];
+        recordHouseState(ctx.state, complete);
+        return ctx.state.putInto(new Hashtable<String, Object>());
+    }
 
-        if (!cmd.equals(IoTValues.STATE_UPDATE)) { // only message that comes from house
+    /**
+     * Process the new state reported by the house in a binary frame
+     * @param stateUpdate the message type and payload
+     * @param complete true if every slot was asked for
+     * @return the new state
+     */
+    private Map<String,Object> handleStateUpdate(ByteBuffer stateUpdate, boolean complete) {
+
+        if (stateUpdate == null) {
             return null;
         }
 
-        if (String.valueOf(body.charAt(body.length()-1)).equals(IoTValues.MSG_END)) {
-            body = body.substring(0, body.length() - 1);
-        }
-        if (body==null) {
+        CodecContext ctx = CODEC.get();
+        if (!IoTBinaryCodec.decodeStateUpdate(stateUpdate, ctx.state)) {
+            // invalid state update
             return null;
         }
-        StringTokenizer pt = new StringTokenizer(body, IoTValues.PARAM_DELIM);
-
-        // process the new state
-        while (pt.hasMoreTokens()) {
-            String param = pt.nextToken();
-            String data[] = param.split(IoTValues.PARAM_EQ);
-            Integer val = Integer.parseInt(data[1]);
+        recordHouseState(ctx.state, complete);
+        return ctx.state.putInto(new Hashtable<String, Object>());
+    }
 
-            if (data[0].equals(IoTValues.LIGHT_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.LIGHT_STATE, true);
-                } else {
-                    state.put(IoTValues.LIGHT_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.ALARM_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.ALARM_STATE, true);
-                } else {
-                state.put(IoTValues.ALARM_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.DOOR_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.DOOR_STATE, true);
-                } else {
-                    state.put(IoTValues.DOOR_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.LOCK_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.LOCK_STATE, true);
-                } else {
-                    state.put(IoTValues.LOCK_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.NIGHT_MODE)) {
-                if (val == 1) {
-                    state.put(IoTValues.NIGHT_MODE, true);
-                } else {
-                    state.put(IoTValues.NIGHT_MODE, false);
-                }
-            } else if (data[0].equals(IoTValues.HUMIDIFIER_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.HUMIDIFIER_STATE, true);
-                } else {
-                    state.put(IoTValues.HUMIDIFIER_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.PROXIMITY_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.PROXIMITY_STATE, true);
-                } else {
-                    state.put(IoTValues.PROXIMITY_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.ALARM_ACTIVE)) {
-                if (val == 1) {
-                    state.put(IoTValues.ALARM_ACTIVE, true);
-                } else {
-                    state.put(IoTValues.ALARM_ACTIVE, false);
-                }
-            } else if (data[0].equals(IoTValues.HEATER_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.HEATER_STATE, true);
-                } else {
-                    state.put(IoTValues.HEATER_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.CHILLER_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.CHILLER_STATE, true);
-                } else {
-                    state.put(IoTValues.CHILLER_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.TEMP_READING)) {
-                state.put(IoTValues.TEMP_READING, val);
-            } else if (data[0].equals(IoTValues.HUMIDITY_READING)) {
-                state.put(IoTValues.HUMIDITY_READING, val);
-            } else if (data[0].equals(IoTValues.HVAC_MODE)) {
-                if (val == 1) {
-                    state.put(IoTValues.HVAC_MODE, "Heater");
-                } else {
-                    state.put(IoTValues.HVAC_MODE, "Chiller");
-                }
-            } else if (data[0].equals(IoTValues.INTRUDER_DETECT)) {
-                if (val == 1){
-                    state.put(IoTValues.INTRUDER_DETECT, true);
-                } else {
-                    state.put(IoTValues.INTRUDER_DETECT, false);
-                }
+    /**
+     * Ask the house to push state updates when its sensors change
+     * @param listener receives the pushed updates on the connection's I/O thread
+     * @return true if the house accepted the subscription; false if it must be polled
+     */
+    public boolean subscribe(final IoTStateListener listener) {
+        return connection.subscribe(new IoTStateListener() {
+            @Override
+            public void stateChanged(IoTState state) {
+                recordHouseState(state, true);
+                listener.stateChanged(state);
             }
-        }
-        return state;
+        });
     }
 
     /**
@@ -339,4 +509,14 @@ public class IoTConnectManager {
         }
         return false;
     }
+
+    /**
+     * The reusable codec state of one thread
+     */
+    private static class CodecContext {
+        final IoTStateCodec codec = new IoTStateCodec();
+        final IoTState state = new IoTState();
+        final IoTState delta = new IoTState();
+        final ByteBuffer frame = ByteBuffer.allocate(IoTStateCodec.MAX_FRAME);
+    }
 }
@@ -1,8 +1,16 @@
 package tartan.smarthome.resources.iotcontroller;
 
-import java.io.*;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A connection to an IoT-enabled house. This class handles the network connection to the house
@@ -20,9 +28,34 @@ public class IoTConnection {
     private Integer port = 5050; // the default port for the house
 
     /** The connection is private so it can be controlled */
-    private Socket houseSocket=null;
-    private BufferedWriter out=null;
-    private BufferedReader in = null;
+    private SocketChannel channel = null;
+
+    /** The channel never blocks; the exchange waits on this selector, which gives the deadlines */
+    private Selector selector = null;
+
+    /** Bytes go straight between the socket and pooled direct buffers, with no charset in between.
+     * The read buffer is kept in read mode: unread bytes lie between its position and limit */
+    private ByteBuffer readBuffer = null;
+    private ByteBuffer writeBuffer = null;
+
+    /** how long a house may take to answer the protocol handshake before it is treated as text only */
+    public static final int HANDSHAKE_TIMEOUT = 2000;
+
+    /** deadlines, in ms, unless the house settings say otherwise */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    public static final int DEFAULT_READ_TIMEOUT = 5000;
+
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+
+    /** the handshake a house that speaks the binary protocol echoes back */
+    static final String HELLO_BINARY = IoTValues.HELLO + IoTValues.MSG_DELIM + IoTValues.BINARY_PROTOCOL + IoTValues.MSG_END;
+
+    /** offer the binary protocol when connecting */
+    private boolean binaryOffered = false;
+
+    /** the protocol agreed with the house */
+    private volatile IoTProtocol protocol = IoTProtocol.TEXT;
 
     /**
      * Get the house address
@@ -59,57 +92,496 @@ public class IoTConnection {
         return isConnected;
     }
 
+    /**
+     * Can several requests be in flight on this connection at once?
+     * @return false; a blocking connection handles one exchange at a time
+     */
+    public boolean isPipelined() {
+        return false;
+    }
+
+    /**
+     * Do the async send methods return before the house answers?
+     * @return false; a blocking connection completes the exchange before returning
+     */
+    public boolean isNonBlocking() {
+        return false;
+    }
+
+    /**
+     * Set the deadlines for this connection
+     * @param connectTimeout how long to wait for the connection to be established, in ms
+     * @param readTimeout how long to wait for the answer to a request, in ms
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Get the connect deadline
+     * @return the deadline in ms
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Get the read deadline
+     * @return the deadline in ms
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Give up on an exchange that missed its deadline. The answer may still arrive and would be
+     * taken for the answer to the next request, so the link is dropped
+     * @return the exception to throw
+     */
+    private IoTTimeoutException timedOut() {
+        disconnect();
+        return new IoTTimeoutException("House " + address + " did not answer within " + readTimeout + " ms");
+    }
+
+    /**
+     * Offer the binary protocol when connecting. Houses that do not answer the handshake stay on text
+     * @param offered true to offer it
+     */
+    public void setBinaryOffered(boolean offered) {
+        this.binaryOffered = offered;
+    }
+
+    /**
+     * Is the binary protocol offered when connecting?
+     * @return true if offered
+     */
+    public boolean isBinaryOffered() {
+        return binaryOffered;
+    }
+
+    /**
+     * Get the protocol agreed with the house
+     * @return the protocol; text until a handshake succeeds
+     */
+    public IoTProtocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Record the protocol agreed with the house
+     * @param protocol the protocol
+     */
+    protected void setProtocol(IoTProtocol protocol) {
+        this.protocol = protocol;
+    }
+
     /**
      * Send a message to the house and get a response
      * @param msg the message to send
      * @return the response
+     * @throws IoTTimeoutException if the house does not answer within the read deadline
+     */
+    public synchronized String sendMessageToHouse(String msg) {
+        if (!isConnected) {
+            return null;
+        }
+        try {
+            long deadline = System.currentTimeMillis() + readTimeout;
+            writeAscii(msg, deadline);
+            return toAscii(readLine(deadline));
+
+        } catch (SocketTimeoutException ste) {
+            throw timedOut();
+        } catch (IOException ioe) {
+            // the link is dead; say so rather than fail every later exchange the same way
+            disconnect();
+        }
+        return null;
+    }
+
+    /**
+     * Send an encoded frame to the house and get a response
+     * @param frame the frame, from its position to its limit; the position is advanced to the limit
+     * @return the response
+     * @throws IoTTimeoutException if the house does not answer within the read deadline
+     */
+    public synchronized String sendMessageToHouse(ByteBuffer frame) {
+        ByteBuffer line = sendLineToHouse(frame);
+        return line != null ? toAscii(line) : null;
+    }
+
+    /**
+     * Send an encoded frame to the house and get the response line. The line is a slice of the
+     * connection's read buffer: it must be decoded before the next exchange, so callers hold the
+     * connection while they do
+     * @param frame the frame, from its position to its limit; the position is advanced to the limit
+     * @return the response without its terminator, or null if there was none
+     * @throws IoTTimeoutException if the house does not answer within the read deadline
+     */
+    public synchronized ByteBuffer sendLineToHouse(ByteBuffer frame) {
+        if (!isConnected) {
+            return null;
+        }
+        try {
+            long deadline = System.currentTimeMillis() + readTimeout;
+            write(frame, deadline);
+            return readLine(deadline);
+
+        } catch (SocketTimeoutException ste) {
+            throw timedOut();
+        } catch (IOException ioe) {
+            // the link is dead; say so rather than fail every later exchange the same way
+            disconnect();
+        }
+        return null;
+    }
+
+    /**
+     * Does {@link #sendLineToHouse} answer from this connection's own socket? A subclass that reaches
+     * the house some other way answers through the string methods instead
+     * @return true while this connection's socket is open
+     */
+    public synchronized boolean answersInPlace() {
+        return channel != null;
+    }
+
+    /**
+     * Send an encoded frame to the house without waiting for the response. The frame is consumed
+     * before this method returns, so the caller may reuse the buffer
+     * @param frame the frame
+     * @return the response, or null if the connection failed
+     */
+    public CompletableFuture<String> sendMessageAsync(ByteBuffer frame) {
+        return CompletableFuture.completedFuture(sendMessageToHouse(frame));
+    }
+
+    /**
+     * Send a message to the house without waiting for the response. A blocking connection simply
+     * completes the exchange before returning
+     * @param msg the message to send
+     * @return the response, or null if the connection failed
      */
-    public String sendMessageToHouse(String msg) {
+    public CompletableFuture<String> sendMessageAsync(String msg) {
+        return CompletableFuture.completedFuture(sendMessageToHouse(msg));
+    }
+
+    /**
+     * Send a binary frame to the house and get a response. Only valid once the binary protocol has
+     * been agreed. The response is a slice of the connection's read buffer: it must be decoded
+     * before the next exchange, so callers hold the connection while they do
+     * @param frame the message type and payload, from its position to its limit
+     * @return the message type and payload of the response, or null if there was none
+     * @throws IoTTimeoutException if the house does not answer within the read deadline
+     */
+    public synchronized ByteBuffer sendFrameToHouse(ByteBuffer frame) {
+        if (protocol != IoTProtocol.BINARY || !isConnected) {
+            return null;
+        }
         try {
+            long deadline = System.currentTimeMillis() + readTimeout;
+
+            // a blocking connection has one exchange in flight, so the sequence id is always 0
+            writeBuffer.clear();
+            IoTBinaryCodec.putVarint(writeBuffer, 1 + frame.remaining());
+            IoTBinaryCodec.putVarint(writeBuffer, 0);
+            if (frame.remaining() > writeBuffer.remaining()) {
+                throw new IOException("Frame too long for the house: " + frame.remaining());
+            }
+            writeBuffer.put(frame);
+            writeBuffer.flip();
+            write(writeBuffer, deadline);
 
-            out.write(msg, 0, msg.length());
-            out.flush();
+            int length = readVarint(deadline);
+            if (length <= 0 || length > IoTStateCodec.MAX_FRAME) {
+                throw new IOException("Bad frame length from house: " + length);
+            }
+            while (readBuffer.remaining() < length) {
+                fill(deadline);
+            }
+            ByteBuffer body = readBuffer.slice();
+            body.limit(length);
+            readBuffer.position(readBuffer.position() + length);
 
-            return in.readLine();
+            if (IoTBinaryCodec.getVarint(body) < 0) {
+                return null;
+            }
+            return body.slice();
 
+        } catch (SocketTimeoutException ste) {
+            throw timedOut();
         } catch (IOException ioe) {
-            //ioe.printStackTrace();
+            // the link is dead; say so rather than fail every later exchange the same way
+            disconnect();
         }
         return null;
     }
 
     /**
-     * Disconnect from the house
+     * Send a binary frame to the house without waiting for the response. A blocking connection
+     * simply completes the exchange before returning, with a copy of the response that stays valid
+     * @param frame the message type and payload
+     * @return the response, or null if the connection failed
+     */
+    public CompletableFuture<ByteBuffer> sendFrameAsync(ByteBuffer frame) {
+        ByteBuffer copy = null;
+        synchronized (this) {
+            ByteBuffer response = sendFrameToHouse(frame);
+            if (response != null) {
+                copy = ByteBuffer.allocate(response.remaining());
+                copy.put(response);
+                copy.flip();
+            }
+        }
+        return CompletableFuture.completedFuture(copy);
+    }
+
+    /**
+     * Write a text message, one byte per character
+     * @param msg the message
+     * @param deadline when to give up, in ms since the epoch
      */
-    public void disconnect() {
-        if (houseSocket!=null) {
-            if (houseSocket.isConnected()) {
-                try {
-                    houseSocket.close();
-                } catch (IOException e) {
+    private void writeAscii(String msg, long deadline) throws IOException {
+        int next = 0;
+        while (next < msg.length()) {
+            writeBuffer.clear();
+            while (next < msg.length() && writeBuffer.hasRemaining()) {
+                writeBuffer.put((byte) msg.charAt(next++));
+            }
+            writeBuffer.flip();
+            write(writeBuffer, deadline);
+        }
+    }
 
+    /**
+     * Write a buffer to the house
+     * @param src the bytes, from its position to its limit
+     * @param deadline when to give up, in ms since the epoch
+     */
+    private void write(ByteBuffer src, long deadline) throws IOException {
+        while (src.hasRemaining()) {
+            if (channel.write(src) == 0) {
+                await(SelectionKey.OP_WRITE, deadline);
+            }
+        }
+    }
+
+    /**
+     * Read up to the next newline
+     * @param deadline when to give up, in ms since the epoch
+     * @return the line, without its terminator, as a slice of the read buffer
+     */
+    private ByteBuffer readLine(long deadline) throws IOException {
+        int scanned = readBuffer.position();
+        while (true) {
+            for (; scanned < readBuffer.limit(); scanned++) {
+                if (readBuffer.get(scanned) == '\n') {
+                    ByteBuffer line = readBuffer.slice();
+                    int end = scanned - readBuffer.position();
+                    if (end > 0 && line.get(end - 1) == '\r') {
+                        end--;
+                    }
+                    line.limit(end);
+                    readBuffer.position(scanned + 1);
+                    return line;
                 }
             }
+            scanned -= readBuffer.position();
+            fill(deadline);
         }
+    }
+
+    /**
+     * Read an unsigned varint
+     * @param deadline when to give up, in ms since the epoch
+     * @return the value
+     */
+    private int readVarint(long deadline) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 7 * IoTBinaryCodec.MAX_VARINT; shift += 7) {
+            if (!readBuffer.hasRemaining()) {
+                fill(deadline);
+            }
+            byte b = readBuffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Bad varint from house");
+    }
+
+    /**
+     * Read more from the house, keeping the unread bytes. They move to the start of the buffer
+     * @param deadline when to give up, in ms since the epoch
+     */
+    private void fill(long deadline) throws IOException {
+        readBuffer.compact();
+        try {
+            if (!readBuffer.hasRemaining()) {
+                throw new IOException("Response from house is too long");
+            }
+            int n;
+            while ((n = channel.read(readBuffer)) == 0) {
+                await(SelectionKey.OP_READ, deadline);
+            }
+            if (n < 0) {
+                throw new EOFException("House closed the connection");
+            }
+        } finally {
+            readBuffer.flip();
+        }
+    }
+
+    /**
+     * Wait for the channel to be ready
+     * @param op the operation to wait for
+     * @param deadline when to give up, in ms since the epoch
+     * @throws SocketTimeoutException if the deadline passes first
+     */
+    private void await(int op, long deadline) throws IOException {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException();
+        }
+        channel.keyFor(selector).interestOps(op);
+        selector.select(remaining);
+        selector.selectedKeys().clear();
+    }
+
+    /**
+     * Turn a line of the text protocol into a string. The protocol is ASCII, so each byte is a char
+     * @param line the line
+     * @return the string
+     */
+    private static String toAscii(ByteBuffer line) {
+        char[] chars = new char[line.remaining()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (line.get(line.position() + i) & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Offer the binary protocol. A house that speaks it echoes the handshake; an older house ignores
+     * it, so the reply is only awaited for {@link #HANDSHAKE_TIMEOUT} ms
+     */
+    private void negotiate() throws IOException {
+        protocol = IoTProtocol.TEXT;
+        long deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT;
+        writeAscii(HELLO_BINARY, deadline);
+        try {
+            if (HELLO_BINARY.equals(toAscii(readLine(deadline)))) {
+                protocol = IoTProtocol.BINARY;
+            }
+        } catch (SocketTimeoutException ste) {
+            // an older house: stay on text
+        }
+    }
+
+    /**
+     * Cancel an in-flight request. The requests of a blocking connection complete before they are
+     * handed out, so there is never anything to cancel
+     * @param request a future returned by one of the async send methods
+     * @return true if the request was cancelled before it completed
+     */
+    public boolean cancel(CompletableFuture<?> request) {
+        return request.cancel(false);
+    }
+
+    /**
+     * Ask the house to push state updates when its sensors change. A blocking connection has no
+     * reader between exchanges, so it cannot receive pushed updates
+     * @param listener receives the pushed updates
+     * @return true if the house accepted the subscription; false to keep polling
+     */
+    public boolean subscribe(IoTStateListener listener) {
+        return false;
+    }
+
+    /**
+     * Disconnect from the house. The buffers go back to the pool
+     */
+    public synchronized void disconnect() {
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+
+            }
+            selector = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+
+            }
+            channel = null;
+        }
+        IoTBufferPool.shared().release(readBuffer);
+        IoTBufferPool.shared().release(writeBuffer);
+        readBuffer = null;
+        writeBuffer = null;
         isConnected = false;
     }
 
+    /**
+     * Get the socket address of the house
+     * @return the address, or null if it cannot be resolved
+     */
+    protected SocketAddress houseAddress() {
+        InetSocketAddress houseAddress = new InetSocketAddress(this.address, this.port);
+        return houseAddress.isUnresolved() ? null : houseAddress;
+    }
+
+    /**
+     * Open an unconnected channel of the kind the house is reached by
+     * @return the channel
+     * @throws IOException if the channel cannot be opened
+     */
+    protected SocketChannel openChannel() throws IOException {
+        SocketChannel tcp = SocketChannel.open();
+        tcp.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        return tcp;
+    }
+
     /**
      * Connect to the house
      * @return true if connection successful, false otherwise
      */
-    public Boolean connect() {
+    public synchronized Boolean connect() {
 
+        SocketAddress houseAddress = houseAddress();
+        if (houseAddress == null) {
+            System.err.println("Unknown host: " + address);
+            return false;
+        }
+        disconnect();
         try {
-            houseSocket = new Socket(this.address, this.port);
+            channel = openChannel();
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_CONNECT);
 
-            out = new BufferedWriter(new OutputStreamWriter(houseSocket.getOutputStream()));
-            in = new BufferedReader(new InputStreamReader( houseSocket.getInputStream()));
+            long deadline = System.currentTimeMillis() + connectTimeout;
+            if (!channel.connect(houseAddress)) {
+                while (!channel.finishConnect()) {
+                    await(SelectionKey.OP_CONNECT, deadline);
+                }
+            }
+
+            readBuffer = IoTBufferPool.shared().acquire();
+            readBuffer.flip();
+            writeBuffer = IoTBufferPool.shared().acquire();
+
+            protocol = IoTProtocol.TEXT;
+            if (binaryOffered) {
+                negotiate();
+            }
 
-        } catch (UnknownHostException uhe) {
-            System.err.println("Unknown host: " + address);
-            return false;
         } catch (IOException ioe){
+            disconnect();
             return false;
         }
         isConnected = true;
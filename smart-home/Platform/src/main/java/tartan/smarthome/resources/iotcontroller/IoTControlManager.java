@@ -5,6 +5,14 @@ import java.text.SimpleDateFormat;
 import java.time.LocalTime;
 import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 
 import tartan.smarthome.resources.TartanStateEvaluator;
 import tartan.smarthome.utils.TartanTimeUtils;
@@ -23,6 +31,24 @@ public class IoTControlManager {
     /** connection to the house */
     private IoTConnectManager connMgr;
 
+    /** the link under the connection manager, kept to reconnect it */
+    private IoTConnection connection;
+
+    /** the state of the link to the house */
+    private volatile IoTLinkState linkState = IoTLinkState.CLOSED;
+
+    /** consecutive heartbeats (polls) the house may miss before the link is declared dead */
+    private static final int MAX_MISSED_HEARTBEATS = 3;
+
+    /** reconnect delays start at a second and grow to a minute */
+    private final IoTBackoff reconnectBackoff = new IoTBackoff(1000, 60000);
+
+    /** how often a waiting update thread checks that the link is still up */
+    private static final long LINK_CHECK_PERIOD = 1000;
+
+    /** the number of times the link was re-established */
+    private volatile long reconnects = 0;
+
     /** the user settings */
     private Hashtable<String, Object> userSettings;
 
@@ -31,18 +57,76 @@ public class IoTControlManager {
     /** the path to user settings and credentials */
     private String settingsPath;
 
-    /** the log messages */
-    private Vector<String> logMessages;
+    /** the log messages, within the house's caps */
+    private volatile IoTEventLog logMessages;
 
     private LoginHandler loginHandler;
 
-    /** Thread to manage state updates */
-    private Thread updateThread;
+    /** runs the update cycles and the away timer */
+    private IoTScheduler scheduler = IoTScheduler.shared();
+
+    /** the single thread that changes the state of this house, while connected */
+    private volatile IoTShardPool.Shard shard = null;
+
+    /** where in the poll period this house is polled, so houses do not poll in step */
+    private volatile IoTPhasePlanner.Phase phase = null;
+
+    /** the next update cycle, or null while one is running */
+    private ScheduledFuture<?> nextCycle = null;
+    private final Object cycleLock = new Object();
+
+    /** goes up whenever the update cycles are started or stopped; an answer to an earlier run is dropped */
+    private int cycleRun = 0;
+
+    /** the exchanges of this house with a blocking connection, in order, off the shard */
+    private volatile IoTExchangeLane lane = null;
+
+    /** locks the house down once it has been vacant for the alarm delay */
+    private IoTTimingWheel.Timeout awayTimer = null;
+    private final Object awayLock = new Object();
+
+    /** how urgent the next update cycle is: security while the alarm sounds or an intruder is seen */
+    private volatile IoTPriority cyclePriority = IoTPriority.ROUTINE;
+
+    /** update cycle state: heartbeats missed in a row, and what the evaluator last saw */
+    private int missedUpdates = 0;
+    private final IoTStateFingerprint fingerprint = new IoTStateFingerprint();
+
+    /** update cycles that found nothing new to evaluate */
+    private volatile long skippedEvaluations = 0;
+
+    /** the evaluator reckons night mode in this zone */
+    private static final ZoneId HOUSE_ZONE = ZoneId.of("Canada/Mountain");
+
+    /** when the house was last heard from, in ms since the epoch */
+    private long lastHeard = 0;
+
+    /** true once a reconnect delay has been waited out */
+    private boolean reconnectDue = false;
 
     /** Handle updates to the house state */
     private TartanStateEvaluator stateEvaluator;
 
-    private Map<String, Object> lastState;  
+    /** the latest state of the house; replaced, never changed, so readers do not lock */
+    private final AtomicReference<IoTStateSnapshot> lastState = new AtomicReference<>(IoTStateSnapshot.EMPTY);
+
+    /** the poll period when the house does not push updates, unless the house settings say otherwise */
+    public static final long POLL_PERIOD = 5000;
+
+    /** how often the house is polled, between the house's min and max periods */
+    private IoTPollCadence pollCadence = new IoTPollCadence(POLL_PERIOD, POLL_PERIOD);
+
+    /** the keepalive poll period when the house pushes updates */
+    private static final long KEEPALIVE_PERIOD = 30000;
+
+    /** ask the house to push updates instead of polling it */
+    private boolean pushRequested = false;
+
+    /** true once the house has accepted a subscription */
+    private volatile boolean pushActive = false;
+
+    /** updates pushed by the house, waiting for the update thread */
+    private final LinkedBlockingQueue<Map<String, Object>> pushedUpdates = new LinkedBlockingQueue<>();
 
     /**
      * Constructor for the controller
@@ -52,7 +136,7 @@ public class IoTControlManager {
      */
     public IoTControlManager(String user, String password, TartanStateEvaluator evaluator) {
 
-        logMessages = new Vector<String>();
+        logMessages = new IoTEventLog(IoTEventLog.DEFAULT_MAX_ENTRIES, IoTEventLog.DEFAULT_MAX_BYTES);
 
         userSettings = new Hashtable<String, Object>();
 
@@ -65,8 +149,6 @@ public class IoTControlManager {
         loginHandler = new LoginHandler(this.users);
 
         connMgr = null;
-
-        lastState = new Hashtable<>();
     }
 
     /**
@@ -114,8 +196,7 @@ public class IoTControlManager {
         initialSettings.put(IoTValues.ALARM_DELAY, alarmDelay);
         initialSettings.put(IoTValues.ALARM_PASSCODE, alarmPassCode);
         
-        // The away timer is not set to start
-        lastState.put(IoTValues.AWAY_TIMER, false);
+        // The away timer is not set to start; a state without it reads as false
 
         // update the settings
         updateSettings(initialSettings);
@@ -141,13 +222,79 @@ public class IoTControlManager {
         return new Hashtable<String, Object>(userSettings);
     }
 
-    public Thread getUpdateThread() {
-        return updateThread;
+    /**
+     * Poll the house faster while it is occupied, alarmed or changing, and slower while it is vacant
+     * and quiet
+     * @param minPeriod the fastest poll period in ms
+     * @param maxPeriod the slowest poll period in ms
+     */
+    public void setPollPeriods(long minPeriod, long maxPeriod) {
+        this.pollCadence = new IoTPollCadence(minPeriod, maxPeriod);
+    }
+
+    /**
+     * Get the current poll period
+     * @return the period in ms
+     */
+    public long getPollPeriod() {
+        return pollCadence.getPeriod();
+    }
+
+    /**
+     * Run the update cycles and timers of this house on a scheduler shared with other houses. Call
+     * before connecting
+     * @param scheduler the scheduler
+     */
+    public void setScheduler(IoTScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Ask the house to push state updates when it connects. Houses that do not support it are
+     * polled as before
+     * @param pushRequested true to subscribe
+     */
+    public void setPushRequested(boolean pushRequested) {
+        this.pushRequested = pushRequested;
+    }
+
+    /**
+     * Get the state of the link to the house
+     * @return the link state
+     */
+    public IoTLinkState getLinkState() {
+        return linkState;
+    }
+
+    /**
+     * Get the number of times the link to the house was re-established
+     * @return the count
+     */
+    public long getReconnects() {
+        return reconnects;
+    }
+
+    /**
+     * Get the number of update cycles that skipped the evaluator because nothing it looks at had
+     * changed since the last one
+     * @return the count
+     */
+    public long getSkippedEvaluations() {
+        return skippedEvaluations;
+    }
+
+    /**
+     * Does the house push its updates?
+     * @return true if subscribed, false if polled
+     */
+    public boolean isPushActive() {
+        return pushActive;
     }
 
     /**
      * User-initiated state update
      * @param stateUpdate
+     * @throws IoTTimeoutException if the house does not answer in time
      */
     public void processStateUpdate(Map<String, Object> stateUpdate) {
 
@@ -157,98 +304,716 @@ public class IoTControlManager {
         Map<String, Object> completeState = new Hashtable<>();
         completeState.putAll(fetchState());
         completeState.putAll(stateUpdate);     
-        Map<String, Object> newState = stateEvaluator.evaluateState(completeState, log);
+        final Map<String, Object> newState = stateEvaluator.evaluateState(completeState, log);
         logMessages.add(log.toString());
-        synchronized(connMgr) {
-            connMgr.setState(newState);
-        }
-        this.lastState.putAll(newState);
+        exchangeNow(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return connMgr.setState(newState);
+            }
+        });
+        publishState(newState, false);
     }
 
+    /**
+     * Get the current state of the house: the latest snapshot, so callers never wait for the
+     * update cycle. The house is asked only if it has not reported yet
+     * @return the state, which cannot be changed, or null if not connected
+     */
     public Map<String, Object> getCurrentState() {
-        return fetchState();
+        if (!isConnected()) {
+            return null;
+        }
+        IoTStateSnapshot snapshot = lastState.get();
+        if (snapshot.isEmpty()) {
+            Map<String, Object> state = fetchState();
+            return state != null ? lastState.get().getState() : null;
+        }
+        return snapshot.getState();
     }
 
     /**
-     * Fetch the complete state from the house
+     * Get the latest snapshot of the house state
+     * @return the snapshot; empty until the house has reported
+     */
+    public IoTStateSnapshot getSnapshot() {
+        return lastState.get();
+    }
+
+    /**
+     * Get the version of the house state; it goes up with every change
+     * @return the version
+     */
+    public long getStateVersion() {
+        return lastState.get().getVersion();
+    }
+
+    /**
+     * Publish a new version of the house state
+     * @param changes the values that changed
+     * @param replace true if the changes are the whole state, false to merge them into the latest
+     */
+    private void publishState(Map<String, Object> changes, boolean replace) {
+        long now = System.currentTimeMillis();
+        IoTStateSnapshot current;
+        do {
+            current = lastState.get();
+        } while (!lastState.compareAndSet(current, current.next(changes, replace, now)));
+    }
+
+    /**
+     * Fetch the complete state from the house. The connection manager guards the link, so the
+     * poller and user requests do not need to hold a lock here
      * @return
      */
     private Map<String, Object> fetchState() {
-        // Map<String, Object> state = null;
-        synchronized (connMgr) {
-            if (connMgr.isConnected() == false) {
-                return null;
+        if (connMgr.isConnected() == false) {
+            return null;
+        }
+        return acceptState(exchangeNow(new Callable<Map<String, Object>>() {
+            @Override
+            public Map<String, Object> call() {
+                return connMgr.getState();
             }
-            lastState = connMgr.getState();
+        }));
+    }
+
+    /**
+     * Make a state reported by the house the current state
+     * @param state the state from the house
+     * @return the complete state, including the user settings
+     */
+    private Map<String, Object> acceptState(Map<String, Object> state) {
+        if (state == null) {
+            return null;
         }
 
         // The away timer is controlled here
-        lastState.put(IoTValues.AWAY_TIMER, false);
+        state.put(IoTValues.AWAY_TIMER, false);
 
         // The state includes the user settings 
-        lastState.putAll(userSettings);
-        // lastState.putAll(state);
-        return lastState;
+        state.putAll(userSettings);
+        // readers get a copy; the caller may go on to change the state it passed in
+        publishState(state, true);
+        return state;
+    }
+
+    /**
+     * Start running update cycles for the house on the scheduler
+     */
+    private void startHouseUpdates() {
+        missedUpdates = 0;
+        fingerprint.reset();
+        lastHeard = System.currentTimeMillis();
+        reconnectDue = false;
+        synchronized (cycleLock) {
+            cycleRun++;
+            if (shard == null) {
+                shard = scheduler.getShards().assign();
+            }
+            if (lane == null) {
+                lane = new IoTExchangeLane(scheduler.getExchanges());
+            }
+            if (phase == null) {
+                phase = scheduler.getPhases().join();
+            }
+            // the first poll waits for this house's phase
+            long period = pollCadence.getPeriod();
+            nextCycle = scheduler.schedule(updateOnShard, phase.align(period) % period);
+        }
+        updateLog("Started update monitor");
     }
 
     /**
-     * Start a thread to poll the house state
+     * Starts one update cycle. The cycle runs in steps on the house's shard; the exchanges with the
+     * house between them run off the shard, and the last step schedules the next cycle. Only one
+     * cycle of a house is queued or running at a time
+     */
+    private final Runnable updateCycle = new Runnable() {
+        @Override
+        public void run() {
+            int run;
+            synchronized (cycleLock) {
+                nextCycle = null;
+                run = cycleRun;
+            }
+            try {
+                runUpdateCycle(run);
+            } catch (RuntimeException e) {
+                cycleFailed(run, e);
+            }
+        }
+    };
+
+    /**
+     * End an update cycle that failed. The house stays monitored; the next cycle starts from what
+     * the house reports
+     * @param run the run of update cycles the cycle belongs to
+     * @param e what went wrong
      */
-    private void startHouseUpdateThread() {
+    private void cycleFailed(int run, Throwable e) {
+        updateLog("Update failed: " + e.getMessage());
+        endCycle(run, POLL_PERIOD);
+    }
 
-        updateThread = new Thread(new Runnable() {
+    /**
+     * End an update cycle and schedule the next, unless the update cycles were stopped or restarted
+     * meanwhile
+     * @param run the run of update cycles the cycle belongs to
+     * @param delay the delay before the next cycle in ms, or -1 for none
+     */
+    private void endCycle(int run, long delay) {
+        synchronized (cycleLock) {
+            if (run != cycleRun || delay < 0 || linkState == IoTLinkState.CLOSED || nextCycle != null) {
+                return;
+            }
+            try {
+                // a pushed update that arrived during the cycle is handled right away
+                nextCycle = scheduler.schedule(updateOnShard, pushedUpdates.isEmpty() ? delay : 0);
+            } catch (IllegalStateException stopped) {
+                // the platform is shutting down
+            }
+        }
+    }
+
+    /**
+     * Is a run of update cycles still going?
+     * @param run the run
+     * @return false once the cycles were stopped or restarted
+     */
+    private boolean isCurrentRun(int run) {
+        synchronized (cycleLock) {
+            return run == cycleRun && linkState != IoTLinkState.CLOSED;
+        }
+    }
+
+    private int currentRun() {
+        synchronized (cycleLock) {
+            return cycleRun;
+        }
+    }
+
+    /** the scheduler only times the update cycle; it runs on the house's shard */
+    private final Runnable updateOnShard = new Runnable() {
+        @Override
+        public void run() {
+            runOnShard(updateCycle, cyclePriority);
+        }
+    };
+
+    /**
+     * Wrap a task so that it runs on the house's shard, in order with every other change to the
+     * house. Without a shard (not connected) the task runs where it is called
+     * @param task the task
+     * @param priority how urgent the task is
+     * @return the wrapped task
+     */
+    private Runnable onShard(final Runnable task, final IoTPriority priority) {
+        return new Runnable() {
             @Override
             public void run() {
+                runOnShard(task, priority);
+            }
+        };
+    }
 
-                Integer missedUpdates = 0;
-                while (true) {
+    private void runOnShard(Runnable task, IoTPriority priority) {
+        IoTShardPool.Shard current = shard;
+        if (current == null || current.isCurrent()) {
+            task.run();
+            return;
+        }
+        try {
+            current.execute(task, priority);
+        } catch (IllegalStateException stopped) {
+            // the platform is shutting down
+        }
+    }
 
-                    Map<String, Object> currentState = fetchState();
-                    if (currentState != null) {
-                        StringBuffer log = new StringBuffer();
-                        Map<String, Object> newState = stateEvaluator.evaluateState(currentState, log);
-                        logMessages.add(log.toString());
-                        
-                        // save this state 
-                        IoTControlManager.this.lastState.putAll(newState);
+    /**
+     * Get how urgent house work is, given a state of the house
+     * @param state the state
+     * @return security while the alarm sounds or an intruder is seen, routine otherwise
+     */
+    private static IoTPriority priorityOf(Map<String, Object> state) {
+        if (state != null && (Boolean.TRUE.equals(state.get(IoTValues.ALARM_ACTIVE))
+                || Boolean.TRUE.equals(state.get(IoTValues.INTRUDER_DETECT)))) {
+            return IoTPriority.SECURITY;
+        }
+        return IoTPriority.ROUTINE;
+    }
 
-                        synchronized (connMgr) {
-                            connMgr.setState(newState);
-                        }
-                        
-                        // Must handle away timer here
-                        if (true == (Boolean) newState.getOrDefault(IoTValues.AWAY_TIMER, false)) {
-                            startAwayTimer();
-                        }
-                        else 
-                        missedUpdates = 0;
+    /**
+     * Run a user task that changes the house state on the house's shard and wait for it
+     * @param task the task
+     * @param turnTimeout how long to wait for the task to start, in ms
+     * @return the result of the task
+     * @throws IoTTimeoutException if the house was busy for longer than the timeout
+     */
+    public <T> T call(Callable<T> task, long turnTimeout) {
+        return call(task, turnTimeout, IoTPriority.USER);
+    }
+
+    /**
+     * Run a task that changes the house state on the house's shard and wait for it. It runs ahead
+     * of less urgent work already queued, and never at the same time as other work on the house
+     * @param task the task
+     * @param turnTimeout how long to wait for the task to start, in ms
+     * @param priority how urgent the task is
+     * @return the result of the task
+     * @throws IoTTimeoutException if the house was busy for longer than the timeout
+     */
+    public <T> T call(Callable<T> task, long turnTimeout, IoTPriority priority) {
+        IoTShardPool.Shard current = shard;
+        if (current == null) {
+            return IoTShardPool.callNow(task);
+        }
+        return current.call(task, turnTimeout, priority);
+    }
+
+    /**
+     * Queue a task that changes the house state on the house's shard, without waiting for it.
+     * Without a shard (not connected) the task runs where it is called
+     * @param task the task
+     * @param priority how urgent the task is
+     */
+    public void execute(Runnable task, IoTPriority priority) {
+        runOnShard(task, priority);
+    }
+
+    /**
+     * Run the next update cycle now, if one is waiting. Used when the house pushes an update
+     */
+    private void wakeHouseUpdates() {
+        synchronized (cycleLock) {
+            if (nextCycle != null && nextCycle.cancel(false)) {
+                nextCycle = scheduler.schedule(updateOnShard, 0);
+            }
+        }
+    }
+
+    /**
+     * Run the first step of an update cycle: take what the house pushed, or ask the house for its
+     * state. A house that stopped answering is reconnected, one step per cycle. The step never waits
+     * on the house; the answer is handed to {@link #stateArrived} on the shard
+     * @param run the run of update cycles the cycle belongs to
+     */
+    private void runUpdateCycle(final int run) {
+        if (linkState == IoTLinkState.CLOSED) {
+            return;
+        }
+
+        if (!connMgr.isConnected()) {
+            missedUpdates = 0;
+            fingerprint.reset();
+            if (!reconnectDue) {
+                reconnectDue = true;
+                linkState = IoTLinkState.DOWN;
+                long delay = reconnectBackoff.nextDelay();
+                updateLog("Lost the house, reconnecting in " + delay + " ms");
+                endCycle(run, delay);
+                return;
+            }
+            reconnectDue = false;
+            reconnect(run);
+            return;
+        }
+
+        // a pushing house that is quiet is only polled as a keepalive, but the link is checked often
+        // so a dead link is noticed without waiting for the keepalive
+        if (pushActive && pushedUpdates.isEmpty()
+                && System.currentTimeMillis() - lastHeard < KEEPALIVE_PERIOD) {
+            endCycle(run, LINK_CHECK_PERIOD);
+            return;
+        }
+
+        final IoTPhasePlanner.Phase polled = phase;
+        if (polled != null && !pushActive) {
+            polled.ran(pollCadence.getPeriod());
+        }
+
+        // a subscribed house pushes its updates; only the latest of a burst matters
+        Map<String, Object> pushed = null;
+        Map<String, Object> newer;
+        while (pushActive && (newer = pushedUpdates.poll()) != null) {
+            pushed = newer;
+        }
+        if (pushed != null) {
+            stateArrived(run, polled, acceptState(pushed));
+            return;
+        }
+
+        // every poll or keepalive doubles as a heartbeat
+        new Exchange<Map<String, Object>>(run) {
+            @Override
+            Map<String, Object> call() {
+                return connMgr.getState();
+            }
+
+            @Override
+            CompletableFuture<Map<String, Object>> callAsync() {
+                return connMgr.getStateAsync();
+            }
+
+            @Override
+            void answered(Map<String, Object> state) {
+                stateArrived(run, polled, acceptState(state));
+            }
+        }.start();
+    }
+
+    /**
+     * Run the second step of an update cycle, on the shard: evaluate the state the house reported
+     * and send the result back. A state the evaluator has already seen, at the same side of the night
+     * window and with the same settings, is not evaluated again
+     * @param run the run of update cycles the cycle belongs to
+     * @param polled the phase the house was polled in, or null
+     * @param currentState the complete state, or null if the house did not answer
+     */
+    private void stateArrived(final int run, final IoTPhasePlanner.Phase polled,
+                              final Map<String, Object> currentState) {
+        if (currentState == null) {
+            missedUpdates++;
+            linkState = IoTLinkState.SUSPECT;
+            if (missedUpdates >= MAX_MISSED_HEARTBEATS) {
+                // a half-open socket may never fail on its own; drop it and reconnect
+                updateLog("House stopped answering");
+                connMgr.disconnectFromHouse();
+                endCycle(run, 0);
+                return;
+            }
+            endCycle(run, nextDelay(polled, null));
+            return;
+        }
+
+        linkState = IoTLinkState.UP;
+        missedUpdates = 0;
+        lastHeard = System.currentTimeMillis();
+
+        // the evaluator and the fingerprint see the same time of day
+        LocalTime now = LocalTime.now(HOUSE_ZONE);
+        currentState.put(IoTValues.NOW, now);
+        if (!fingerprint.changed(currentState, now)) {
+            // nothing the evaluator looks at changed: it would decide, log and send the same again
+            skippedEvaluations++;
+            endCycle(run, nextDelay(polled, currentState));
+            return;
+        }
+
+        StringBuffer log = new StringBuffer();
+        Map<String, Object> newState = stateEvaluator.evaluateState(currentState, log);
+        logMessages.add(log.toString());
+
+        // save this state
+        publishState(newState, false);
+        // the evaluator may sound the alarm; the house reports intruders
+        cyclePriority = priorityOf(newState) == IoTPriority.SECURITY
+                ? IoTPriority.SECURITY : priorityOf(currentState);
+
+        // Must handle away timer here
+        if (true == (Boolean) newState.getOrDefault(IoTValues.AWAY_TIMER, false)) {
+            startAwayTimer();
+        }
+
+        if (Boolean.TRUE.equals(currentState.get(IoTValues.PROXIMITY_STATE))) {
+            // occupied again: no lock down
+            cancelAwayTimer();
+        }
+
+        new StateSend(run, newState) {
+            @Override
+            void answered(Boolean taken) {
+                if (!Boolean.TRUE.equals(taken)) {
+                    // the house may not have taken it: evaluate the next state whatever it is
+                    fingerprint.reset();
+                }
+                endCycle(run, nextDelay(polled, currentState));
+            }
+        }.start();
+    }
+
+    /**
+     * Get how long to wait before the next update cycle
+     * @param polled the phase the house was polled in, or null
+     * @param currentState the state the house reported, or null if it did not answer
+     * @return the delay in ms
+     */
+    private long nextDelay(IoTPhasePlanner.Phase polled, Map<String, Object> currentState) {
+        // a pushing house wakes the cycle itself
+        if (pushActive) {
+            return LINK_CHECK_PERIOD;
+        }
+        long delay = pollCadence.next(currentState);
+        if (currentState != null) {
+            // when the platform is behind, vacant quiet houses wait longer
+            boolean vacant = !Boolean.TRUE.equals(currentState.get(IoTValues.PROXIMITY_STATE))
+                    && cyclePriority == IoTPriority.ROUTINE;
+            delay = scheduler.getOverload().stretchPoll(delay, vacant);
+        }
+        return polled != null ? polled.align(delay) : delay;
+    }
+
+    /**
+     * Try to re-establish the link, once the backoff delay has been waited out. The link is made off
+     * the shard; on success the house is put back in the state the platform last set
+     * @param run the run of update cycles the reconnect belongs to
+     */
+    private void reconnect(final int run) {
+        linkState = IoTLinkState.CONNECTING;
+        new Exchange<Boolean>(run) {
+            @Override
+            Boolean call() {
+                if (!connection.connect()) {
+                    return false;
+                }
+                // the house may have restarted: assume nothing about it
+                connMgr.forgetHouseState();
+                pushedUpdates.clear();
+                subscribe();
+                return true;
+            }
+
+            @Override
+            void answered(Boolean connected) {
+                if (!Boolean.TRUE.equals(connected)) {
+                    linkState = IoTLinkState.DOWN;
+                    endCycle(run, 0);
+                    return;
+                }
+                reconnectBackoff.reset();
+                reconnects++;
+                pollCadence.reset();
+                linkState = IoTLinkState.UP;
+                lastHeard = System.currentTimeMillis();
+                updateLog("Reconnected");
+
+                revertState(run);
+            }
+
+            @Override
+            void dropped(Boolean connected) {
+                // the house was disconnected while the link was being made
+                if (Boolean.TRUE.equals(connected) && linkState == IoTLinkState.CLOSED) {
+                    connMgr.disconnectFromHouse();
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Ask the house to push its updates, if configured
+     */
+    private void subscribe() {
+        pushActive = false;
+        if (pushRequested) {
+            pushActive = connMgr.subscribe(new IoTStateListener() {
+                @Override
+                public void stateChanged(IoTState state) {
+                    Map<String, Object> pushed = state.putInto(new Hashtable<String, Object>());
+                    if (priorityOf(pushed) == IoTPriority.SECURITY) {
+                        // an alarm or intruder is handled ahead of routine work
+                        cyclePriority = IoTPriority.SECURITY;
+                    }
+                    pushedUpdates.offer(pushed);
+                    wakeHouseUpdates();
+                }
+            });
+            updateLog(pushActive ? "House pushes updates" : "House does not push updates, polling");
+        }
+    }
+
+    private void revertState(final int run) {
+        new StateSend(run, lastState.get().getState()) {
+            @Override
+            void answered(Boolean taken) {
+                endCycle(run, 0);
+            }
+        }.start();
+    }
+
+    /**
+     * An exchange with the house made for the update cycle or the away timer. It runs off the shard:
+     * a connection that does not block is asked without waiting, with the read deadline kept by the
+     * scheduler; any other connection is asked on the house's exchange lane. The answer is handed
+     * back to the shard, unless the update cycles were stopped or restarted meanwhile
+     */
+    private abstract class Exchange<T> {
+
+        /** the run of update cycles the exchange belongs to */
+        private final int run;
+
+        Exchange(int run) {
+            this.run = run;
+        }
+
+        /**
+         * Exchange with the house and wait for the answer
+         * @return the answer
+         */
+        abstract T call();
+
+        /**
+         * Ask the house without waiting, if the exchange can
+         * @return the pending answer, or null to call {@link #call} on the exchange lane instead
+         */
+        CompletableFuture<T> callAsync() {
+            return null;
+        }
+
+        /**
+         * Take the answer, on the house's shard
+         * @param answer the answer, or null if the house did not answer in time
+         */
+        abstract void answered(T answer);
+
+        /**
+         * Handle an exchange that failed, on the house's shard
+         * @param e what went wrong
+         */
+        void failed(Throwable e) {
+            cycleFailed(run, e);
+        }
+
+        /**
+         * Take an answer that arrived after the update cycles were stopped or restarted
+         * @param answer the answer
+         */
+        void dropped(T answer) {
+        }
 
-                    } else {
-                        missedUpdates++;
+        /**
+         * Start the exchange. It returns at once
+         */
+        void start() {
+            if (connection.isNonBlocking()) {
+                CompletableFuture<T> pending;
+                try {
+                    pending = callAsync();
+                } catch (RuntimeException e) {
+                    finish(null, e);
+                    return;
+                }
+                if (pending != null) {
+                    awaitAnswer(pending);
+                    return;
+                }
+            }
+            try {
+                lane.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        T answer;
+                        try {
+                            answer = call();
+                        } catch (RuntimeException e) {
+                            finish(null, e);
+                            return;
+                        }
+                        finish(answer, null);
                     }
+                });
+            } catch (IllegalStateException | RejectedExecutionException stopped) {
+                // the platform is shutting down
+            }
+        }
 
-                    if (missedUpdates > 6) { // 6 missed updates is 30 seconds
-                        revertState();
+        /**
+         * Give the house its read deadline to answer; an answer that misses it is given up on
+         */
+        private void awaitAnswer(final CompletableFuture<T> pending) {
+            final int timeout = connection.getReadTimeout();
+            final ScheduledFuture<?> deadline;
+            try {
+                deadline = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        pending.completeExceptionally(new IoTTimeoutException("House "
+                                + connection.getAddress() + " did not answer within " + timeout + " ms"));
                     }
+                }, timeout);
+            } catch (IllegalStateException stopped) {
+                // the platform is shutting down
+                pending.cancel(false);
+                return;
+            }
+            pending.whenComplete(new BiConsumer<T, Throwable>() {
+                @Override
+                public void accept(T answer, Throwable failure) {
+                    deadline.cancel(false);
+                    finish(answer, failure);
+                }
+            });
+        }
 
-                    // currently a 5sec delay
+        /**
+         * Hand the answer back to the shard
+         */
+        private void finish(final T answer, final Throwable failure) {
+            runOnShard(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCurrentRun(run)) {
+                        dropped(answer);
+                        return;
+                    }
+                    Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                            ? failure.getCause() : failure;
                     try {
-                        Thread.sleep(5000);
-                    } catch (InterruptedException ie) {
+                        if (cause instanceof IoTTimeoutException) {
+                            // a late answer counts as no answer
+                            updateLog(cause.getMessage());
+                            answered(null);
+                        } else if (cause != null) {
+                            failed(cause);
+                        } else {
+                            answered(answer);
+                        }
+                    } catch (RuntimeException e) {
+                        failed(e);
                     }
                 }
-            }
-        });
-        updateThread.start();
-        updateLog("Started update monitor");
+            }, cyclePriority);
+        }
     }
 
-    private void revertState() {
-        synchronized (connMgr) {
-            connMgr.setState(this.lastState);
+    /**
+     * Sends a state the platform decided on by itself. There is no caller to report a timeout to, so
+     * it is logged and the house is brought in line by the next update cycle
+     */
+    private abstract class StateSend extends Exchange<Boolean> {
+
+        private final Map<String, Object> newState;
+
+        StateSend(int run, Map<String, Object> newState) {
+            super(run);
+            this.newState = newState;
+        }
+
+        @Override
+        Boolean call() {
+            return connMgr.setState(newState);
+        }
+
+        @Override
+        CompletableFuture<Boolean> callAsync() {
+            return connMgr.setStateAsync(newState);
         }
     }
 
+    /**
+     * Exchange with the house and wait for the answer. A blocking connection takes its turn on the
+     * house's exchange lane, so the house sees the exchanges in the order they were decided on
+     * @param exchange the exchange
+     * @return the answer
+     */
+    private <T> T exchangeNow(Callable<T> exchange) {
+        IoTExchangeLane current = lane;
+        if (current == null || connection.isNonBlocking()) {
+            return IoTShardPool.callNow(exchange);
+        }
+        return current.call(exchange);
+    }
+
     /**
      * Connect to a house
      *
@@ -257,6 +1022,26 @@ public class IoTControlManager {
      * @return true if connected, false otherwise
      */
     public Boolean connectToHouse(String houseAddress, Integer housePort, String user, String password) {
+        return connectToHouse(new IoTTcpTransport().createConnection(houseAddress, housePort), user, password);
+    }
+
+    /**
+     * Show the link as CONNECTING until the first attempt to connect is made. Used when the house is
+     * registered before it is connected
+     */
+    public void connectPending() {
+        if (linkState == IoTLinkState.CLOSED && !isConnected()) {
+            linkState = IoTLinkState.CONNECTING;
+        }
+    }
+
+    /**
+     * Connect to a house over a given (not yet established) connection
+     *
+     * @param conn the connection to use, either a blocking or a selector-driven one
+     * @return true if connected, false otherwise
+     */
+    public Boolean connectToHouse(IoTConnection conn, String user, String password) {
         updateLog("Connecting");
         try {
             loginHandler.authenticate(user, password);
@@ -264,15 +1049,19 @@ public class IoTControlManager {
             return false;
         }
 
-        IoTConnection conn = new IoTConnection(houseAddress, housePort);
+        linkState = IoTLinkState.CONNECTING;
+        connection = conn;
         conn.connect();
         connMgr = new IoTConnectManager(conn);
 
         if (connMgr.isConnected()) {
-            startHouseUpdateThread();
+            linkState = IoTLinkState.UP;
+            subscribe();
+            startHouseUpdates();
             return true;
         }
-        updateLog("Connected!");
+        linkState = IoTLinkState.DOWN;
+        updateLog("Could not connect");
         return false;
     }
 
@@ -280,6 +1069,25 @@ public class IoTControlManager {
      * Disconnect from a house
      */
     public void disconnectFromHouse() {
+        linkState = IoTLinkState.CLOSED;
+        synchronized (cycleLock) {
+            // an exchange still in flight is dropped when it answers
+            cycleRun++;
+            // do not wait out a poll or reconnect delay
+            if (nextCycle != null) {
+                nextCycle.cancel(false);
+                nextCycle = null;
+            }
+            if (phase != null) {
+                phase.leave();
+                phase = null;
+            }
+            if (shard != null) {
+                shard.release();
+                shard = null;
+            }
+        }
+        cancelAwayTimer();
         if (connMgr.isConnected()) {
             connMgr.disconnectFromHouse();
         }
@@ -296,40 +1104,99 @@ public class IoTControlManager {
         logMessages.add("[" + sdf.format(new Date(timeStamp)) + "]: " + logEntry + "\n");
     }
 
-    public Vector<String> getLogMessages() {
+    /**
+     * Get the log messages
+     * @return a copy of the log, oldest first
+     */
+    public List<String> getLogMessages() {
+        return logMessages.getEntries();
+    }
+
+    /**
+     * Get the event log itself, e.g. for its counters
+     * @return the log
+     */
+    public IoTEventLog getEventLog() {
         return logMessages;
     }
 
+    /**
+     * Limit the event log. Entries logged so far are discarded; call before connecting
+     * @param maxEntries the most entries to keep
+     * @param maxBytes the most bytes of text to keep
+     */
+    public void setEventLogLimits(int maxEntries, int maxBytes) {
+        logMessages = new IoTEventLog(maxEntries, maxBytes);
+    }
+
     /**
      * Start a timer when the house becomes unoccupied. When the timer expires, lock
-     * the house down
+     * the house down. A timer that is already running is left alone, so the delay
+     * counts from when the house became vacant
      */
     private void startAwayTimer() {
-        Timer t = new Timer();
-
         Integer awayTimeout = (Integer) userSettings.get(IoTValues.ALARM_DELAY);
 
-        t.schedule(new TimerTask() {
-
-            /**
-             * This anonymous thread updates the state when the house is vacant
-             */
-            @Override
-            public void run() {
-
-                // signal that the away timer has fired
-                IoTControlManager.this.lastState.put(IoTValues.AWAY_TIMER, true);
+        synchronized (awayLock) {
+            if (awayTimer != null && awayTimer.isPending()) {
+                return;
+            }
+            awayTimer = scheduler.getTimers().schedule(onShard(new Runnable() {
+
+                /**
+                 * This anonymous task updates the state when the house is vacant
+                 */
+                @Override
+                public void run() {
+                    // someone came back while the timer was being handed off
+                    Map<String, Object> state = new Hashtable<>(lastState.get().getState());
+                    if (Boolean.TRUE.equals(state.get(IoTValues.PROXIMITY_STATE))) {
+                        return;
+                    }
 
-                synchronized (connMgr) {
+                    // signal that the away timer has fired
+                    state.put(IoTValues.AWAY_TIMER, true);
 
                     StringBuffer log = new StringBuffer();
-                    Map<String, Object> newState = stateEvaluator.evaluateState(IoTControlManager.this.lastState, log);
+                    Map<String, Object> newState = stateEvaluator.evaluateState(state, log);
                     logMessages.add(log.toString());
-                    connMgr.setState(newState);
-                    IoTControlManager.this.lastState.putAll(newState);
+                    publishState(newState, false);
+                    new StateSend(currentRun(), newState) {
+                        @Override
+                        void answered(Boolean taken) {
+                            // the next update cycle sends it again if the house did not take it
+                        }
+
+                        @Override
+                        void failed(Throwable e) {
+                            updateLog("Lock down failed: " + e.getMessage());
+                        }
+                    }.start();
                 }
+            }, IoTPriority.SECURITY), awayTimeout * 1000);
+        }
+    }
+
+    /**
+     * Stop the away timer, e.g. because the house is occupied again. It can be started again later
+     */
+    private void cancelAwayTimer() {
+        synchronized (awayLock) {
+            if (awayTimer != null) {
+                awayTimer.cancel();
+                awayTimer = null;
             }
-        }, awayTimeout * 1000);
+        }
+    }
+
+    /**
+     * Is the away timer running?
+     * @return true if the house will be locked down when it expires
+     */
+    public boolean isAwayTimerRunning() {
+        synchronized (awayLock) {
+            return awayTimer != null && awayTimer.isPending();
+        }
     }
 
     /**
@@ -0,0 +1,202 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The event log of one house, kept within a fixed number of entries and bytes. When either cap is
+ * reached the oldest entries are dropped. Entries are stored as UTF-8 bytes, and an entry that only
+ * repeats the one before it (apart from the timestamps) is not stored again: the earlier entry
+ * takes the newer text and counts the repeat. A poll that finds nothing new therefore costs nothing.
+ */
+public class IoTEventLog {
+
+    /** the default caps: a few hours of a busy house */
+    public static final int DEFAULT_MAX_ENTRIES = 500;
+    public static final int DEFAULT_MAX_BYTES = 256 * 1024;
+
+    private final int maxEntries;
+    private final int maxBytes;
+
+    /** the ring: entry i is at (head + i) % capacity */
+    private final byte[][] entries;
+    private final int[] repeats;
+    private int head = 0;
+    private int size = 0;
+    private int bytes = 0;
+
+    /** what the caps cost */
+    private long dropped = 0;
+    private long truncated = 0;
+    private long compacted = 0;
+
+    /**
+     * Create a log
+     * @param maxEntries the most entries to keep
+     * @param maxBytes the most bytes of text to keep
+     */
+    public IoTEventLog(int maxEntries, int maxBytes) {
+        if (maxEntries < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("An event log needs room for at least one entry");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.entries = new byte[maxEntries][];
+        this.repeats = new int[maxEntries];
+    }
+
+    /**
+     * Add an entry
+     * @param entry the text; empty entries are ignored
+     */
+    public synchronized void add(String entry) {
+        if (entry == null || entry.isEmpty()) {
+            return;
+        }
+        if (size > 0) {
+            int last = (head + size - 1) % maxEntries;
+            String previous = new String(entries[last], StandardCharsets.UTF_8);
+            if (withoutTimestamps(previous).equals(withoutTimestamps(entry))) {
+                // keep the newer timestamps
+                byte[] text = encode(entry);
+                bytes += text.length - entries[last].length;
+                entries[last] = text;
+                repeats[last]++;
+                compacted++;
+                while (size > 1 && bytes > maxBytes) {
+                    dropOldest();
+                }
+                return;
+            }
+        }
+
+        byte[] text = encode(entry);
+        while (size > 0 && (size == maxEntries || bytes + text.length > maxBytes)) {
+            dropOldest();
+        }
+        int slot = (head + size) % maxEntries;
+        entries[slot] = text;
+        repeats[slot] = 0;
+        bytes += text.length;
+        size++;
+    }
+
+    /**
+     * Get the entries, oldest first. Repeated entries say how often they repeated, and dropped
+     * entries are noted at the start
+     * @return a copy of the log
+     */
+    public synchronized List<String> getEntries() {
+        List<String> copy = new ArrayList<>(size + 1);
+        if (dropped > 0) {
+            copy.add(dropped + " earlier entries were dropped\n");
+        }
+        for (int i = 0; i < size; i++) {
+            int slot = (head + i) % maxEntries;
+            String text = new String(entries[slot], StandardCharsets.UTF_8);
+            if (repeats[slot] > 0) {
+                text += "(repeated " + repeats[slot] + " more times)\n";
+            }
+            copy.add(text);
+        }
+        return copy;
+    }
+
+    /**
+     * Get the number of entries kept
+     * @return the count
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of bytes of text kept
+     * @return the count
+     */
+    public synchronized int getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get the number of entries dropped to stay within the caps
+     * @return the count
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Get the number of entries cut short because they alone exceeded the byte cap
+     * @return the count
+     */
+    public synchronized long getTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Get the number of entries folded into the one before them
+     * @return the count
+     */
+    public synchronized long getCompacted() {
+        return compacted;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    private void dropOldest() {
+        bytes -= entries[head].length;
+        entries[head] = null;
+        head = (head + 1) % maxEntries;
+        size--;
+        dropped++;
+    }
+
+    private byte[] encode(String entry) {
+        byte[] text = entry.getBytes(StandardCharsets.UTF_8);
+        if (text.length <= maxBytes) {
+            return text;
+        }
+        truncated++;
+        // do not split a character: back off past continuation bytes (10xxxxxx) to where one starts
+        int end = maxBytes;
+        while (end > 0 && (text[end] & 0xC0) == 0x80) {
+            end--;
+        }
+        byte[] cut = new byte[end];
+        System.arraycopy(text, 0, cut, 0, end);
+        return cut;
+    }
+
+    /**
+     * Remove the "[Mmm dd,yyyy HH:mm]: " prefix from each line, so entries that differ only in when
+     * they were written compare equal
+     */
+    private static String withoutTimestamps(String entry) {
+        StringBuilder sb = new StringBuilder(entry.length());
+        int start = 0;
+        while (start < entry.length()) {
+            int end = entry.indexOf('\n', start);
+            if (end < 0) {
+                end = entry.length();
+            }
+            int body = start;
+            if (entry.charAt(start) == '[') {
+                int close = entry.indexOf("]: ", start);
+                if (close > 0 && close < end) {
+                    body = close + 3;
+                }
+            }
+            sb.append(entry, body, end).append('\n');
+            start = end + 1;
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,149 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the blocking exchanges of one house on the scheduler's shared exchange threads, one at a
+ * time and in the order they were handed in. A house that stops answering holds at most one
+ * exchange thread, for as long as its read deadline, and the exchanges of a house reach it in the
+ * order the house's shard decided on them.
+ */
+public class IoTExchangeLane implements Executor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IoTExchangeLane.class);
+
+    private final Executor threads;
+
+    /** exchanges waiting their turn; guarded by itself */
+    private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+
+    /** true while an exchange thread is working through the lane */
+    private boolean draining = false;
+
+    /** the thread working through the lane, if any */
+    private volatile Thread current = null;
+
+    /**
+     * Create a lane
+     * @param threads the shared exchange threads
+     */
+    public IoTExchangeLane(Executor threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Queue an exchange behind the others of this house
+     * @param exchange the exchange
+     * @throws IllegalStateException if the exchange threads have stopped
+     */
+    @Override
+    public void execute(Runnable exchange) {
+        synchronized (waiting) {
+            waiting.add(exchange);
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        try {
+            threads.execute(drain);
+        } catch (RuntimeException stopped) {
+            synchronized (waiting) {
+                waiting.clear();
+                draining = false;
+            }
+            throw stopped;
+        }
+    }
+
+    /**
+     * Run an exchange in its turn and wait for it
+     * @param exchange the exchange
+     * @return the answer
+     * @throws IoTTimeoutException if interrupted while waiting
+     */
+    public <T> T call(Callable<T> exchange) {
+        if (isCurrent()) {
+            return IoTShardPool.callNow(exchange);
+        }
+        FutureTask<T> future = new FutureTask<>(exchange);
+        execute(future);
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IoTTimeoutException("Interrupted waiting for the house");
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            if (ee.getCause() instanceof Error) {
+                throw (Error) ee.getCause();
+            }
+            throw new IllegalStateException(ee.getCause());
+        }
+    }
+
+    /**
+     * Is this the thread working through the lane?
+     * @return true when called from an exchange of this lane
+     */
+    public boolean isCurrent() {
+        return Thread.currentThread() == current;
+    }
+
+    /**
+     * Get the number of exchanges waiting their turn
+     * @return the count
+     */
+    public int getWaiting() {
+        synchronized (waiting) {
+            return waiting.size();
+        }
+    }
+
+    /** works through the lane until it is empty */
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            current = Thread.currentThread();
+            boolean drained = false;
+            try {
+                while (!drained) {
+                    Runnable exchange;
+                    synchronized (waiting) {
+                        exchange = waiting.poll();
+                        if (exchange == null) {
+                            // hand the lane back before another thread can pick it up
+                            current = null;
+                            draining = false;
+                            drained = true;
+                            continue;
+                        }
+                    }
+                    try {
+                        exchange.run();
+                    } catch (RuntimeException e) {
+                        // one failed exchange must not strand the ones behind it
+                        LOGGER.warn("House exchange failed", e);
+                    }
+                }
+            } finally {
+                if (!drained) {
+                    synchronized (waiting) {
+                        current = null;
+                        draining = false;
+                    }
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,306 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A hub that fronts many houses over one connection. Every message on the link names the house it
+ * is for ({@code 17#mse@GS.} is answered by {@code 17#mse@SU:...}), and the link is pipelined, so
+ * all the houses share it without waiting for each other.
+ *
+ * A batch poll ({@code *@GS.}) fetches every house in one frame:
+ *
+ * <pre>
+ *   *@mse@SU:TR=65;...;NM=0.|hc@SU:TR=70;...;NM=1.
+ * </pre>
+ *
+ * The houses are polled on their own schedules, so a state request starts a batch poll and the
+ * houses that ask while it is fresh ({@link #DEFAULT_BATCH_WINDOW} ms) are answered from it. Each
+ * house talks to the gateway through its own {@link IoTGatewayConnection}.
+ */
+public class IoTGateway {
+
+    /** how long, in ms, the answer to a batch poll is used for the houses that ask after it */
+    public static final int DEFAULT_BATCH_WINDOW = 1000;
+
+    private static final String BATCH_PREFIX = IoTValues.ALL_UNITS + IoTValues.UNIT_DELIM;
+
+    private final IoTNioConnection link;
+
+    private int batchWindow = DEFAULT_BATCH_WINDOW;
+
+    // The latest batch poll: the raw request, its answer by house, and when it was sent
+    private CompletableFuture<String> batchRequest;
+    private CompletableFuture<Map<String, String>> batch;
+    private long batchStarted;
+
+    private final AtomicLong batchPolls = new AtomicLong();
+    private final AtomicLong unitPolls = new AtomicLong();
+
+    /**
+     * Create a gateway; it connects when the first of its houses does
+     * @param address the hub address
+     * @param port the hub port
+     * @param engine the engine that owns the hub socket
+     */
+    public IoTGateway(String address, Integer port, IoTSelectorEngine engine) {
+        link = new IoTNioConnection(address, port, engine);
+        link.setPipelined(true);
+    }
+
+    /**
+     * Get a connection to one of the houses behind this gateway
+     * @param unit the house id
+     * @return the connection
+     */
+    public IoTGatewayConnection connectionFor(String unit) {
+        return new IoTGatewayConnection(this, unit);
+    }
+
+    public String getAddress() {
+        return link.getAddress();
+    }
+
+    public Integer getPort() {
+        return link.getPort();
+    }
+
+    /**
+     * Set how long the answer to a batch poll is used
+     * @param batchWindow the window in ms; 0 polls every house on its own
+     */
+    public void setBatchWindow(int batchWindow) {
+        this.batchWindow = batchWindow;
+    }
+
+    /**
+     * Set the deadlines of the hub link. The houses share the link, so the last setting wins
+     * @param connectTimeout ms to wait for the hub to accept a connection
+     * @param readTimeout ms to wait for an answer
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        link.setTimeouts(connectTimeout, readTimeout);
+    }
+
+    /**
+     * Connect to the hub unless already connected
+     * @return true if the link is up
+     */
+    public synchronized boolean connect() {
+        if (link.isConnected()) {
+            return true;
+        }
+        batch = null;
+        return link.connect();
+    }
+
+    /**
+     * Is the link to the hub up?
+     * @return true if connected
+     */
+    public boolean isConnected() {
+        return link.isConnected();
+    }
+
+    /**
+     * Close the link to the hub, for every house behind it
+     */
+    public void disconnect() {
+        link.disconnect();
+    }
+
+    /**
+     * Send a message to one house and wait for the answer
+     * @param unit the house id
+     * @param msg the message
+     * @return the answer without the house id, or null if the link failed
+     * @throws IoTTimeoutException if the hub does not answer in time
+     */
+    String send(String unit, String msg) {
+        forgetIfChange(unit, msg);
+        return strip(unit, link.sendMessageToHouse(unit + IoTValues.UNIT_DELIM + msg));
+    }
+
+    /**
+     * Send a message to one house without waiting
+     * @param unit the house id
+     * @param msg the message
+     * @return the answer without the house id; it completes with null if the link failed
+     */
+    CompletableFuture<String> sendAsync(final String unit, String msg) {
+        forgetIfChange(unit, msg);
+        return link.sendMessageAsync(unit + IoTValues.UNIT_DELIM + msg)
+                .thenApply(new Function<String, String>() {
+                    @Override
+                    public String apply(String response) {
+                        return strip(unit, response);
+                    }
+                });
+    }
+
+    /**
+     * Get the state of one house, from a fresh batch poll if there is one
+     * @param unit the house id
+     * @return the state update message, or null if the link failed
+     * @throws IoTTimeoutException if the hub does not answer in time
+     */
+    String getState(String unit) {
+        Map<String, String> states;
+        try {
+            states = currentBatch().get(link.getReadTimeout(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | CancellationException e) {
+            states = null;
+        } catch (TimeoutException te) {
+            throw new IoTTimeoutException("Gateway " + getAddress() + " did not answer within "
+                    + link.getReadTimeout() + " ms");
+        }
+        String state = states != null ? states.get(unit) : null;
+        if (state != null) {
+            return state;
+        }
+        // not in the batch (or the batch failed): ask the house itself
+        unitPolls.incrementAndGet();
+        return strip(unit, link.sendMessageToHouse(unit + IoTValues.UNIT_DELIM + getStateMessage()));
+    }
+
+    /**
+     * Get the state of one house without waiting
+     * @param unit the house id
+     * @return the state update message; it completes with null if the link failed
+     */
+    CompletableFuture<String> getStateAsync(final String unit) {
+        return currentBatch().thenCompose(new Function<Map<String, String>, CompletionStage<String>>() {
+            @Override
+            public CompletionStage<String> apply(Map<String, String> states) {
+                String state = states != null ? states.get(unit) : null;
+                if (state != null) {
+                    return CompletableFuture.completedFuture(state);
+                }
+                unitPolls.incrementAndGet();
+                return link.sendMessageAsync(unit + IoTValues.UNIT_DELIM + getStateMessage())
+                        .thenApply(new Function<String, String>() {
+                            @Override
+                            public String apply(String response) {
+                                return strip(unit, response);
+                            }
+                        });
+            }
+        });
+    }
+
+    /**
+     * Get the batch poll that answers a state request made now, starting one if the last is stale
+     * @return the state update message of each house, or null if the poll failed
+     */
+    private synchronized CompletableFuture<Map<String, String>> currentBatch() {
+        long now = System.currentTimeMillis();
+        if (batch != null) {
+            if (!batch.isDone() && now - batchStarted <= link.getReadTimeout()) {
+                return batch;
+            }
+            if (batch.isDone() && batch.getNow(null) != null && now - batchStarted <= batchWindow) {
+                return batch;
+            }
+            if (!batchRequest.isDone()) {
+                link.cancel(batchRequest);
+            }
+        }
+        batchPolls.incrementAndGet();
+        batchStarted = now;
+        batchRequest = link.sendMessageAsync(BATCH_PREFIX + getStateMessage());
+        batch = batchRequest.thenApply(new Function<String, Map<String, String>>() {
+            @Override
+            public Map<String, String> apply(String response) {
+                return splitBatch(response);
+            }
+        });
+        return batch;
+    }
+
+    /**
+     * Drop a house from the latest batch poll if a message may change it; after a change its state
+     * must be asked for afresh
+     * @param unit the house id
+     * @param msg the message
+     */
+    private synchronized void forgetIfChange(String unit, String msg) {
+        if (msg.startsWith(IoTValues.GET_STATE)) {
+            return;
+        }
+        if (batch != null && batch.isDone()) {
+            Map<String, String> states = batch.getNow(null);
+            if (states != null) {
+                states.remove(unit);
+            }
+        }
+    }
+
+    /**
+     * Split the answer to a batch poll by house
+     * @param response the answer
+     * @return the state update message of each house, or null if the answer is malformed
+     */
+    static Map<String, String> splitBatch(String response) {
+        if (response == null || !response.startsWith(BATCH_PREFIX)) {
+            return null;
+        }
+        Map<String, String> states = new ConcurrentHashMap<>();
+        int start = BATCH_PREFIX.length();
+        while (start < response.length()) {
+            int end = response.indexOf(IoTValues.BATCH_DELIM, start);
+            if (end < 0) {
+                end = response.length();
+            }
+            int delim = response.indexOf(IoTValues.UNIT_DELIM, start);
+            if (delim > start && delim < end) {
+                states.put(response.substring(start, delim), response.substring(delim + 1, end));
+            }
+            start = end + 1;
+        }
+        return states;
+    }
+
+    /**
+     * Remove the house id from an answer
+     * @param unit the house the answer should be from
+     * @param response the answer
+     * @return the message, or null if the answer is missing or from another house
+     */
+    private static String strip(String unit, String response) {
+        if (response == null || !response.startsWith(unit + IoTValues.UNIT_DELIM)) {
+            return null;
+        }
+        return response.substring(unit.length() + 1);
+    }
+
+    private static String getStateMessage() {
+        return IoTValues.GET_STATE + IoTValues.MSG_END;
+    }
+
+    /**
+     * Get the number of batch polls sent
+     * @return the count
+     */
+    public long getBatchPolls() {
+        return batchPolls.get();
+    }
+
+    /**
+     * Get the number of state requests that could not be answered from a batch poll
+     * @return the count
+     */
+    public long getUnitPolls() {
+        return unitPolls.get();
+    }
+}
@@ -0,0 +1,129 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The connection to one house behind an {@link IoTGateway}. It speaks the text protocol; the
+ * gateway adds the house id to each message and shares state requests between its houses.
+ *
+ * Disconnecting one house does not close the link, which the other houses still use. A house
+ * that stops answering is dropped on its own and reconnects by rejoining the link.
+ */
+public class IoTGatewayConnection extends IoTConnection {
+
+    private final IoTGateway gateway;
+    private final String unit;
+
+    private volatile boolean joined = false;
+
+    /**
+     * Create a connection to a house behind a gateway
+     * @param gateway the gateway
+     * @param unit the house id
+     */
+    public IoTGatewayConnection(IoTGateway gateway, String unit) {
+        super(gateway.getAddress(), gateway.getPort());
+        this.gateway = gateway;
+        this.unit = unit;
+    }
+
+    /**
+     * Get the id of the house at the gateway
+     * @return the house id
+     */
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * The gateway link is pipelined, so callers need not take turns
+     * @return true
+     */
+    @Override
+    public boolean isPipelined() {
+        return true;
+    }
+
+    /**
+     * The gateway link is selector-driven, so the async send methods do not wait for the hub
+     * @return true
+     */
+    @Override
+    public boolean isNonBlocking() {
+        return true;
+    }
+
+    @Override
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        super.setTimeouts(connectTimeout, readTimeout);
+        gateway.setTimeouts(connectTimeout, readTimeout);
+    }
+
+    @Override
+    public Boolean isConnected() {
+        return joined && gateway.isConnected();
+    }
+
+    /**
+     * Join the gateway link, connecting it if this is the first house to ask
+     * @return true if the link is up
+     */
+    @Override
+    public Boolean connect() {
+        joined = gateway.connect();
+        return joined;
+    }
+
+    /**
+     * Leave the gateway link; it stays open for the other houses
+     */
+    @Override
+    public void disconnect() {
+        joined = false;
+    }
+
+    /**
+     * Send a message to the house and wait for the answer. State requests may be answered from the
+     * gateway's latest batch poll
+     * @param msg the message to send
+     * @return the answer or null if the link failed
+     * @throws IoTTimeoutException if the gateway does not answer within the read deadline
+     */
+    @Override
+    public String sendMessageToHouse(String msg) {
+        if (!joined) {
+            return null;
+        }
+        if (isGetState(msg)) {
+            return gateway.getState(unit);
+        }
+        return gateway.send(unit, msg);
+    }
+
+    @Override
+    public String sendMessageToHouse(ByteBuffer frame) {
+        return sendMessageToHouse(StandardCharsets.US_ASCII.decode(frame).toString());
+    }
+
+    @Override
+    public CompletableFuture<String> sendMessageAsync(String msg) {
+        if (!joined) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (isGetState(msg)) {
+            return gateway.getStateAsync(unit);
+        }
+        return gateway.sendAsync(unit, msg);
+    }
+
+    @Override
+    public CompletableFuture<String> sendMessageAsync(ByteBuffer frame) {
+        return sendMessageAsync(StandardCharsets.US_ASCII.decode(frame).toString());
+    }
+
+    private static boolean isGetState(String msg) {
+        return msg.equals(IoTValues.GET_STATE + IoTValues.MSG_END);
+    }
+}
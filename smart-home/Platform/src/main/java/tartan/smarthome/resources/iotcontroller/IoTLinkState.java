@@ -0,0 +1,27 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * The state of the link to a house, as seen by its {@link IoTControlManager}
+ *
+ * <pre>
+ *   CONNECTING --connected--> UP --missed heartbeat--> SUSPECT --answer--> UP
+ *        ^                                                |
+ *        |                                   heartbeats missed or socket failed
+ *        |                                                v
+ *        +----------------backoff elapsed--------------- DOWN
+ * </pre>
+ *
+ * CLOSED is final: the platform disconnected on purpose and does not reconnect.
+ */
+public enum IoTLinkState {
+    /** a connection attempt is in progress */
+    CONNECTING,
+    /** the house answers */
+    UP,
+    /** the house missed a heartbeat; the link is still used */
+    SUSPECT,
+    /** the link is dead; a reconnect is scheduled */
+    DOWN,
+    /** disconnected on purpose */
+    CLOSED
+}
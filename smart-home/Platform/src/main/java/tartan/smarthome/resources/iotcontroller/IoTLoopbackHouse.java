@@ -0,0 +1,144 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * A simulated house that lives in this process and speaks the text protocol. It starts out like the
+ * house simulators: 65 degrees, 90% humidity, door closed and lights on with someone home. Each state
+ * request moves the temperature one degree towards what the heater or chiller is doing.
+ *
+ * It is reached through {@link IoTLoopbackTransport}, so the controller, codecs and rules can be
+ * exercised without sockets or a simulator process.
+ */
+public class IoTLoopbackHouse {
+
+    /** the answer to a request the house does not understand, as the simulators give it */
+    private static final String ERROR = "ERR" + IoTValues.MSG_END;
+
+    private final IoTState state = new IoTState();
+    private final IoTStateCodec codec = new IoTStateCodec();
+    private final IoTState request = new IoTState();
+    private final StringBuilder response = new StringBuilder(IoTStateCodec.MAX_FRAME);
+
+    // the number of requests answered
+    private long requests = 0;
+
+    /**
+     * Create a house in its initial state
+     */
+    public IoTLoopbackHouse() {
+        reset();
+    }
+
+    /**
+     * Put the house back in its initial state
+     */
+    public synchronized void reset() {
+        state.clear();
+        state.set(IoTState.TEMP_READING, 65);
+        state.set(IoTState.HUMIDITY_READING, 90);
+        state.setFlag(IoTState.DOOR_STATE, true);
+        state.setFlag(IoTState.LIGHT_STATE, true);
+        state.setFlag(IoTState.PROXIMITY_STATE, true);
+        state.setFlag(IoTState.ALARM_STATE, false);
+        state.setFlag(IoTState.ALARM_ACTIVE, false);
+        state.setFlag(IoTState.HEATER_STATE, false);
+        state.setFlag(IoTState.CHILLER_STATE, false);
+        state.setFlag(IoTState.HVAC_MODE, true);
+        state.setFlag(IoTState.HUMIDIFIER_STATE, false);
+        state.setFlag(IoTState.LOCK_STATE, false);
+        state.setFlag(IoTState.INTRUDER_DETECT, false);
+        state.setFlag(IoTState.NIGHT_MODE, false);
+        requests = 0;
+    }
+
+    /**
+     * Answer a request, as the house would over a socket
+     * @param msg the request, e.g. {@code GS.} or {@code SS:LS=0.}
+     * @return the response, e.g. a state update or {@code OK.}
+     */
+    public synchronized String handle(String msg) {
+        requests++;
+        if (msg.startsWith(IoTValues.GET_STATE)) {
+            simulate();
+            return stateUpdate(requestedSlots(msg));
+        }
+        if (msg.startsWith(IoTValues.SET_STATE + IoTValues.MSG_DELIM)) {
+            // a set state request is laid out like a state update
+            String update = IoTValues.STATE_UPDATE + msg.substring(IoTValues.SET_STATE.length());
+            if (!codec.decodeStateUpdate(update, request)) {
+                return ERROR;
+            }
+            for (int slot = 0; slot < IoTState.KEY_COUNT; slot++) {
+                if (request.has(slot) && IoTStateCodec.isSettable(slot)) {
+                    state.setFlag(slot, request.getFlag(slot));
+                }
+            }
+            return IoTValues.OK + IoTValues.MSG_END;
+        }
+        return ERROR;
+    }
+
+    /**
+     * Change a slot directly, as a sensor would, e.g. to open the door in a test
+     * @param slot the slot
+     * @param value the new value; 0 or 1 for flags
+     */
+    public synchronized void set(int slot, int value) {
+        state.set(slot, value);
+    }
+
+    /**
+     * Get a slot
+     * @param slot the slot
+     * @return the value; 0 or 1 for flags
+     */
+    public synchronized int get(int slot) {
+        return state.get(slot);
+    }
+
+    /**
+     * Get the number of requests answered
+     * @return the count
+     */
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    private void simulate() {
+        int temp = state.get(IoTState.TEMP_READING);
+        if (state.getFlag(IoTState.HEATER_STATE)) {
+            state.set(IoTState.TEMP_READING, temp + 1);
+        } else if (state.getFlag(IoTState.CHILLER_STATE)) {
+            state.set(IoTState.TEMP_READING, temp - 1);
+        }
+    }
+
+    private int requestedSlots(String msg) {
+        int start = IoTValues.GET_STATE.length() + IoTValues.MSG_DELIM.length();
+        if (!msg.startsWith(IoTValues.MSG_DELIM, IoTValues.GET_STATE.length()) || !msg.endsWith(IoTValues.MSG_END)) {
+            return IoTState.ALL_SLOTS;
+        }
+        int mask = 0;
+        for (String key : msg.substring(start, msg.length() - 1).split(IoTValues.PARAM_DELIM)) {
+            int slot = IoTState.indexOf(key);
+            if (slot >= 0) {
+                mask |= 1 << slot;
+            }
+        }
+        return mask != 0 ? mask : IoTState.ALL_SLOTS;
+    }
+
+    private String stateUpdate(int mask) {
+        response.setLength(0);
+        response.append(IoTValues.STATE_UPDATE).append(IoTValues.MSG_DELIM);
+        for (int slot = 0; slot < IoTState.KEY_COUNT; slot++) {
+            if ((mask & (1 << slot)) == 0) {
+                continue;
+            }
+            if (response.length() > IoTValues.STATE_UPDATE.length() + 1) {
+                response.append(IoTValues.PARAM_DELIM);
+            }
+            response.append(IoTState.keyOf(slot)).append(IoTValues.PARAM_EQ).append(state.get(slot));
+        }
+        return response.append(IoTValues.MSG_END).toString();
+    }
+}
@@ -0,0 +1,104 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reach simulated houses that live in this process. A house is named by its address; the first
+ * connection to an address creates it, and later connections to the same address see the same house.
+ * Requests are answered by a method call, with no socket or thread in between, so tests and
+ * benchmarks measure the platform rather than the network.
+ */
+public class IoTLoopbackTransport implements IoTTransport {
+
+    private static final IoTLoopbackTransport SHARED = new IoTLoopbackTransport();
+
+    private final ConcurrentMap<String, IoTLoopbackHouse> houses = new ConcurrentHashMap<>();
+
+    /**
+     * Get the transport the house settings refer to, so houses can be reached from outside the
+     * controller, e.g. to open a door in a test
+     * @return the transport shared by the whole process
+     */
+    public static IoTLoopbackTransport shared() {
+        return SHARED;
+    }
+
+    @Override
+    public String getName() {
+        return LOOPBACK;
+    }
+
+    /**
+     * Get a simulated house, creating it if needed
+     * @param address the name of the house
+     * @return the house
+     */
+    public IoTLoopbackHouse house(String address) {
+        IoTLoopbackHouse house = houses.get(address);
+        if (house == null) {
+            IoTLoopbackHouse created = new IoTLoopbackHouse();
+            house = houses.putIfAbsent(address, created);
+            if (house == null) {
+                house = created;
+            }
+        }
+        return house;
+    }
+
+    /**
+     * Create a connection to a simulated house
+     * @param address the name of the house
+     * @param port not used
+     * @return the connection
+     */
+    @Override
+    public IoTConnection createConnection(String address, Integer port) {
+        return new LoopbackConnection(address, port, house(address));
+    }
+
+    /**
+     * A connection that hands each request straight to the house. It always speaks the text protocol
+     */
+    private static class LoopbackConnection extends IoTConnection {
+
+        private final IoTLoopbackHouse house;
+        private volatile boolean connected = false;
+
+        LoopbackConnection(String address, Integer port, IoTLoopbackHouse house) {
+            super(address, port);
+            this.house = house;
+        }
+
+        @Override
+        public Boolean connect() {
+            connected = true;
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+            connected = false;
+        }
+
+        @Override
+        public Boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public String sendMessageToHouse(String msg) {
+            if (!connected) {
+                return null;
+            }
+            return house.handle(msg);
+        }
+
+        @Override
+        public String sendMessageToHouse(ByteBuffer frame) {
+            return sendMessageToHouse(StandardCharsets.US_ASCII.decode(frame).toString());
+        }
+    }
+}
@@ -0,0 +1,837 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A non-blocking connection to an IoT-enabled house. The socket is owned by one of the selector loops
+ * of an {@link IoTSelectorEngine}; callers never block on the socket itself. Requests are written in
+ * order and responses, which are newline terminated, are matched to requests in the same order.
+ *
+ * When pipelining is enabled every request is tagged with a sequence id ({@code 17#GS.}) and the
+ * house echoes the tag on its response ({@code 17#SU:...}). Any number of requests may then be in
+ * flight at once and responses may arrive in any order. Untagged responses are still matched to the
+ * oldest outstanding request.
+ *
+ * When the binary protocol is agreed at connect time the same connection switches to
+ * length-prefixed frames (see {@link IoTBinaryCodec}), which always carry a sequence id.
+ *
+ * A subscribed house also sends updates on its own: text lines tagged {@code *#SU:...} or binary
+ * {@code PUSH_UPDATE} frames. These are decoded on the loop thread and handed to the listener.
+ */
+public class IoTNioConnection extends IoTConnection {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IoTNioConnection.class);
+
+    /** the largest response line accepted from a house */
+    private static final int MAX_LINE = 64 * 1024;
+
+    private final IoTSelectorEngine engine;
+
+    /** the selector loop that owns this connection */
+    private IoTSelectorEngine.SelectorLoop loop;
+
+    private SocketChannel channel;
+    private SelectionKey key;
+
+    private volatile boolean connected = false;
+    private boolean closed = false;
+
+    private CompletableFuture<Boolean> connectResult;
+
+    /** outbound frames waiting for the socket to become writable */
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+
+    /** requests waiting for a response by sequence id, in the order they were written */
+    private final Map<Integer, CompletableFuture<String>> pending = new LinkedHashMap<>();
+
+    /** guards pending and keeps the write order and the pending order identical */
+    private final Object sendLock = new Object();
+
+    /** tag requests with sequence ids */
+    private boolean pipelined = false;
+    private int nextSequence = 0;
+
+    /** binary requests waiting for a response by sequence id */
+    private final Map<Integer, CompletableFuture<ByteBuffer>> pendingFrames = new LinkedHashMap<>();
+
+    /** the handshake request while it is outstanding */
+    private CompletableFuture<String> handshake = null;
+
+    /** receives pushed updates once subscribed */
+    private volatile IoTStateListener listener = null;
+
+    /** decodes pushed updates, only touched by the loop thread */
+    private final IoTStateCodec pushCodec = new IoTStateCodec();
+    private final IoTState pushState = new IoTState();
+    private final ByteBuffer pushFrame = ByteBuffer.allocate(IoTStateCodec.MAX_FRAME);
+
+    /** framing state, only touched by the loop thread. The read buffer is borrowed from the pool
+     * while the channel is registered */
+    private ByteBuffer readBuffer = null;
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+
+    /** binary framing: the frame length once its varint has been read, or -1 while reading it */
+    private boolean binaryFraming = false;
+    private int frameLength = -1;
+    private int lengthValue = 0;
+    private int lengthShift = 0;
+
+    /**
+     * Create a connection that will be driven by an engine
+     * @param addr the house address
+     * @param port the house port
+     * @param engine the engine that owns the socket
+     */
+    public IoTNioConnection(String addr, Integer port, IoTSelectorEngine engine) {
+        super(addr, port);
+        this.engine = engine;
+    }
+
+    /**
+     * Get connection state
+     * @return true if connected, false otherwise
+     */
+    @Override
+    public Boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Enable or disable sequence-tagged requests. The house must support the extension
+     * @param pipelined true to tag requests
+     */
+    public void setPipelined(boolean pipelined) {
+        synchronized (sendLock) {
+            this.pipelined = pipelined;
+        }
+    }
+
+    /**
+     * Is this connection pipelined?
+     * @return true if several requests may be in flight at once
+     */
+    @Override
+    public boolean isPipelined() {
+        synchronized (sendLock) {
+            return pipelined || getProtocol() == IoTProtocol.BINARY;
+        }
+    }
+
+    /**
+     * The selector loop writes the requests and reads the answers, so the async send methods only
+     * queue the request
+     * @return true
+     */
+    @Override
+    public boolean isNonBlocking() {
+        return true;
+    }
+
+    /**
+     * Connect to the house. The caller waits until the connection is established or has failed.
+     * The previous channel, if any, is torn down on its loop first, so nothing left over from it
+     * can touch the new one
+     * @return true if connection successful, false otherwise
+     */
+    @Override
+    public Boolean connect() {
+        SocketChannel opened = null;
+        try {
+            retire();
+
+            opened = SocketChannel.open();
+            opened.configureBlocking(false);
+            opened.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            IoTSelectorEngine.SelectorLoop owner = engine.nextLoop();
+            CompletableFuture<Boolean> result = new CompletableFuture<>();
+            synchronized (sendLock) {
+                channel = opened;
+                loop = owner;
+                connectResult = result;
+                closed = false;
+                setProtocol(IoTProtocol.TEXT);
+                binaryFraming = false;
+            }
+
+            final SocketChannel connecting = opened;
+            final boolean established = connecting.connect(new InetSocketAddress(getAddress(), getPort()));
+            owner.execute(new Runnable() {
+                @Override
+                public void run() {
+                    register(connecting, established);
+                }
+            });
+            if (!result.get(getConnectTimeout(), TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            if (isBinaryOffered()) {
+                negotiate();
+            }
+            return true;
+
+        } catch (UnresolvedAddressException uae) {
+            LOGGER.warn("Unknown host: {}", getAddress());
+        } catch (IOException | IllegalStateException | ExecutionException e) {
+            // fall through to failure
+        } catch (TimeoutException te) {
+            // the house did not accept in time; the loop may have registered the channel already
+            post(opened, te);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        closeChannel(opened);
+        return false;
+    }
+
+    /**
+     * Tear down the current channel on its loop and wait for that to finish. Requests still in
+     * flight on it complete with no response
+     */
+    private void retire() throws InterruptedException {
+        SocketChannel old;
+        IoTSelectorEngine.SelectorLoop oldLoop;
+        synchronized (sendLock) {
+            old = channel;
+            oldLoop = loop;
+        }
+        if (old == null) {
+            return;
+        }
+        final CompletableFuture<Void> retired = new CompletableFuture<>();
+        final SocketChannel retiring = old;
+        oldLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handleFailure(retiring, new IOException("reconnecting"));
+                } finally {
+                    retired.complete(null);
+                }
+            }
+        });
+        try {
+            // a stopped engine never runs the task; its loops have closed everything already
+            retired.get(getConnectTimeout(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            closeChannel(old);
+        }
+    }
+
+    /**
+     * Fail a channel on the loop thread
+     * @param failed the channel to tear down
+     * @param cause the reason
+     */
+    private void post(final SocketChannel failed, final Exception cause) {
+        IoTSelectorEngine.SelectorLoop owner;
+        synchronized (sendLock) {
+            owner = loop;
+        }
+        if (owner == null) {
+            return;
+        }
+        owner.execute(new Runnable() {
+            @Override
+            public void run() {
+                handleFailure(failed, cause);
+            }
+        });
+    }
+
+    /**
+     * Offer the binary protocol and wait a bounded time for the house to echo the handshake. The
+     * switch to binary framing happens on the loop thread as the echo is read, so a frame that
+     * follows it in the same read is already parsed as binary
+     */
+    private void negotiate() throws InterruptedException {
+        CompletableFuture<String> hello;
+        synchronized (sendLock) {
+            handshake = sendMessageAsync(HELLO_BINARY);
+            hello = handshake;
+        }
+        try {
+            // an older house does not answer and stays on text
+            awaitOptional(hello, pending);
+        } finally {
+            synchronized (sendLock) {
+                handshake = null;
+            }
+        }
+    }
+
+    /**
+     * Wait a bounded time for the answer to a request an older house may ignore. If no answer
+     * comes the request is forgotten, so it does not take the next response
+     * @param request the request
+     * @param requests the pending requests it was registered with
+     * @return the answer, or null if there was none
+     */
+    private <T> T awaitOptional(CompletableFuture<T> request, Map<Integer, CompletableFuture<T>> requests)
+            throws InterruptedException {
+        try {
+            return request.get(HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            synchronized (sendLock) {
+                requests.values().remove(request);
+            }
+            request.complete(null);
+            return null;
+        }
+    }
+
+    /**
+     * Ask the house to push state updates when its sensors change. Houses that do not support
+     * subscriptions ignore the request, so the answer is only awaited for a bounded time
+     * @param listener receives the pushed updates on the loop thread
+     * @return true if the house accepted the subscription; false to keep polling
+     */
+    @Override
+    public boolean subscribe(IoTStateListener listener) {
+        this.listener = listener;
+        try {
+            if (getProtocol() == IoTProtocol.BINARY) {
+                ByteBuffer request = ByteBuffer.allocate(1);
+                IoTBinaryCodec.encodeSubscribe(request);
+                request.flip();
+                ByteBuffer ack = awaitOptional(sendFrameAsync(request), pendingFrames);
+                return ack != null && IoTBinaryCodec.isOk(ack);
+            }
+            String ack = awaitOptional(sendMessageAsync(IoTValues.SUBSCRIBE + IoTValues.MSG_END), pending);
+            return ack != null && ack.startsWith(IoTValues.OK);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Disconnect from the house. Requests still in flight complete with no response
+     */
+    @Override
+    public void disconnect() {
+        SocketChannel current;
+        synchronized (sendLock) {
+            connected = false;
+            current = channel;
+        }
+        if (current != null) {
+            post(current, new IOException("disconnected"));
+        }
+    }
+
+    /**
+     * Send a message to the house and wait for the response
+     * @param msg the message to send
+     * @return the response or null if the connection failed
+     * @throws IoTTimeoutException if the house does not answer within the read deadline
+     */
+    @Override
+    public String sendMessageToHouse(String msg) {
+        return awaitResponse(sendMessageAsync(msg));
+    }
+
+    /**
+     * Send an encoded frame to the house and wait for the response
+     * @param frame the frame
+     * @return the response or null if the connection failed
+     * @throws IoTTimeoutException if the house does not answer within the read deadline
+     */
+    @Override
+    public String sendMessageToHouse(ByteBuffer frame) {
+        return awaitResponse(sendMessageAsync(frame));
+    }
+
+    /**
+     * Send a binary frame to the house and wait for the response
+     * @param frame the message type and payload
+     * @return the message type and payload of the response, or null if the connection failed
+     * @throws IoTTimeoutException if the house does not answer within the read deadline
+     */
+    @Override
+    public ByteBuffer sendFrameToHouse(ByteBuffer frame) {
+        return awaitResponse(sendFrameAsync(frame));
+    }
+
+    /**
+     * Wait for a response until the read deadline; a request that misses it is cancelled, which
+     * drops the link if the request was untagged
+     * @param request the pending response
+     * @return the response or null if the connection failed
+     */
+    private <T> T awaitResponse(CompletableFuture<T> request) {
+        try {
+            return request.get(getReadTimeout(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | CancellationException e) {
+            // no response
+        } catch (TimeoutException te) {
+            cancel(request);
+            throw new IoTTimeoutException("House " + getAddress() + " did not answer within "
+                    + getReadTimeout() + " ms");
+        }
+        return null;
+    }
+
+    /**
+     * Cancel an in-flight request. A tagged request (pipelined or binary) is forgotten at once and
+     * its answer dropped if it comes. An untagged answer can only be matched by its place in line,
+     * and a house that never sends it would shift every later answer onto the wrong request, so the
+     * link is dropped, as a blocking connection does when a request misses its deadline
+     * @param request a future returned by one of the async send methods
+     * @return true if the request was cancelled before it completed
+     */
+    @Override
+    public boolean cancel(CompletableFuture<?> request) {
+        boolean untagged;
+        synchronized (sendLock) {
+            untagged = !pipelined && getProtocol() != IoTProtocol.BINARY && pending.containsValue(request);
+            pending.values().remove(request);
+            pendingFrames.values().remove(request);
+        }
+        boolean cancelled = request.cancel(false);
+        if (untagged) {
+            disconnect();
+        }
+        return cancelled;
+    }
+
+    /**
+     * Send a binary frame to the house without waiting. The frame is copied before this method
+     * returns, so the caller may reuse the buffer
+     * @param frame the message type and payload
+     * @return the pending response; it completes with null if the binary protocol is not in use or
+     * the connection fails
+     */
+    @Override
+    public CompletableFuture<ByteBuffer> sendFrameAsync(ByteBuffer frame) {
+        CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+
+        synchronized (sendLock) {
+            if (!connected || getProtocol() != IoTProtocol.BINARY) {
+                response.complete(null);
+                return response;
+            }
+            int sequence = nextSequence;
+            nextSequence = (nextSequence + 1) & Integer.MAX_VALUE;
+
+            ByteBuffer framed = outboundBuffer(2 * IoTBinaryCodec.MAX_VARINT + frame.remaining());
+            IoTBinaryCodec.putVarint(framed, varintSize(sequence) + frame.remaining());
+            IoTBinaryCodec.putVarint(framed, sequence);
+            framed.put(frame);
+            framed.flip();
+
+            pendingFrames.put(sequence, response);
+            writeQueue.add(framed);
+        }
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+        return response;
+    }
+
+    /**
+     * Get a buffer for an outbound frame. It comes from the pool and goes back once written
+     * @param size the largest the frame can be
+     * @return the buffer
+     */
+    private static ByteBuffer outboundBuffer(int size) {
+        IoTBufferPool pool = IoTBufferPool.shared();
+        return size <= pool.getBufferSize() ? pool.acquire() : ByteBuffer.allocateDirect(size);
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Send a message to the house without waiting. The future completes on the I/O thread when the
+     * response line arrives, or with null if the connection fails first
+     * @param msg the message to send
+     * @return the pending response
+     */
+    @Override
+    public CompletableFuture<String> sendMessageAsync(String msg) {
+        return sendMessageAsync(ByteBuffer.wrap(msg.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /**
+     * Send an encoded frame to the house without waiting. The frame is copied before this method
+     * returns, so the caller may reuse the buffer
+     * @param frame the frame
+     * @return the pending response
+     */
+    @Override
+    public CompletableFuture<String> sendMessageAsync(ByteBuffer frame) {
+        CompletableFuture<String> response = new CompletableFuture<>();
+
+        synchronized (sendLock) {
+            if (!connected || getProtocol() == IoTProtocol.BINARY) {
+                response.complete(null);
+                return response;
+            }
+            int sequence = nextSequence;
+            nextSequence = (nextSequence + 1) & Integer.MAX_VALUE;
+
+            ByteBuffer tagged = outboundBuffer((pipelined ? 11 : 0) + frame.remaining());
+            if (pipelined) {
+                putTag(tagged, sequence);
+            }
+            tagged.put(frame);
+            tagged.flip();
+
+            pending.put(sequence, response);
+            writeQueue.add(tagged);
+        }
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+        return response;
+    }
+
+    /**
+     * Write a sequence id tag ({@code 17#}) without going through a string
+     * @param dst the buffer
+     * @param sequence the non-negative sequence id
+     */
+    private static void putTag(ByteBuffer dst, int sequence) {
+        int divisor = 1;
+        while (sequence / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            dst.put((byte) ('0' + (sequence / divisor) % 10));
+        }
+        dst.put((byte) IoTValues.SEQ_DELIM.charAt(0));
+    }
+
+    /**
+     * Register the channel with the loop selector. Runs on the loop thread
+     * @param connecting the channel; nothing is done if it has been replaced or failed since
+     * @param established true if the connect completed immediately
+     */
+    private void register(SocketChannel connecting, boolean established) {
+        synchronized (sendLock) {
+            if (connecting != channel || closed) {
+                return;
+            }
+        }
+        if (readBuffer == null) {
+            readBuffer = IoTBufferPool.shared().acquire();
+        }
+        try {
+            key = connecting.register(loop.selector(), established ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+            engine.connectionOpened();
+            if (established) {
+                established();
+            }
+        } catch (IOException ioe) {
+            handleFailure(connecting, ioe);
+        }
+    }
+
+    private void established() {
+        synchronized (sendLock) {
+            connected = true;
+        }
+        connectResult.complete(true);
+    }
+
+    /**
+     * Handle a ready key. Runs on the loop thread
+     * @param readyKey the key selected by the loop
+     */
+    void handleReady(SelectionKey readyKey) {
+        if (readyKey != key) {
+            // selected in the same round the channel was replaced
+            return;
+        }
+        try {
+            if (readyKey.isConnectable()) {
+                if (channel.finishConnect()) {
+                    readyKey.interestOps(SelectionKey.OP_READ);
+                    established();
+                }
+                return;
+            }
+            if (readyKey.isReadable()) {
+                read();
+            }
+            if (readyKey.isValid() && readyKey.isWritable()) {
+                flush();
+            }
+        } catch (IOException ioe) {
+            handleFailure(readyKey, ioe);
+        }
+    }
+
+    /**
+     * Read what is available and split it into response lines or binary frames
+     */
+    private void read() throws IOException {
+        int n;
+        while ((n = channel.read(readBuffer)) > 0) {
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (binaryFraming) {
+                    appendToFrame(b);
+                } else if (b == '\n') {
+                    completeLine();
+                } else if (b != '\r') {
+                    appendToLine(b);
+                }
+            }
+            readBuffer.clear();
+        }
+        if (n < 0) {
+            throw new EOFException("House closed the connection");
+        }
+    }
+
+    private void appendToLine(byte b) throws IOException {
+        if (lineLength == line.length) {
+            if (line.length >= MAX_LINE) {
+                throw new IOException("Response from house is too long");
+            }
+            byte[] bigger = new byte[line.length * 2];
+            System.arraycopy(line, 0, bigger, 0, lineLength);
+            line = bigger;
+        }
+        line[lineLength++] = b;
+    }
+
+    private void appendToFrame(byte b) throws IOException {
+        if (frameLength < 0) {
+            lengthValue |= (b & 0x7F) << lengthShift;
+            lengthShift += 7;
+            if ((b & 0x80) != 0) {
+                if (lengthShift >= 7 * IoTBinaryCodec.MAX_VARINT) {
+                    throw new IOException("Bad frame length from house");
+                }
+                return;
+            }
+            if (lengthValue <= 0 || lengthValue > MAX_LINE) {
+                throw new IOException("Bad frame length from house: " + lengthValue);
+            }
+            frameLength = lengthValue;
+            lengthValue = 0;
+            lengthShift = 0;
+            return;
+        }
+        appendToLine(b);
+        if (lineLength == frameLength) {
+            completeFrame();
+        }
+    }
+
+    private void completeFrame() {
+        ByteBuffer body = ByteBuffer.wrap(Arrays.copyOf(line, lineLength));
+        lineLength = 0;
+        frameLength = -1;
+
+        int sequence = IoTBinaryCodec.getVarint(body);
+        if (IoTBinaryCodec.typeOf(body) == IoTBinaryCodec.PUSH_UPDATE) {
+            IoTStateListener target = listener;
+            if (target != null && IoTBinaryCodec.decodeStateUpdate(body, pushState)) {
+                target.stateChanged(pushState);
+            }
+            return;
+        }
+        CompletableFuture<ByteBuffer> request;
+        synchronized (sendLock) {
+            request = pendingFrames.remove(sequence);
+        }
+        if (request != null) {
+            request.complete(body.slice());
+        }
+    }
+
+    private void completeLine() {
+        if (lineLength > 2 && line[0] == IoTValues.PUSH_TAG.charAt(0) && line[1] == IoTValues.SEQ_DELIM.charAt(0)) {
+            completePush();
+            return;
+        }
+
+        // a tag is a run of digits followed by the sequence delimiter
+        int sequence = 0;
+        int tagLength = 0;
+        while (tagLength < lineLength && tagLength < 10 && line[tagLength] >= '0' && line[tagLength] <= '9') {
+            sequence = sequence * 10 + (line[tagLength] - '0');
+            tagLength++;
+        }
+        boolean tagged = tagLength > 0 && tagLength < lineLength && line[tagLength] == IoTValues.SEQ_DELIM.charAt(0);
+        int start = tagged ? tagLength + 1 : 0;
+
+        String response = new String(line, start, lineLength - start, StandardCharsets.US_ASCII);
+        lineLength = 0;
+
+        CompletableFuture<String> request = null;
+        synchronized (sendLock) {
+            if (handshake != null && HELLO_BINARY.equals(response) && pending.containsValue(handshake)) {
+                // everything after the echo is framed
+                setProtocol(IoTProtocol.BINARY);
+                binaryFraming = true;
+                frameLength = -1;
+            }
+            if (tagged) {
+                request = pending.remove(sequence);
+            } else {
+                Iterator<CompletableFuture<String>> oldest = pending.values().iterator();
+                if (oldest.hasNext()) {
+                    request = oldest.next();
+                    oldest.remove();
+                }
+            }
+        }
+        if (request != null) {
+            request.complete(response);
+        }
+    }
+
+    /**
+     * Hand a pushed text update to the listener. Runs on the loop thread
+     */
+    private void completePush() {
+        IoTStateListener target = listener;
+        int length = lineLength - 2;
+        lineLength = 0;
+        if (target == null || length > pushFrame.capacity()) {
+            return;
+        }
+        pushFrame.clear();
+        pushFrame.put(line, 2, length);
+        pushFrame.flip();
+        if (pushCodec.decodeStateUpdate(pushFrame, pushState)) {
+            target.stateChanged(pushState);
+        }
+    }
+
+    /**
+     * Write queued frames until the queue is empty or the socket is full. Runs on the loop thread
+     */
+    private void flush() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        try {
+            ByteBuffer frame;
+            while ((frame = writeQueue.peek()) != null) {
+                channel.write(frame);
+                if (frame.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                IoTBufferPool.shared().release(writeQueue.poll());
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException ioe) {
+            handleFailure(key, ioe);
+        }
+    }
+
+    /**
+     * Tear down the channel of a key and fail everything in flight on it. Runs on the loop thread
+     * @param failedKey the key of the channel
+     * @param cause the reason
+     */
+    void handleFailure(SelectionKey failedKey, Exception cause) {
+        handleFailure((SocketChannel) failedKey.channel(), cause);
+    }
+
+    /**
+     * Tear down a channel and fail everything in flight on it. Runs on the loop thread. A failure
+     * posted for a channel that has since been replaced only makes sure that channel is closed
+     * @param torn the channel to tear down
+     * @param cause the reason
+     */
+    private void handleFailure(SocketChannel torn, Exception cause) {
+        synchronized (sendLock) {
+            if (torn != channel || closed) {
+                closeChannel(torn);
+                return;
+            }
+            connected = false;
+            closed = true;
+        }
+        if (key != null) {
+            key.cancel();
+            key = null;
+            engine.connectionClosed();
+        }
+        closeChannel(torn);
+        ByteBuffer unwritten;
+        while ((unwritten = writeQueue.poll()) != null) {
+            IoTBufferPool.shared().release(unwritten);
+        }
+        IoTBufferPool.shared().release(readBuffer);
+        readBuffer = null;
+        lineLength = 0;
+        frameLength = -1;
+        lengthValue = 0;
+        lengthShift = 0;
+
+        if (connectResult != null) {
+            connectResult.complete(false);
+        }
+        List<CompletableFuture<String>> failed;
+        List<CompletableFuture<ByteBuffer>> failedFrames;
+        synchronized (sendLock) {
+            failed = new ArrayList<>(pending.values());
+            pending.clear();
+            failedFrames = new ArrayList<>(pendingFrames.values());
+            pendingFrames.clear();
+        }
+        for (CompletableFuture<String> request : failed) {
+            request.complete(null);
+        }
+        for (CompletableFuture<ByteBuffer> request : failedFrames) {
+            request.complete(null);
+        }
+    }
+
+    private static void closeChannel(SocketChannel failed) {
+        if (failed != null) {
+            try {
+                failed.close();
+            } catch (IOException e) { /* nothing to do */ }
+        }
+    }
+}
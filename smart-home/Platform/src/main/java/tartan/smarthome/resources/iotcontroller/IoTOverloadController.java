@@ -0,0 +1,257 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Notices when the platform falls behind and sheds work in a fixed order, so a spike slows the
+ * platform down predictably instead of collapsing it. Once a second it looks at how late scheduled
+ * work starts, how much house work waits on the shards, and how long the slowest historian write
+ * of the last second took. While any of them is over its limit the level goes up one step per
+ * check; once all of them are below half their limits it comes down one step per check:
+ *
+ * <ol>
+ *   <li>STRETCH_POLLS: vacant, quiet houses are polled less often</li>
+ *   <li>SAMPLE_HISTORY: the historian writes only one entry in a few</li>
+ *   <li>SHED_READS: the historian stops reading, and REST reads are answered from the last known
+ *       state alone, without asking the house or copying the event log</li>
+ * </ol>
+ *
+ * Occupied or alarmed houses and user commands are never shed. Each shed action is counted, and
+ * changes of level are logged with the counts.
+ */
+public class IoTOverloadController {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IoTOverloadController.class);
+
+    /** the degradation levels, in the order they are reached */
+    public enum Level { NORMAL, STRETCH_POLLS, SAMPLE_HISTORY, SHED_READS }
+
+    /** the work that can be shed */
+    public enum Action { STRETCHED_POLL, SKIPPED_HISTORY, SHED_READ }
+
+    /** the default limits: scheduler lag and database write time in ms, and waiting house work */
+    public static final long DEFAULT_MAX_LAG = 1000;
+    public static final int DEFAULT_MAX_QUEUED = 100;
+    public static final long DEFAULT_MAX_DB_LATENCY = 500;
+
+    /** how often the load is checked, in ms */
+    public static final long CHECK_PERIOD = 1000;
+
+    /** how much further apart vacant houses are polled while stretched */
+    public static final int POLL_STRETCH = 4;
+
+    /** while sampled, one historian write in this many is kept */
+    public static final int HISTORY_SAMPLE = 4;
+
+    private volatile long maxLag = DEFAULT_MAX_LAG;
+    private volatile int maxQueued = DEFAULT_MAX_QUEUED;
+    private volatile long maxDbLatency = DEFAULT_MAX_DB_LATENCY;
+
+    private volatile Level level = Level.NORMAL;
+    private long transitions = 0;
+
+    /** the slowest database write since the last check */
+    private final AtomicLong dbLatency = new AtomicLong();
+    private volatile long lastDbLatency = 0;
+
+    private final AtomicLong historyWrites = new AtomicLong();
+    private final AtomicLong[] shed = new AtomicLong[Action.values().length];
+
+    private IoTScheduler scheduler = null;
+    private ScheduledFuture<?> checker = null;
+
+    /**
+     * Create a controller with the default limits
+     */
+    public IoTOverloadController() {
+        for (int i = 0; i < shed.length; i++) {
+            shed[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Set the limits
+     * @param maxLag the most a scheduled task may start late, in ms
+     * @param maxQueued the most house tasks that may wait on the shards
+     * @param maxDbLatency the most a historian write may take, in ms
+     */
+    public void setLimits(long maxLag, int maxQueued, long maxDbLatency) {
+        if (maxLag < 1 || maxQueued < 1 || maxDbLatency < 1) {
+            throw new IllegalArgumentException("Overload limits must be positive");
+        }
+        this.maxLag = maxLag;
+        this.maxQueued = maxQueued;
+        this.maxDbLatency = maxDbLatency;
+    }
+
+    /**
+     * Start checking the load of a scheduler
+     * @param scheduler the scheduler that runs the checks and whose load is checked
+     */
+    public synchronized void start(IoTScheduler scheduler) {
+        if (checker != null) {
+            return;
+        }
+        this.scheduler = scheduler;
+        checker = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                IoTScheduler s = IoTOverloadController.this.scheduler;
+                if (s != null) {
+                    check(s.getLastLag(), s.getShards().getQueued());
+                }
+            }
+        }, CHECK_PERIOD, CHECK_PERIOD);
+    }
+
+    /**
+     * Stop checking. The level stays where it is
+     */
+    public synchronized void stop() {
+        if (checker != null) {
+            checker.cancel(false);
+            checker = null;
+        }
+        scheduler = null;
+    }
+
+    /**
+     * Check the load and move the level one step if needed
+     * @param lag how late scheduled work starts, in ms
+     * @param queued how many house tasks wait on the shards
+     */
+    synchronized void check(long lag, int queued) {
+        long db = dbLatency.getAndSet(0);
+        lastDbLatency = db;
+        boolean over = lag > maxLag || queued > maxQueued || db > maxDbLatency;
+        boolean clear = lag <= maxLag / 2 && queued <= maxQueued / 2 && db <= maxDbLatency / 2;
+
+        Level next = level;
+        if (over && level.ordinal() < Level.SHED_READS.ordinal()) {
+            next = Level.values()[level.ordinal() + 1];
+        } else if (clear && level.ordinal() > Level.NORMAL.ordinal()) {
+            next = Level.values()[level.ordinal() - 1];
+        }
+        if (next != level) {
+            transitions++;
+            String message = "Overload level " + level + " -> " + next + " (lag " + lag + " ms, queued " + queued
+                    + ", db " + db + " ms); shed so far: " + shedSummary();
+            if (next.ordinal() > level.ordinal()) {
+                LOGGER.warn(message);
+            } else {
+                LOGGER.info(message);
+            }
+            level = next;
+        }
+    }
+
+    /**
+     * Record how long a historian write took
+     * @param millis the time in ms
+     */
+    public void recordDbWrite(long millis) {
+        long max = dbLatency.get();
+        while (millis > max && !dbLatency.compareAndSet(max, millis)) {
+            max = dbLatency.get();
+        }
+    }
+
+    /**
+     * Stretch the delay before the next poll of a house, if the house is vacant and quiet and the
+     * platform is behind
+     * @param delay the delay the house's cadence asks for, in ms
+     * @param vacant true if no one is home and nothing is going on
+     * @return the delay to use
+     */
+    public long stretchPoll(long delay, boolean vacant) {
+        if (!vacant || level.ordinal() < Level.STRETCH_POLLS.ordinal()) {
+            return delay;
+        }
+        shed(Action.STRETCHED_POLL);
+        return delay * POLL_STRETCH;
+    }
+
+    /**
+     * Ask whether the historian may read and write the next entry
+     * @return false if the entry is skipped to save the database, or its read is shed
+     */
+    public boolean admitHistory() {
+        Level current = level;
+        if (current == Level.SHED_READS) {
+            shed(Action.SHED_READ);
+            return false;
+        }
+        long n = historyWrites.getAndIncrement();
+        if (current == Level.SAMPLE_HISTORY && n % HISTORY_SAMPLE != 0) {
+            shed(Action.SKIPPED_HISTORY);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Ask whether a REST read may do more than return the last known state, i.e. ask the house or
+     * copy the event log
+     * @return false if it must make do with the last known state
+     */
+    public boolean admitFullRead() {
+        if (level != Level.SHED_READS) {
+            return true;
+        }
+        shed(Action.SHED_READ);
+        return false;
+    }
+
+    private void shed(Action action) {
+        long count = shed[action.ordinal()].incrementAndGet();
+        LOGGER.debug("Overload {}: {} #{}", level, action, count);
+    }
+
+    private String shedSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Action action : Action.values()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(action).append('=').append(shed[action.ordinal()].get());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the current level
+     * @return the level
+     */
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Get the number of times an action was taken
+     * @param action the action
+     * @return the count
+     */
+    public long getShed(Action action) {
+        return shed[action.ordinal()].get();
+    }
+
+    /**
+     * Get the number of level changes
+     * @return the count
+     */
+    public synchronized long getTransitions() {
+        return transitions;
+    }
+
+    /**
+     * Get the slowest historian write seen by the last check
+     * @return the time in ms
+     */
+    public long getDbLatency() {
+        return lastDbLatency;
+    }
+}
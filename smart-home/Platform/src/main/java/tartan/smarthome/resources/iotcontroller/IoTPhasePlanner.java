@@ -0,0 +1,195 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Spreads periodic work (house polls, historian writes) evenly over its period, so the houses do not
+ * all hit the CPU, the network and the database at the same moment. Each task joins the planner and
+ * gets a phase: the fraction of the period at which it should run. With n members the phases are
+ * 0, 1/n, 2/n, ...; they are handed out again whenever a member joins or leaves.
+ *
+ * A task asks the planner to align each delay to its phase. Optional jitter moves each run by a
+ * random part of the gap between members, so houses that share a period do not drift into step.
+ *
+ * The planner also records where in their period the members actually ran. The skew is the largest
+ * gap between neighbours, relative to an even spread: 1 is perfectly even, n means all in step.
+ */
+public class IoTPhasePlanner {
+
+    private final List<Phase> members = new ArrayList<>();
+    private final Random random;
+
+    /** jitter as a percentage of the gap between members */
+    private volatile int jitter = 0;
+
+    private long rebalances = 0;
+
+    /**
+     * Create a planner
+     */
+    public IoTPhasePlanner() {
+        this(new Random());
+    }
+
+    /**
+     * Create a planner with a given source of jitter
+     * @param random the random source
+     */
+    IoTPhasePlanner(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Set the jitter
+     * @param percent how far a run may move, as a percentage of the gap between members; 0 for none
+     */
+    public void setJitter(int percent) {
+        this.jitter = Math.max(0, Math.min(percent, 100));
+    }
+
+    /**
+     * Join the planner. The phases of the other members move to make room
+     * @return the phase of the new member
+     */
+    public synchronized Phase join() {
+        Phase phase = new Phase();
+        members.add(phase);
+        rebalance();
+        return phase;
+    }
+
+    private synchronized void leave(Phase phase) {
+        if (members.remove(phase)) {
+            rebalance();
+        }
+    }
+
+    private void rebalance() {
+        int n = members.size();
+        for (int i = 0; i < n; i++) {
+            members.get(i).fraction = (double) i / n;
+        }
+        rebalances++;
+    }
+
+    /**
+     * Get the number of members
+     * @return the count
+     */
+    public synchronized int getMembers() {
+        return members.size();
+    }
+
+    /**
+     * Get the number of times the phases were handed out again
+     * @return the count
+     */
+    public synchronized long getRebalances() {
+        return rebalances;
+    }
+
+    /**
+     * Get how evenly the members actually ran over their periods
+     * @return the largest gap between neighbours relative to an even spread: 1 when even, up to the
+     *         number of members when all run together; 0 until two members have run
+     */
+    public synchronized double getSkew() {
+        double[] positions = new double[members.size()];
+        int count = 0;
+        for (Phase phase : members) {
+            if (phase.position >= 0) {
+                positions[count++] = phase.position;
+            }
+        }
+        if (count < 2) {
+            return 0;
+        }
+        Arrays.sort(positions, 0, count);
+        double largestGap = positions[0] + 1 - positions[count - 1];
+        for (int i = 1; i < count; i++) {
+            largestGap = Math.max(largestGap, positions[i] - positions[i - 1]);
+        }
+        return largestGap * count;
+    }
+
+    /**
+     * The place of one periodic task in the planner
+     */
+    public class Phase {
+        /** where in its period the task should run, from 0 to 1 */
+        private volatile double fraction = 0;
+
+        /** where in its period the task last ran, or -1 */
+        private volatile double position = -1;
+
+        private Phase() { }
+
+        /**
+         * Get the phase
+         * @return where in its period the task should run, from 0 to 1
+         */
+        public double getFraction() {
+            return fraction;
+        }
+
+        /**
+         * Align a delay to this phase: the run is moved by at most half the delay so it falls on
+         * the task's phase of a period of that length
+         * @param delay the delay wanted, in ms
+         * @return the aligned delay
+         */
+        public long align(long delay) {
+            return align(delay, System.currentTimeMillis());
+        }
+
+        long align(long delay, long now) {
+            if (delay <= 0) {
+                return 0;
+            }
+            long target = now + delay;
+            double offset = fraction * delay + jitter(delay);
+            double shift = ((offset - target % delay) % delay + delay) % delay;
+            if (shift > delay / 2.0) {
+                shift -= delay;
+            }
+            return Math.max(0, delay + Math.round(shift));
+        }
+
+        /**
+         * Record that the task is running now
+         * @param period the period the task runs at, in ms
+         */
+        public void ran(long period) {
+            ran(period, System.currentTimeMillis());
+        }
+
+        void ran(long period, long now) {
+            if (period > 0) {
+                position = (double) (now % period) / period;
+            }
+        }
+
+        /**
+         * Leave the planner. The phases of the other members move to close the gap
+         */
+        public void leave() {
+            IoTPhasePlanner.this.leave(this);
+        }
+
+        private double jitter(long period) {
+            int percent = jitter;
+            if (percent == 0) {
+                return 0;
+            }
+            double gap = (double) period / Math.max(getMembers(), 1);
+            double r;
+            synchronized (random) {
+                r = random.nextDouble() - 0.5;
+            }
+            return r * gap * percent / 100;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.Map;
+
+/**
+ * Decides how long to wait before polling a house again. A house that is occupied, has its alarm
+ * going off or has just changed is polled at the fastest rate; a vacant house that keeps reporting
+ * the same thing is polled less and less often, up to the slowest rate. A vacant house is normally
+ * armed, so being armed alone does not count. The readings (temperature and humidity) drift all the
+ * time, so only the flags count as a change.
+ */
+public class IoTPollCadence {
+
+    private final long minPeriod;
+    private final long maxPeriod;
+
+    private long period;
+    private int lastFlags = -1;
+    private final IoTState scratch = new IoTState();
+
+    /**
+     * Create a cadence
+     * @param minPeriod the fastest poll period in ms
+     * @param maxPeriod the slowest poll period in ms
+     */
+    public IoTPollCadence(long minPeriod, long maxPeriod) {
+        if (minPeriod < 1 || maxPeriod < minPeriod) {
+            throw new IllegalArgumentException("Poll periods must be positive, and the minimum no more than the maximum");
+        }
+        this.minPeriod = minPeriod;
+        this.maxPeriod = maxPeriod;
+        this.period = minPeriod;
+    }
+
+    /**
+     * Get the delay before the next poll, given what the house just reported
+     * @param state the state of the house, or null if it did not answer
+     * @return the delay in ms
+     */
+    public synchronized long next(Map<String, Object> state) {
+        if (state == null) {
+            // check again soon whether the house is still there
+            period = minPeriod;
+            return period;
+        }
+        int flags = flagsOf(state);
+        boolean changed = lastFlags != -1 && flags != lastFlags;
+        lastFlags = flags;
+
+        if (changed || isTrue(state, IoTValues.PROXIMITY_STATE) || isTrue(state, IoTValues.ALARM_ACTIVE)
+                || isTrue(state, IoTValues.INTRUDER_DETECT)) {
+            period = minPeriod;
+        } else {
+            period = Math.min(period * 2, maxPeriod);
+        }
+        return period;
+    }
+
+    /**
+     * Forget the history, e.g. after a reconnect; the next poll is at the fastest rate
+     */
+    public synchronized void reset() {
+        period = minPeriod;
+        lastFlags = -1;
+    }
+
+    /**
+     * Get the current poll period
+     * @return the period in ms
+     */
+    public synchronized long getPeriod() {
+        return period;
+    }
+
+    public long getMinPeriod() {
+        return minPeriod;
+    }
+
+    public long getMaxPeriod() {
+        return maxPeriod;
+    }
+
+    private static boolean isTrue(Map<String, Object> state, String key) {
+        return Boolean.TRUE.equals(state.get(key));
+    }
+
+    private int flagsOf(Map<String, Object> state) {
+        scratch.clear();
+        scratch.copyFrom(state);
+        int flags = 0;
+        for (int slot = 0; slot < IoTState.KEY_COUNT; slot++) {
+            if (!IoTState.isReading(slot) && scratch.getFlag(slot)) {
+                flags |= 1 << slot;
+            }
+        }
+        return flags;
+    }
+}
@@ -0,0 +1,18 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * How urgent a piece of house work is. A shard runs the waiting work of its houses most urgent
+ * first, and in order within a class, so a disarm or an intrusion does not wait behind routine
+ * polls. Work that is already running is not interrupted.
+ */
+public enum IoTPriority {
+
+    /** alarm and intruder handling, and the away lock down */
+    SECURITY,
+
+    /** commands from a user */
+    USER,
+
+    /** polls, keepalives and historian reads */
+    ROUTINE
+}
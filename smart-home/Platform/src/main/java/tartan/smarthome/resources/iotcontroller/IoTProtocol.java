@@ -0,0 +1,12 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * The wire format spoken on a house connection. Every house speaks text; houses that accept the
+ * capability handshake at connect time switch to the compact binary framing.
+ */
+public enum IoTProtocol {
+    /** newline terminated ASCII frames such as {@code SU:TR=65;HR=90;...} */
+    TEXT,
+    /** length-prefixed frames with bit-packed flags, see {@link IoTBinaryCodec} */
+    BINARY
+}
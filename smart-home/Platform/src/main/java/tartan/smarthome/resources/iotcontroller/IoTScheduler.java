@@ -0,0 +1,342 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the periodic work of every house (polling, historian, away timers) on a small, fixed pool of
+ * worker threads, so the number of threads does not grow with the number of houses. Tasks must not
+ * block for longer than a house exchange; a task that waits for something schedules itself again
+ * instead.
+ *
+ * The scheduler records how late tasks start compared to when they were due. A growing lag means
+ * the workers cannot keep up with the houses.
+ *
+ * Work that changes the state of a house is handed from the workers to the house's shard, which
+ * runs it in order with the other changes to that house. Exchanges with houses whose connections
+ * block run on a separate pool of exchange threads, so a house that stops answering holds up
+ * neither the workers nor the shards.
+ */
+public class IoTScheduler {
+
+    /** how many workers the shared scheduler runs */
+    public static final int DEFAULT_THREADS = 4;
+
+    /** how many shards the shared scheduler runs: one per core */
+    public static final int DEFAULT_SHARDS = Runtime.getRuntime().availableProcessors();
+
+    /** how many exchange threads the scheduler runs at most; idle ones are let go */
+    public static final int DEFAULT_EXCHANGE_THREADS = 32;
+
+    /** how long an idle exchange thread is kept, in ms */
+    private static final long EXCHANGE_KEEPALIVE = 60000;
+
+    /** how long stop waits for running tasks, in ms */
+    private static final long STOP_TIMEOUT = 5000;
+
+    private static IoTScheduler shared = null;
+
+    private final int threads;
+    private ScheduledThreadPoolExecutor executor = null;
+
+    /** runs the exchanges with houses whose connections block */
+    private ThreadPoolExecutor exchangeThreads = null;
+    private final Executor exchanges = new Executor() {
+        @Override
+        public void execute(Runnable exchange) {
+            runningExchanges().execute(exchange);
+        }
+    };
+
+    /** per-house deadlines, turned by this scheduler */
+    private final IoTTimingWheel timers = new IoTTimingWheel(IoTTimingWheel.DEFAULT_TICK, IoTTimingWheel.DEFAULT_SLOTS);
+
+    /** spreads the periodic work of the houses over its period */
+    private final IoTPhasePlanner phases = new IoTPhasePlanner();
+
+    /** the single threads that change house state */
+    private final IoTShardPool shards;
+
+    /** sheds work when the houses are more than the platform can keep up with */
+    private final IoTOverloadController overload = new IoTOverloadController();
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong lastLag = new AtomicLong();
+    private final AtomicLong maxLag = new AtomicLong();
+
+    /**
+     * Get a running scheduler shared by houses that were not given one
+     * @return the shared scheduler
+     */
+    public static synchronized IoTScheduler shared() {
+        if (shared == null) {
+            shared = new IoTScheduler(DEFAULT_THREADS);
+            shared.start();
+        }
+        return shared;
+    }
+
+    /**
+     * Create a new scheduler with a shard per core
+     * @param threads the number of worker threads
+     */
+    public IoTScheduler(int threads) {
+        this(threads, DEFAULT_SHARDS);
+    }
+
+    /**
+     * Create a new scheduler
+     * @param threads the number of worker threads
+     * @param shards the number of threads that change house state
+     */
+    public IoTScheduler(int threads, int shards) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one scheduler thread is required");
+        }
+        this.threads = threads;
+        this.shards = new IoTShardPool(shards);
+    }
+
+    /**
+     * Start the worker threads
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "iot-scheduler-" + count.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // cancelled polls are rescheduled often; do not leave them in the queue
+        executor.setRemoveOnCancelPolicy(true);
+        final AtomicInteger exchangeCount = new AtomicInteger();
+        exchangeThreads = new ThreadPoolExecutor(DEFAULT_EXCHANGE_THREADS, DEFAULT_EXCHANGE_THREADS,
+                EXCHANGE_KEEPALIVE, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "iot-exchange-" + exchangeCount.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        exchangeThreads.allowCoreThreadTimeOut(true);
+        shards.start();
+        timers.start(this);
+        overload.start(this);
+    }
+
+    /**
+     * Stop the worker threads. Tasks that are running are given a few seconds to finish; tasks that
+     * have not started are dropped
+     */
+    public synchronized void stop() {
+        if (executor == null) {
+            return;
+        }
+        timers.stop();
+        overload.stop();
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        executor.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+        executor.shutdown();
+        exchangeThreads.shutdown();
+        awaitStopped(executor);
+        awaitStopped(exchangeThreads);
+        executor = null;
+        exchangeThreads = null;
+        shards.stop();
+    }
+
+    private static void awaitStopped(ThreadPoolExecutor pool) {
+        try {
+            if (!pool.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException ie) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get the scheduler state
+     * @return true if the workers are running
+     */
+    public synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    /**
+     * Run a task once, after a delay
+     * @param task the task
+     * @param delay the delay in ms
+     * @return the pending task, which can be cancelled
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return running().schedule(new Timed(task, delay), Math.max(delay, 0), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run a task repeatedly, with a fixed delay between the end of one run and the start of the next
+     * @param task the task
+     * @param initialDelay the delay before the first run, in ms
+     * @param delay the delay between runs, in ms
+     * @return the pending task; cancel it to stop the runs
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long initialDelay, long delay) {
+        return running().scheduleWithFixedDelay(new Timed(task, initialDelay, delay),
+                initialDelay, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the timing wheel for deadlines that are usually cancelled or re-armed before they fire,
+     * such as the away timer
+     * @return the wheel
+     */
+    public IoTTimingWheel getTimers() {
+        return timers;
+    }
+
+    /**
+     * Get the planner that spreads periodic house work, so houses do not poll or log in step
+     * @return the planner
+     */
+    public IoTPhasePlanner getPhases() {
+        return phases;
+    }
+
+    /**
+     * Get the shards that change house state, one house at a time per shard
+     * @return the shards
+     */
+    public IoTShardPool getShards() {
+        return shards;
+    }
+
+    /**
+     * Get the overload controller, which all houses consult before doing work that can be shed
+     * @return the controller
+     */
+    public IoTOverloadController getOverload() {
+        return overload;
+    }
+
+    /**
+     * Get the exchange threads, for house exchanges that block. Hand them exchanges through a
+     * house's {@link IoTExchangeLane}, so each house has at most one in flight
+     * @return the threads; they refuse work with an IllegalStateException while the scheduler is
+     * not running
+     */
+    public Executor getExchanges() {
+        return exchanges;
+    }
+
+    private synchronized ScheduledThreadPoolExecutor running() {
+        if (executor == null) {
+            throw new IllegalStateException("The scheduler is not running");
+        }
+        return executor;
+    }
+
+    private synchronized ThreadPoolExecutor runningExchanges() {
+        if (exchangeThreads == null) {
+            throw new IllegalStateException("The scheduler is not running");
+        }
+        return exchangeThreads;
+    }
+
+    /**
+     * Get the number of worker threads
+     * @return the count
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Get the number of tasks waiting to run, including those not due yet
+     * @return the count
+     */
+    public synchronized int getQueued() {
+        return executor != null ? executor.getQueue().size() : 0;
+    }
+
+    /**
+     * Get the number of tasks running right now
+     * @return the count
+     */
+    public synchronized int getActive() {
+        return executor != null ? executor.getActiveCount() : 0;
+    }
+
+    /**
+     * Get the number of task runs
+     * @return the count
+     */
+    public long getRuns() {
+        return runs.get();
+    }
+
+    /**
+     * Get how late the most recent task started
+     * @return the lag in ms
+     */
+    public long getLastLag() {
+        return lastLag.get();
+    }
+
+    /**
+     * Get the worst lag seen
+     * @return the lag in ms
+     */
+    public long getMaxLag() {
+        return maxLag.get();
+    }
+
+    /**
+     * Wraps a task to measure how late it starts
+     */
+    private class Timed implements Runnable {
+        private final Runnable task;
+        private final long delay;
+        private long due;
+
+        Timed(Runnable task, long delay) {
+            this(task, delay, 0);
+        }
+
+        Timed(Runnable task, long initialDelay, long delay) {
+            this.task = task;
+            this.delay = delay;
+            this.due = System.currentTimeMillis() + Math.max(initialDelay, 0);
+        }
+
+        @Override
+        public void run() {
+            long lag = Math.max(System.currentTimeMillis() - due, 0);
+            lastLag.set(lag);
+            long max = maxLag.get();
+            while (lag > max && !maxLag.compareAndSet(max, lag)) {
+                max = maxLag.get();
+            }
+            runs.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                due = System.currentTimeMillis() + delay;
+            }
+        }
+    }
+}
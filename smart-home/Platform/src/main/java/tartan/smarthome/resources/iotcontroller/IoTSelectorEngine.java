@@ -0,0 +1,217 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A non-blocking transport engine for house connections. A small, fixed number of selector loops own
+ * every house socket, so the number of I/O threads does not grow with the number of houses. Each
+ * connection is pinned to one loop for its lifetime; all socket work for that connection happens on
+ * the loop's thread.
+ */
+public class IoTSelectorEngine {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IoTSelectorEngine.class);
+
+    /** the selector loops */
+    private final SelectorLoop[] loops;
+
+    /** round-robin assignment of new connections to loops */
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /** the number of registered connections */
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    private volatile boolean running = false;
+
+    /**
+     * Create a new engine
+     * @param ioThreads the number of selector loops (I/O threads) to run
+     */
+    public IoTSelectorEngine(int ioThreads) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("At least one I/O thread is required");
+        }
+        loops = new SelectorLoop[ioThreads];
+    }
+
+    /**
+     * Open the selectors and start the I/O threads
+     * @throws IOException if a selector cannot be opened
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop(Selector.open());
+            Thread t = new Thread(loops[i], "iot-selector-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        running = true;
+    }
+
+    /**
+     * Stop the I/O threads. Every connection owned by the engine is closed
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (SelectorLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    /**
+     * Get the engine state
+     * @return true if the I/O threads are running
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Get the number of I/O threads
+     * @return the number of selector loops
+     */
+    public int getIoThreads() {
+        return loops.length;
+    }
+
+    /**
+     * Get the number of connections currently registered with the engine
+     * @return the connection count
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Pick the loop that will own a new connection
+     * @return the loop
+     */
+    SelectorLoop nextLoop() {
+        if (!running) {
+            throw new IllegalStateException("I/O engine is not running");
+        }
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    void connectionOpened() {
+        connectionCount.incrementAndGet();
+    }
+
+    void connectionClosed() {
+        connectionCount.decrementAndGet();
+    }
+
+    /**
+     * A single selector and the thread that drives it. Other threads never touch the selector
+     * directly; they post tasks that run on the loop thread. A task or connection that throws is
+     * logged, and the connection is failed; the loop goes on serving the others
+     */
+    static class SelectorLoop implements Runnable {
+
+        private final Selector selector;
+
+        /** work posted by other threads (registration, interest changes, close) */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private volatile boolean stopped = false;
+
+        SelectorLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        Selector selector() {
+            return selector;
+        }
+
+        /**
+         * Run a task on the loop thread
+         * @param task the task
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            stopped = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                try {
+                    selector.select();
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        IoTNioConnection conn = (IoTNioConnection) key.attachment();
+                        try {
+                            conn.handleReady(key);
+                        } catch (CancelledKeyException cke) {
+                            conn.handleFailure(key, cke);
+                        } catch (RuntimeException e) {
+                            // e.g. a push listener that threw; only this connection is lost
+                            LOGGER.error("House connection failed on the I/O thread", e);
+                            fail(conn, key, e);
+                        }
+                    }
+                } catch (ClosedSelectorException cse) {
+                    break;
+                } catch (IOException ioe) {
+                    // a failed select is not fatal for the loop
+                }
+            }
+            closeAll();
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOGGER.error("I/O task failed", e);
+                }
+            }
+        }
+
+        private void fail(IoTNioConnection conn, SelectionKey key, RuntimeException cause) {
+            try {
+                conn.handleFailure(key, cause);
+            } catch (RuntimeException e) {
+                LOGGER.error("Closing a failed house connection failed", e);
+            }
+        }
+
+        private void closeAll() {
+            runTasks();
+            for (SelectionKey key : selector.keys()) {
+                ((IoTNioConnection) key.attachment()).handleFailure(key, new IOException("I/O engine stopped"));
+            }
+            try {
+                selector.close();
+            } catch (IOException e) { /* nothing to do */ }
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the work that changes the state of a house on a single thread for that house. Each house is
+ * assigned one of a fixed number of shards; everything that changes its state (update cycles, the
+ * away timer, user updates) is queued on that shard and runs in order, so two changes to one house
+ * never race and need no lock between them. Houses on different shards run in parallel, so the
+ * shards scale with the cores; houses are assigned to the shard with the fewest houses.
+ *
+ * A shard runs one task at a time: a task that waits on a slow house holds up the other houses of
+ * its shard. Update cycles therefore exchange with the house off the shard and hand the answer
+ * back as a new task; a user update that waits is bounded by the house's deadlines. Waiting tasks run by priority, then in
+ * the order they were queued, and the pool records how long each priority class waits.
+ */
+public class IoTShardPool {
+
+    /** how long stop waits for running tasks, in ms */
+    private static final long STOP_TIMEOUT = 5000;
+
+    private final Shard[] shards;
+
+    /** orders tasks of the same priority */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /** per priority class: tasks started, their total and their longest wait in ms */
+    private final AtomicLong[] started = counters();
+    private final AtomicLong[] waited = counters();
+    private final AtomicLong[] maxWait = counters();
+
+    /**
+     * Create the shards
+     * @param count the number of shards, i.e. of threads
+     */
+    public IoTShardPool(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    /**
+     * Start the shard threads
+     */
+    public synchronized void start() {
+        for (Shard shard : shards) {
+            shard.start();
+        }
+    }
+
+    /**
+     * Stop the shard threads. Tasks that are running are given a few seconds to finish; tasks that
+     * have not started are dropped
+     */
+    public synchronized void stop() {
+        for (Shard shard : shards) {
+            shard.stop();
+        }
+    }
+
+    /**
+     * Assign a house to the shard with the fewest houses
+     * @return the shard; release it when the house is done with it
+     */
+    public synchronized Shard assign() {
+        Shard least = shards[0];
+        for (Shard shard : shards) {
+            if (shard.houses < least.houses) {
+                least = shard;
+            }
+        }
+        least.houses++;
+        return least;
+    }
+
+    private synchronized void release(Shard shard) {
+        if (shard.houses > 0) {
+            shard.houses--;
+        }
+    }
+
+    /**
+     * Get the number of shards
+     * @return the count
+     */
+    public int getShards() {
+        return shards.length;
+    }
+
+    /**
+     * Get the number of tasks waiting on all shards
+     * @return the count
+     */
+    public int getQueued() {
+        int queued = 0;
+        for (Shard shard : shards) {
+            queued += shard.getQueued();
+        }
+        return queued;
+    }
+
+    /**
+     * Get the most houses assigned to one shard
+     * @return the count
+     */
+    public synchronized int getMaxHouses() {
+        int max = 0;
+        for (Shard shard : shards) {
+            max = Math.max(max, shard.houses);
+        }
+        return max;
+    }
+
+    /**
+     * Get the number of tasks of a priority class that have started
+     * @param priority the class
+     * @return the count
+     */
+    public long getStarted(IoTPriority priority) {
+        return started[priority.ordinal()].get();
+    }
+
+    /**
+     * Get how long tasks of a priority class waited for their shard, on average
+     * @param priority the class
+     * @return the mean wait in ms, 0 if none started
+     */
+    public double getMeanWait(IoTPriority priority) {
+        long count = started[priority.ordinal()].get();
+        return count > 0 ? (double) waited[priority.ordinal()].get() / count : 0;
+    }
+
+    /**
+     * Get the longest a task of a priority class waited for its shard
+     * @param priority the class
+     * @return the wait in ms
+     */
+    public long getMaxWait(IoTPriority priority) {
+        return maxWait[priority.ordinal()].get();
+    }
+
+    private void recordWait(IoTPriority priority, long wait) {
+        int i = priority.ordinal();
+        started[i].incrementAndGet();
+        waited[i].addAndGet(wait);
+        long max = maxWait[i].get();
+        while (wait > max && !maxWait[i].compareAndSet(max, wait)) {
+            max = maxWait[i].get();
+        }
+    }
+
+    private static AtomicLong[] counters() {
+        AtomicLong[] counters = new AtomicLong[IoTPriority.values().length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new AtomicLong();
+        }
+        return counters;
+    }
+
+    /**
+     * A task waiting on a shard, ordered by priority and then by when it was queued
+     */
+    private class Queued implements Runnable, Comparable<Queued> {
+        private final Runnable task;
+        private final IoTPriority priority;
+        private final long seq = sequence.getAndIncrement();
+        private final long queuedAt = System.currentTimeMillis();
+
+        Queued(Runnable task, IoTPriority priority) {
+            this.task = task;
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(Queued other) {
+            int c = priority.compareTo(other.priority);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+
+        @Override
+        public void run() {
+            recordWait(priority, Math.max(System.currentTimeMillis() - queuedAt, 0));
+            task.run();
+        }
+    }
+
+    /**
+     * One shard: a thread and its queue of tasks
+     */
+    public class Shard implements Executor {
+        private final int id;
+        private ThreadPoolExecutor executor = null;
+        private volatile Thread thread = null;
+        private int houses = 0;
+
+        private Shard(int id) {
+            this.id = id;
+        }
+
+        private synchronized void start() {
+            if (executor != null) {
+                return;
+            }
+            executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "iot-shard-" + id);
+                            t.setDaemon(true);
+                            thread = t;
+                            return t;
+                        }
+                    });
+        }
+
+        private void stop() {
+            ThreadPoolExecutor stopping;
+            synchronized (this) {
+                stopping = executor;
+                executor = null;
+            }
+            if (stopping == null) {
+                return;
+            }
+            stopping.shutdown();
+            try {
+                if (!stopping.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    stopping.shutdownNow();
+                }
+            } catch (InterruptedException ie) {
+                stopping.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Queue routine work on this shard
+         * @param task the task
+         */
+        @Override
+        public void execute(Runnable task) {
+            execute(task, IoTPriority.ROUTINE);
+        }
+
+        /**
+         * Queue a task on this shard. Tasks run one at a time, most urgent first and in the order
+         * they were queued within a priority. A task queued from the shard itself still waits for
+         * its turn
+         * @param task the task
+         * @param priority how urgent the task is
+         */
+        public void execute(Runnable task, IoTPriority priority) {
+            ThreadPoolExecutor running;
+            synchronized (this) {
+                running = executor;
+            }
+            if (running == null) {
+                throw new IllegalStateException("The shard is not running");
+            }
+            running.execute(new Queued(task, priority));
+        }
+
+        /**
+         * Run a user task on this shard and wait for its result
+         * @param task the task
+         * @param turnTimeout how long to wait for the task to start, in ms
+         * @return the result of the task
+         * @throws IoTTimeoutException if the task did not start in time
+         */
+        public <T> T call(Callable<T> task, long turnTimeout) {
+            return call(task, turnTimeout, IoTPriority.USER);
+        }
+
+        /**
+         * Run a task on this shard and wait for its result. If it has not started when the wait for
+         * its turn runs out it is dropped; once started it runs to the end. A task called from the
+         * shard itself runs right away
+         * @param task the task
+         * @param turnTimeout how long to wait for the task to start, in ms
+         * @param priority how urgent the task is
+         * @return the result of the task
+         * @throws IoTTimeoutException if the task did not start in time
+         */
+        public <T> T call(final Callable<T> task, long turnTimeout, IoTPriority priority) {
+            if (isCurrent()) {
+                return callNow(task);
+            }
+            final AtomicBoolean started = new AtomicBoolean();
+            FutureTask<T> future = new FutureTask<>(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    started.set(true);
+                    return task.call();
+                }
+            });
+            execute(future, priority);
+            try {
+                try {
+                    return future.get(turnTimeout, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException te) {
+                    if (!started.get() && future.cancel(false)) {
+                        throw new IoTTimeoutException("The house is busy");
+                    }
+                    // it has started: the house exchange has its own deadline
+                    return future.get();
+                }
+            } catch (InterruptedException ie) {
+                future.cancel(false);
+                Thread.currentThread().interrupt();
+                throw new IoTTimeoutException("Interrupted waiting for the house");
+            } catch (CancellationException ce) {
+                throw new IoTTimeoutException("The house is busy");
+            } catch (ExecutionException ee) {
+                if (ee.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ee.getCause();
+                }
+                if (ee.getCause() instanceof Error) {
+                    throw (Error) ee.getCause();
+                }
+                throw new IllegalStateException(ee.getCause());
+            }
+        }
+
+        /**
+         * Is this the thread of this shard?
+         * @return true when called from a task of this shard
+         */
+        public boolean isCurrent() {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * Give the house's place on this shard back
+         */
+        public void release() {
+            IoTShardPool.this.release(this);
+        }
+
+        /**
+         * Get the number of tasks waiting on this shard
+         * @return the count
+         */
+        public synchronized int getQueued() {
+            return executor != null ? executor.getQueue().size() : 0;
+        }
+
+        /**
+         * Get the number of houses assigned to this shard
+         * @return the count
+         */
+        public int getHouses() {
+            synchronized (IoTShardPool.this) {
+                return houses;
+            }
+        }
+    }
+
+    /**
+     * Run a task on the calling thread, passing on what it throws as for a queued task
+     */
+    static <T> T callNow(Callable<T> task) {
+        try {
+            return task.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
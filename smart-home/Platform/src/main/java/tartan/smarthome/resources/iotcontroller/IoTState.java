@@ -0,0 +1,245 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A reusable holder for the readings a house reports. Each key of the {@link IoTValues} reading set
+ * has a fixed slot, so a state can be decoded, compared and encoded without creating objects. Flags
+ * are stored as 0/1, the HVAC mode as 1 (heater) or 0 (chiller).
+ *
+ * A holder is not thread safe; keep one per thread or per connection.
+ */
+public final class IoTState {
+
+    // slots, in the order the house reports them
+    public static final int TEMP_READING = 0;
+    public static final int HUMIDITY_READING = 1;
+    public static final int DOOR_STATE = 2;
+    public static final int LIGHT_STATE = 3;
+    public static final int PROXIMITY_STATE = 4;
+    public static final int ALARM_STATE = 5;
+    public static final int ALARM_ACTIVE = 6;
+    public static final int HEATER_STATE = 7;
+    public static final int CHILLER_STATE = 8;
+    public static final int HVAC_MODE = 9;
+    public static final int HUMIDIFIER_STATE = 10;
+    public static final int LOCK_STATE = 11;
+    public static final int INTRUDER_DETECT = 12;
+    public static final int NIGHT_MODE = 13;
+
+    public static final int KEY_COUNT = 14;
+
+    /** the protocol key for each slot */
+    static final String[] KEYS = {
+            IoTValues.TEMP_READING, IoTValues.HUMIDITY_READING, IoTValues.DOOR_STATE, IoTValues.LIGHT_STATE,
+            IoTValues.PROXIMITY_STATE, IoTValues.ALARM_STATE, IoTValues.ALARM_ACTIVE, IoTValues.HEATER_STATE,
+            IoTValues.CHILLER_STATE, IoTValues.HVAC_MODE, IoTValues.HUMIDIFIER_STATE, IoTValues.LOCK_STATE,
+            IoTValues.INTRUDER_DETECT, IoTValues.NIGHT_MODE
+    };
+
+    private static final String HEATER = "Heater";
+    private static final String CHILLER = "Chiller";
+
+    private final int[] values = new int[KEY_COUNT];
+
+    /** bit n is set when slot n has a value */
+    private int present = 0;
+
+    /**
+     * Find the slot for a protocol key
+     * @param key the key, e.g. {@link IoTValues#DOOR_STATE}
+     * @return the slot or -1 if the key is not a reading
+     */
+    public static int indexOf(String key) {
+        for (int i = 0; i < KEY_COUNT; i++) {
+            if (KEYS[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the protocol key for a slot
+     * @param slot the slot
+     * @return the key
+     */
+    public static String keyOf(int slot) {
+        return KEYS[slot];
+    }
+
+    /** every slot */
+    public static final int ALL_SLOTS = (1 << KEY_COUNT) - 1;
+
+    /**
+     * Get the slots of a set of protocol keys. Keys that are not readings are ignored
+     * @param keys the keys
+     * @return bit n is set when slot n is named
+     */
+    public static int maskOf(Collection<String> keys) {
+        int mask = 0;
+        for (String key : keys) {
+            int slot = indexOf(key);
+            if (slot >= 0) {
+                mask |= 1 << slot;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Is the slot a numeric reading rather than a flag?
+     * @param slot the slot
+     * @return true for the temperature and humidity readings
+     */
+    public static boolean isReading(int slot) {
+        return slot == TEMP_READING || slot == HUMIDITY_READING;
+    }
+
+    /**
+     * Forget all values
+     */
+    public void clear() {
+        present = 0;
+    }
+
+    /**
+     * Does the slot have a value?
+     * @param slot the slot
+     * @return true if set
+     */
+    public boolean has(int slot) {
+        return (present & (1 << slot)) != 0;
+    }
+
+    /**
+     * Get the raw value of a slot
+     * @param slot the slot
+     * @return the value; 0 if not set
+     */
+    public int get(int slot) {
+        return has(slot) ? values[slot] : 0;
+    }
+
+    /**
+     * Get a flag
+     * @param slot the slot
+     * @return true if the flag is set to 1
+     */
+    public boolean getFlag(int slot) {
+        return get(slot) == 1;
+    }
+
+    /**
+     * Set the raw value of a slot
+     * @param slot the slot
+     * @param value the value
+     */
+    public void set(int slot, int value) {
+        values[slot] = value;
+        present |= (1 << slot);
+    }
+
+    /**
+     * Set a flag
+     * @param slot the slot
+     * @param flag the value
+     */
+    public void setFlag(int slot, boolean flag) {
+        set(slot, flag ? 1 : 0);
+    }
+
+    /**
+     * Forget the value of one slot
+     * @param slot the slot
+     */
+    public void remove(int slot) {
+        present &= ~(1 << slot);
+    }
+
+    /**
+     * Set the slots that another state has, keeping the others
+     * @param other the source
+     */
+    public void merge(IoTState other) {
+        for (int i = 0; i < KEY_COUNT; i++) {
+            if (other.has(i)) {
+                set(i, other.values[i]);
+            }
+        }
+    }
+
+    /**
+     * Get the set of slots that have a value
+     * @return a bit mask, bit n for slot n
+     */
+    public int presentMask() {
+        return present;
+    }
+
+    /**
+     * Copy another state into this one
+     * @param other the source
+     */
+    public void copyFrom(IoTState other) {
+        System.arraycopy(other.values, 0, values, 0, KEY_COUNT);
+        present = other.present;
+    }
+
+    /**
+     * Set the slots found in a state map. Keys that are not readings are ignored
+     * @param state a state in the form used by the controller
+     */
+    public void copyFrom(Map<String, Object> state) {
+        for (int i = 0; i < KEY_COUNT; i++) {
+            Object v = state.get(KEYS[i]);
+            if (v instanceof Boolean) {
+                setFlag(i, (Boolean) v);
+            } else if (v instanceof Integer) {
+                set(i, (Integer) v);
+            } else if (i == HVAC_MODE && v != null) {
+                setFlag(i, HEATER.equals(v));
+            }
+        }
+    }
+
+    /**
+     * Add the values of this state to a map in the form used by the controller: readings become
+     * Integers, the HVAC mode becomes "Heater" or "Chiller" and everything else becomes a Boolean
+     * @param state the map to fill
+     * @return the map
+     */
+    public Map<String, Object> putInto(Map<String, Object> state) {
+        for (int i = 0; i < KEY_COUNT; i++) {
+            if (!has(i)) {
+                continue;
+            }
+            if (isReading(i)) {
+                state.put(KEYS[i], values[i]);
+            } else if (i == HVAC_MODE) {
+                state.put(KEYS[i], values[i] == 1 ? HEATER : CHILLER);
+            } else {
+                state.put(KEYS[i], values[i] == 1);
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Compare two states
+     * @param other the other state
+     * @return true if both have the same slots set to the same values
+     */
+    public boolean sameAs(IoTState other) {
+        if (present != other.present) {
+            return false;
+        }
+        for (int i = 0; i < KEY_COUNT; i++) {
+            if (has(i) && values[i] != other.values[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
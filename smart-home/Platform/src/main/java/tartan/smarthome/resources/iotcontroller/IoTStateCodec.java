@@ -0,0 +1,234 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * A byte-level encoder/decoder for the text protocol frames exchanged with a house. State updates
+ * ({@code SU:TR=65;HR=90;DS=1;...}) are parsed straight into an {@link IoTState} and set state
+ * requests ({@code SS:DS=1;LKS=0;...}) are written straight into a buffer, so a poll cycle creates
+ * no strings, tokenizers or boxed values.
+ *
+ * A codec keeps a scratch buffer and is not thread safe; keep one per thread.
+ */
+public class IoTStateCodec {
+
+    /** the slots a house accepts in a set state request, in the order they are written */
+    private static final int[] SETTABLE = {
+            IoTState.DOOR_STATE, IoTState.LOCK_STATE, IoTState.NIGHT_MODE, IoTState.LIGHT_STATE,
+            IoTState.ALARM_STATE, IoTState.ALARM_ACTIVE, IoTState.HUMIDIFIER_STATE, IoTState.CHILLER_STATE,
+            IoTState.HEATER_STATE
+    };
+
+    /** the largest frame the codec produces or accepts through the scratch buffer */
+    public static final int MAX_FRAME = 256;
+
+    private static final byte[][] KEY_BYTES = new byte[IoTState.KEY_COUNT][];
+
+    /** each key packed into an int, one byte per character; keys are at most three characters */
+    private static final int[] KEY_CODES = new int[IoTState.KEY_COUNT];
+
+    private static final byte[] SET_STATE_HEADER = { 'S', 'S', ':' };
+    private static final byte[] GET_STATE_HEADER = { 'G', 'S' };
+    private static final byte MSG_DELIM = ':';
+
+    private static final byte PARAM_DELIM = ';';
+    private static final byte PARAM_EQ = '=';
+    private static final byte MSG_END = '.';
+
+    static {
+        for (int i = 0; i < IoTState.KEY_COUNT; i++) {
+            String key = IoTState.keyOf(i);
+            KEY_BYTES[i] = new byte[key.length()];
+            int code = 0;
+            for (int c = 0; c < key.length(); c++) {
+                KEY_BYTES[i][c] = (byte) key.charAt(c);
+                code = (code << 8) | key.charAt(c);
+            }
+            KEY_CODES[i] = code;
+        }
+    }
+
+    /** holds text responses while they are parsed */
+    private final ByteBuffer scratch = ByteBuffer.allocate(MAX_FRAME);
+
+    /**
+     * Decode a state update frame. Unknown keys are skipped
+     * @param frame the frame; it is read from its position to its limit and the position is advanced
+     *              past the frame
+     * @param state the holder to fill; it is cleared first
+     * @return true if the frame is a well formed state update
+     */
+    public boolean decodeStateUpdate(ByteBuffer frame, IoTState state) {
+        state.clear();
+
+        int pos = frame.position();
+        int end = frame.limit();
+
+        // only message that comes from house
+        if (end - pos < 3 || frame.get(pos) != 'S' || frame.get(pos + 1) != 'U' || frame.get(pos + 2) != ':') {
+            return false;
+        }
+        pos += 3;
+
+        while (pos < end) {
+            byte b = frame.get(pos);
+            if (b == MSG_END || b == '\n' || b == '\r') {
+                break;
+            }
+
+            // the key
+            int code = 0;
+            int keyLength = 0;
+            while (pos < end && (b = frame.get(pos)) != PARAM_EQ) {
+                if (b == PARAM_DELIM || b == MSG_END) {
+                    return false;
+                }
+                code = (code << 8) | (b & 0xff);
+                keyLength++;
+                pos++;
+            }
+            if (pos == end) {
+                return false;
+            }
+            pos++; // skip '='
+
+            // the value
+            boolean negative = false;
+            if (pos < end && frame.get(pos) == '-') {
+                negative = true;
+                pos++;
+            }
+            int value = 0;
+            int digits = 0;
+            while (pos < end && (b = frame.get(pos)) >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                digits++;
+                pos++;
+            }
+            if (digits == 0) {
+                return false;
+            }
+
+            int slot = keyLength <= 3 ? slotOf(code) : -1;
+            if (slot >= 0) {
+                state.set(slot, negative ? -value : value);
+            }
+
+            if (pos < end && frame.get(pos) == PARAM_DELIM) {
+                pos++;
+            }
+        }
+        frame.position(pos < end ? pos + 1 : end);
+        return true;
+    }
+
+    /**
+     * Decode a state update that has already been read as text
+     * @param frame the frame
+     * @param state the holder to fill
+     * @return true if the frame is a well formed state update
+     */
+    public boolean decodeStateUpdate(CharSequence frame, IoTState state) {
+        if (frame.length() > scratch.capacity()) {
+            state.clear();
+            return false;
+        }
+        scratch.clear();
+        for (int i = 0; i < frame.length(); i++) {
+            scratch.put((byte) frame.charAt(i));
+        }
+        scratch.flip();
+        return decodeStateUpdate(scratch, state);
+    }
+
+    /**
+     * Encode a get state request. A request for some of the slots names them ({@code GS:DS;LKS.});
+     * a house that does not support this answers with every slot
+     * @param mask the slots wanted; 0 or {@link IoTState#ALL_SLOTS} for all of them
+     * @param frame the buffer to write into, from its position
+     */
+    public void encodeGetState(int mask, ByteBuffer frame) {
+        frame.put(GET_STATE_HEADER);
+        if (mask != 0 && mask != IoTState.ALL_SLOTS) {
+            frame.put(MSG_DELIM);
+            boolean first = true;
+            for (int slot = 0; slot < IoTState.KEY_COUNT; slot++) {
+                if ((mask & (1 << slot)) != 0) {
+                    if (!first) {
+                        frame.put(PARAM_DELIM);
+                    }
+                    frame.put(KEY_BYTES[slot]);
+                    first = false;
+                }
+            }
+        }
+        frame.put(MSG_END);
+    }
+
+    /**
+     * Encode a set state request for the settable keys found in a state map
+     * @param state the state in the form used by the controller
+     * @param frame the buffer to write into, from its position
+     */
+    public void encodeSetState(Map<String, Object> state, ByteBuffer frame) {
+        frame.put(SET_STATE_HEADER);
+        boolean first = true;
+        for (int slot : SETTABLE) {
+            Object value = state.get(IoTState.keyOf(slot));
+            if (value instanceof Boolean) {
+                first = putParam(frame, slot, (Boolean) value ? 1 : 0, first);
+            }
+        }
+        frame.put(MSG_END);
+    }
+
+    /**
+     * Encode a set state request for the settable slots of a state
+     * @param state the state
+     * @param frame the buffer to write into, from its position
+     */
+    public void encodeSetState(IoTState state, ByteBuffer frame) {
+        frame.put(SET_STATE_HEADER);
+        boolean first = true;
+        for (int slot : SETTABLE) {
+            if (state.has(slot)) {
+                first = putParam(frame, slot, state.get(slot), first);
+            }
+        }
+        frame.put(MSG_END);
+    }
+
+    /**
+     * Is the slot one a house accepts in a set state request?
+     * @param slot the slot
+     * @return true if settable
+     */
+    public static boolean isSettable(int slot) {
+        for (int s : SETTABLE) {
+            if (s == slot) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean putParam(ByteBuffer frame, int slot, int flag, boolean first) {
+        if (!first) {
+            frame.put(PARAM_DELIM);
+        }
+        frame.put(KEY_BYTES[slot]);
+        frame.put(PARAM_EQ);
+        frame.put((byte) (flag == 1 ? '1' : '0'));
+        return false;
+    }
+
+    private static int slotOf(int code) {
+        for (int i = 0; i < IoTState.KEY_COUNT; i++) {
+            if (KEY_CODES[i] == code) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
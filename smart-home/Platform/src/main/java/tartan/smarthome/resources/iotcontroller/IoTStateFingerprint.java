@@ -0,0 +1,65 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.time.LocalTime;
+import java.util.HashMap;
+import java.util.Map;
+
+import tartan.smarthome.utils.TartanTimeUtils;
+
+/**
+ * Remembers what the evaluator last saw for a house: the readings and flags the house reported, the
+ * user settings, and whether it was night. The evaluator gives the same answer for the same inputs,
+ * so while they stay the same the update cycle need not evaluate, log or send anything.
+ *
+ * A fingerprint is used by one update cycle at a time and is not thread safe.
+ */
+public class IoTStateFingerprint {
+
+    private final IoTState readings = new IoTState();
+    private final IoTState scratch = new IoTState();
+    private final Map<String, Object> settings = new HashMap<>();
+    private boolean night = false;
+    private boolean known = false;
+
+    /**
+     * Compare a state with the one last recorded, and record it
+     * @param state the complete state, including the user settings
+     * @param now the time of day the evaluator would use for night mode
+     * @return true if anything the evaluator looks at changed, or nothing was recorded yet
+     */
+    public boolean changed(Map<String, Object> state, LocalTime now) {
+        scratch.clear();
+        scratch.copyFrom(state);
+
+        // everything that is not a reading is a setting, except what the platform adds itself
+        Map<String, Object> others = new HashMap<>();
+        for (Map.Entry<String, Object> e : state.entrySet()) {
+            if (IoTState.indexOf(e.getKey()) < 0 && !IoTValues.NOW.equals(e.getKey())) {
+                others.put(e.getKey(), e.getValue());
+            }
+        }
+
+        Object start = state.get(IoTValues.NIGHT_START_TIME);
+        Object end = state.get(IoTValues.NIGHT_END_TIME);
+        boolean isNight = start instanceof LocalTime && end instanceof LocalTime
+                && TartanTimeUtils.isBetween(now, (LocalTime) start, (LocalTime) end);
+
+        boolean changed = !known || !readings.sameAs(scratch) || night != isNight || !settings.equals(others);
+        if (changed) {
+            readings.copyFrom(scratch);
+            settings.clear();
+            settings.putAll(others);
+            night = isNight;
+            known = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Forget the recorded state, so the next state is evaluated whatever it is. Used when the house
+     * may not be in the state the platform set, e.g. after a reconnect or a failed send
+     */
+    public void reset() {
+        known = false;
+    }
+}
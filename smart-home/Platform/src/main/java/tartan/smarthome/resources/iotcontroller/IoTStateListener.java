@@ -0,0 +1,14 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * Receives the state updates a subscribed house pushes when one of its sensors changes
+ */
+public interface IoTStateListener {
+
+    /**
+     * Called on the connection's I/O thread for every pushed update. The holder is reused for the
+     * next update, so copy what must be kept and do not block
+     * @param state the state reported by the house
+     */
+    void stateChanged(IoTState state);
+}
@@ -0,0 +1,81 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One version of the state of a house, as the platform last saw or set it. A snapshot never
+ * changes: a writer makes the next version from the current one and publishes it, so readers
+ * (REST calls, the away timer) can use a snapshot without locking and without seeing half an
+ * update.
+ */
+public final class IoTStateSnapshot {
+
+    /** the snapshot before the house has reported anything */
+    public static final IoTStateSnapshot EMPTY = new IoTStateSnapshot(0, 0, Collections.<String, Object>emptyMap());
+
+    private final long version;
+    private final long timestamp;
+    private final Map<String, Object> state;
+
+    private IoTStateSnapshot(long version, long timestamp, Map<String, Object> state) {
+        this.version = version;
+        this.timestamp = timestamp;
+        this.state = state;
+    }
+
+    /**
+     * Make the next version of this snapshot
+     * @param changes the values that changed
+     * @param replace true if the changes are the whole state, false to merge them into this one
+     * @param now the time of the change, in ms since the epoch
+     * @return the new snapshot
+     */
+    public IoTStateSnapshot next(Map<String, Object> changes, boolean replace, long now) {
+        Map<String, Object> copy = replace ? new HashMap<String, Object>() : new HashMap<>(state);
+        copy.putAll(changes);
+        return new IoTStateSnapshot(version + 1, now, Collections.unmodifiableMap(copy));
+    }
+
+    /**
+     * Get the version; each change to the state of a house makes a new, higher version
+     * @return the version, 0 before the house has reported anything
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the time of this version
+     * @return the time in ms since the epoch, 0 before the house has reported anything
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Get the state
+     * @return the state, which cannot be changed
+     */
+    public Map<String, Object> getState() {
+        return state;
+    }
+
+    /**
+     * Get one value of the state
+     * @param key the state key
+     * @return the value, or null if not known
+     */
+    public Object get(String key) {
+        return state.get(key);
+    }
+
+    /**
+     * Has the house reported anything yet?
+     * @return true for the initial, empty snapshot
+     */
+    public boolean isEmpty() {
+        return version == 0;
+    }
+}
@@ -0,0 +1,48 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * Reach houses over TCP: with a blocking socket each, or through a shared non-blocking engine
+ */
+public class IoTTcpTransport implements IoTTransport {
+
+    private final IoTSelectorEngine engine;
+    private final boolean pipelined;
+
+    /**
+     * Create a transport that gives each house a blocking socket
+     */
+    public IoTTcpTransport() {
+        this(null, false);
+    }
+
+    /**
+     * Create a transport
+     * @param engine the engine that owns the sockets, or null for a blocking socket per house
+     * @param pipelined tag requests so several can be in flight; needs an engine
+     */
+    public IoTTcpTransport(IoTSelectorEngine engine, boolean pipelined) {
+        this.engine = engine;
+        this.pipelined = pipelined;
+    }
+
+    @Override
+    public String getName() {
+        return TCP;
+    }
+
+    /**
+     * Create a connection to a house
+     * @param address the host name or address
+     * @param port the house port
+     * @return the connection
+     */
+    @Override
+    public IoTConnection createConnection(String address, Integer port) {
+        if (engine == null) {
+            return new IoTConnection(address, port);
+        }
+        IoTNioConnection connection = new IoTNioConnection(address, port, engine);
+        connection.setPipelined(pipelined);
+        return connection;
+    }
+}
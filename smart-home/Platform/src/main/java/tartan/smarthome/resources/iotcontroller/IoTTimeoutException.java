@@ -0,0 +1,16 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * Thrown when a house does not answer before its deadline. It is unchecked so the connection API
+ * keeps its shape; the resource layer maps it to HTTP 504.
+ */
+public class IoTTimeoutException extends RuntimeException {
+
+    /**
+     * Create the exception
+     * @param message what timed out
+     */
+    public IoTTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,281 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * A hashed timing wheel for per-house deadlines such as the away timer. Time is cut into ticks and
+ * the wheel has a fixed number of slots; a timeout goes in the slot its deadline falls in, with the
+ * number of whole turns of the wheel still to wait. Scheduling and cancelling a timeout are constant
+ * time whatever the number of houses, and the wheel needs no thread of its own: a scheduler runs its
+ * tick.
+ *
+ * Timeouts fire up to one tick late. Their tasks are handed back to the scheduler, so a slow task
+ * does not hold up the wheel.
+ */
+public class IoTTimingWheel {
+
+    /** the default tick and number of slots: a turn of the wheel is about 50 seconds */
+    public static final long DEFAULT_TICK = 100;
+    public static final int DEFAULT_SLOTS = 512;
+
+    private final long tick;
+    private final Slot[] slots;
+    private final int mask;
+
+    /** the time of tick 0, and the next tick to expire */
+    private final long startTime;
+    private long nextTick = 0;
+
+    private IoTScheduler scheduler = null;
+    private ScheduledFuture<?> ticker = null;
+
+    private long pending = 0;
+    private long expired = 0;
+    private long cancelled = 0;
+
+    /**
+     * Create a wheel
+     * @param tick the length of a tick in ms
+     * @param slots the number of slots, rounded up to a power of two
+     */
+    public IoTTimingWheel(long tick, int slots) {
+        this(tick, slots, System.currentTimeMillis());
+    }
+
+    /**
+     * Create a wheel that starts at a given time
+     * @param tick the length of a tick in ms
+     * @param slots the number of slots, rounded up to a power of two
+     * @param startTime the time of tick 0, in ms since the epoch
+     */
+    IoTTimingWheel(long tick, int slots, long startTime) {
+        if (tick < 1 || slots < 1) {
+            throw new IllegalArgumentException("A timing wheel needs a tick and at least one slot");
+        }
+        int size = Integer.highestOneBit(slots);
+        if (size < slots) {
+            size <<= 1;
+        }
+        this.tick = tick;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            this.slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.startTime = startTime;
+    }
+
+    /**
+     * Start turning the wheel. Expired timeouts run on the scheduler
+     * @param scheduler the scheduler that runs the tick and the expired tasks
+     */
+    public synchronized void start(IoTScheduler scheduler) {
+        if (ticker != null) {
+            return;
+        }
+        this.scheduler = scheduler;
+        ticker = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expire(System.currentTimeMillis());
+            }
+        }, tick, tick);
+    }
+
+    /**
+     * Stop turning the wheel. Timeouts that have not fired stay in place
+     */
+    public synchronized void stop() {
+        if (ticker != null) {
+            ticker.cancel(false);
+            ticker = null;
+        }
+        scheduler = null;
+    }
+
+    /**
+     * Run a task after a delay
+     * @param task the task
+     * @param delay the delay in ms
+     * @return the timeout, which can be cancelled
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        return schedule(task, delay, System.currentTimeMillis());
+    }
+
+    /**
+     * Run a task after a delay, measured from a given time
+     * @param task the task
+     * @param delay the delay in ms
+     * @param now the current time, in ms since the epoch
+     * @return the timeout
+     */
+    synchronized Timeout schedule(Runnable task, long delay, long now) {
+        // round up, so a timeout never fires early
+        long deadline = (now - startTime + Math.max(delay, 0) + tick - 1) / tick;
+        long ticks = Math.max(deadline, nextTick) - nextTick;
+
+        Timeout timeout = new Timeout(task);
+        timeout.rounds = ticks / slots.length;
+        timeout.slot = slots[(int) ((nextTick + ticks) & mask)];
+        timeout.slot.add(timeout);
+        pending++;
+        return timeout;
+    }
+
+    /**
+     * Expire the timeouts of every tick up to a given time
+     * @param now the current time, in ms since the epoch
+     */
+    void expire(long now) {
+        Timeout due = null;
+        synchronized (this) {
+            long lastTick = (now - startTime) / tick;
+            for (; nextTick <= lastTick; nextTick++) {
+                Slot slot = slots[(int) (nextTick & mask)];
+                for (Timeout t = slot.head; t != null; ) {
+                    Timeout next = t.next;
+                    if (t.rounds > 0) {
+                        t.rounds--;
+                    } else {
+                        slot.remove(t);
+                        t.state = Timeout.EXPIRED;
+                        t.next = due;
+                        due = t;
+                        pending--;
+                        expired++;
+                    }
+                    t = next;
+                }
+            }
+        }
+        for (Timeout t = due; t != null; ) {
+            Timeout next = t.next;
+            t.next = null;
+            run(t.task);
+            t = next;
+        }
+    }
+
+    private void run(Runnable task) {
+        IoTScheduler runner;
+        synchronized (this) {
+            runner = scheduler;
+        }
+        if (runner != null) {
+            runner.schedule(task, 0);
+        } else {
+            task.run();
+        }
+    }
+
+    /**
+     * Get the number of timeouts waiting to fire
+     * @return the count
+     */
+    public synchronized long getPending() {
+        return pending;
+    }
+
+    /**
+     * Get the number of timeouts that fired
+     * @return the count
+     */
+    public synchronized long getExpired() {
+        return expired;
+    }
+
+    /**
+     * Get the number of timeouts cancelled before they fired
+     * @return the count
+     */
+    public synchronized long getCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * A slot of the wheel: a doubly linked list of timeouts, so a timeout can remove itself
+     */
+    private static class Slot {
+        Timeout head;
+
+        void add(Timeout t) {
+            t.prev = null;
+            t.next = head;
+            if (head != null) {
+                head.prev = t;
+            }
+            head = t;
+        }
+
+        void remove(Timeout t) {
+            if (t.prev != null) {
+                t.prev.next = t.next;
+            } else {
+                head = t.next;
+            }
+            if (t.next != null) {
+                t.next.prev = t.prev;
+            }
+            t.prev = null;
+            t.next = null;
+        }
+    }
+
+    /**
+     * A task waiting on the wheel
+     */
+    public class Timeout {
+        static final int PENDING = 0;
+        static final int EXPIRED = 1;
+        static final int CANCELLED = 2;
+
+        private final Runnable task;
+        private int state = PENDING;
+        private long rounds;
+        private Slot slot;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Cancel the timeout
+         * @return true if it had not fired yet
+         */
+        public boolean cancel() {
+            synchronized (IoTTimingWheel.this) {
+                if (state != PENDING) {
+                    return false;
+                }
+                state = CANCELLED;
+                slot.remove(this);
+                pending--;
+                cancelled++;
+                return true;
+            }
+        }
+
+        /**
+         * Is the timeout still waiting to fire?
+         * @return true if neither fired nor cancelled
+         */
+        public boolean isPending() {
+            synchronized (IoTTimingWheel.this) {
+                return state == PENDING;
+            }
+        }
+
+        /**
+         * Has the timeout fired?
+         * @return true once its task was handed off to run
+         */
+        public boolean isExpired() {
+            synchronized (IoTTimingWheel.this) {
+                return state == EXPIRED;
+            }
+        }
+    }
+}
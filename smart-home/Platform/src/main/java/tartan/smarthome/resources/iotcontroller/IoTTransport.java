@@ -0,0 +1,33 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * The way the platform reaches a house. A transport creates the connections that the
+ * {@link IoTConnectManager} talks through; the protocol on top is the same for all of them.
+ *
+ * <ul>
+ *     <li>{@link IoTTcpTransport}: a TCP socket, the default</li>
+ *     <li>{@link IoTUnixTransport}: a Unix domain socket, for a house or gateway on the same machine</li>
+ *     <li>{@link IoTLoopbackTransport}: a simulated house in this process, for tests and benchmarks</li>
+ * </ul>
+ */
+public interface IoTTransport {
+
+    /** transport names, as used in the house settings */
+    String TCP = "tcp";
+    String UNIX = "unix";
+    String LOOPBACK = "loopback";
+
+    /**
+     * Get the name of this transport
+     * @return the name
+     */
+    String getName();
+
+    /**
+     * Create a connection to a house. It is not connected yet
+     * @param address where the house is; what this means depends on the transport
+     * @param port the house port, if the transport has ports
+     * @return the connection
+     */
+    IoTConnection createConnection(String address, Integer port);
+}
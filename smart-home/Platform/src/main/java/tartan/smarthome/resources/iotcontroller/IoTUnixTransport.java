@@ -0,0 +1,94 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.SocketChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reach houses through Unix domain sockets, for a house or gateway process on the same machine. The
+ * address of a house is the path of its socket and the port is not used. The protocol and deadlines
+ * are those of a blocking TCP connection, without the TCP stack in between.
+ *
+ * Unix domain socket channels arrived in Java 16. The platform builds for Java 8, so they are
+ * looked up at run time; on an older runtime connecting fails with a message saying so.
+ */
+public class IoTUnixTransport implements IoTTransport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IoTUnixTransport.class);
+
+    @Override
+    public String getName() {
+        return UNIX;
+    }
+
+    /**
+     * Create a connection to a house
+     * @param address the path of the house socket
+     * @param port not used
+     * @return the connection
+     */
+    @Override
+    public IoTConnection createConnection(String address, Integer port) {
+        return new UnixConnection(address, port);
+    }
+
+    /**
+     * Is this runtime able to open Unix domain sockets?
+     * @return true on Java 16 or later
+     */
+    public static boolean isSupported() {
+        try {
+            Class.forName("java.net.UnixDomainSocketAddress");
+            return true;
+        } catch (ClassNotFoundException cnfe) {
+            return false;
+        }
+    }
+
+    /**
+     * A blocking connection over a Unix domain socket
+     */
+    private static class UnixConnection extends IoTConnection {
+
+        UnixConnection(String path, Integer port) {
+            super(path, port);
+        }
+
+        /**
+         * Get the socket address of the house
+         * @return the address, or null if Unix domain sockets are not available
+         */
+        @Override
+        protected SocketAddress houseAddress() {
+            try {
+                Method of = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+                return (SocketAddress) of.invoke(null, getAddress());
+            } catch (ReflectiveOperationException e) {
+                LOGGER.error("Unix domain sockets need Java 16 or later: {}", getAddress());
+                return null;
+            }
+        }
+
+        /**
+         * Open a Unix domain socket channel
+         * @return the channel
+         * @throws IOException if the channel cannot be opened
+         */
+        @Override
+        protected SocketChannel openChannel() throws IOException {
+            try {
+                ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+                Method open = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+                return (SocketChannel) open.invoke(null, unix);
+            } catch (IllegalArgumentException | ReflectiveOperationException e) {
+                throw new IOException("Unix domain sockets are not available", e);
+            }
+        }
+    }
+}
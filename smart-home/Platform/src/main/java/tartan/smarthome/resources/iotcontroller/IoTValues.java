@@ -1,5 +1,10 @@
 package tartan.smarthome.resources.iotcontroller;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * Constant values used in the house
  *
@@ -33,6 +38,13 @@ public abstract class IoTValues {
     public static final String MSG_DELIM = ":";
     public static final String PARAM_EQ = "=";
     public static final String MSG_END = ".";
+    public static final String SEQ_DELIM = "#"; // separates a request sequence id from the message
+    public static final String HELLO = "HELLO"; // protocol handshake, answered only by houses that support it
+    public static final String BINARY_PROTOCOL = "BIN1";
+    public static final String PUSH_TAG = "*"; // tags state updates a subscribed house sends on its own
+    public static final String UNIT_DELIM = "@"; // separates a house id from the message on a gateway link
+    public static final String ALL_UNITS = "*"; // addresses every house behind a gateway
+    public static final String BATCH_DELIM = "|"; // separates the per-house answers to a batch request
 
     // target temperature
     public static final String TARGET_TEMP = "TT";
@@ -72,6 +84,11 @@ public abstract class IoTValues {
     public static final String GET_STATE = "GS";
     public static final String SET_STATE = "SS";
     public static final String STATE_UPDATE = "SU";
+    public static final String SUBSCRIBE = "SUB";
+
+    // the keys a quick alarm check needs
+    public static final Set<String> SECURITY_KEYS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            DOOR_STATE, LOCK_STATE, PROXIMITY_STATE, ALARM_STATE, ALARM_ACTIVE, INTRUDER_DETECT)));
 
     public static final String SETTINGS_FILE = "settings.txt";
     public static final String USERS_DB = "users.txt";
@@ -113,6 +113,15 @@ div {
 </style>
 <div id="${tartanHome.name}_div">
 <fieldset id="${tartanHome.name}_control"><legend><h2>House: ${tartanHome.name}@${tartanHome.address}</h2></legend>
+    <p>
+        <strong>Link:
+            <#if tartanHome.linkState == "UP">
+                <font color="green">${tartanHome.linkState}</font>
+            <#else>
+                <font color="red">${tartanHome.linkState}</font>
+            </#if>
+        </strong>
+    </p>
     <h3>HVAC</h3>
     <p>
         <strong>Temperature: <font color="blue">${tartanHome.temperature} F </font></strong>
@@ -0,0 +1,225 @@
+package tartan.smarthome.resources;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tartan.smarthome.TartanHomeSettings;
+import tartan.smarthome.core.TartanHome;
+import tartan.smarthome.core.TartanHomeValues;
+import tartan.smarthome.resources.iotcontroller.IoTLoopbackTransport;
+import tartan.smarthome.resources.iotcontroller.IoTScheduler;
+import tartan.smarthome.resources.iotcontroller.IoTState;
+import tartan.smarthome.resources.iotcontroller.IoTTimeoutException;
+import tartan.smarthome.resources.iotcontroller.IoTTransport;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TartanHomeServiceTest {
+
+    private static int houses = 0;
+
+    private IoTScheduler scheduler;
+    private ExecutorService callers;
+
+    @Before
+    public void setUp() {
+        // one shard, so a test can hold up the house
+        scheduler = new IoTScheduler(2, 1);
+        scheduler.start();
+        callers = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        callers.shutdownNow();
+        scheduler.stop();
+    }
+
+    /**
+     * Settings for a simulated house of its own, polled rarely so the tests own the shard
+     */
+    static TartanHomeSettings house(String name) {
+        TartanHomeSettings settings = new TartanHomeSettings();
+        settings.setName(name);
+        settings.setAddress(name + "-" + (houses++));
+        settings.setPort(0);
+        settings.setTransport(IoTTransport.LOOPBACK);
+        settings.setUser("admin");
+        settings.setPassword("1234");
+        settings.setTargetTemp("70");
+        settings.setAlarmDelay("10");
+        settings.setAlarmPasscode("1234");
+        settings.setNightStartTime("22:00");
+        settings.setNightEndTime("06:00");
+        settings.setPollMinPeriod(60000);
+        settings.setPollMaxPeriod(60000);
+        return settings;
+    }
+
+    private TartanHomeService connect(TartanHomeSettings settings) throws Exception {
+        TartanHomeService service = new TartanHomeService(null, null, scheduler);
+        service.initializeSettings(settings, 60);
+        service.connect();
+        return service;
+    }
+
+    private Future<Boolean> post(final TartanHomeService service, final TartanHome update) {
+        return callers.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return service.setState(update);
+            }
+        });
+    }
+
+    /**
+     * Hold the house's shard until the latch is released
+     */
+    private void holdShard(final CountDownLatch release) {
+        scheduler.getShards().assign().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    @Test
+    public void updatesInOneWindowAreMergedTest() throws Exception {
+        TartanHomeSettings settings = house("merge");
+        settings.setCoalesceWindow(200);
+        TartanHomeService service = connect(settings);
+
+        TartanHome light = new TartanHome();
+        light.setLight(TartanHomeValues.OFF);
+        TartanHome alarm = new TartanHome();
+        alarm.setAlarmArmed(TartanHomeValues.ARMED);
+        TartanHome temp = new TartanHome();
+        temp.setTargetTemp("72");
+
+        List<Future<Boolean>> posted = new ArrayList<>();
+        posted.add(post(service, light));
+        posted.add(post(service, alarm));
+        posted.add(post(service, temp));
+        for (Future<Boolean> p : posted) {
+            assertTrue(p.get(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(2, service.getCoalescedUpdates());
+        assertEquals(0, IoTLoopbackTransport.shared().house(settings.getAddress()).get(IoTState.LIGHT_STATE));
+        assertEquals(1, IoTLoopbackTransport.shared().house(settings.getAddress()).get(IoTState.ALARM_STATE));
+    }
+
+    @Test
+    public void silentHouseDoesNotHoldUpItsShardTest() throws Exception {
+        // the backlog accepts the connection; no poll is ever answered
+        ServerSocket silent = new ServerSocket(0);
+        TartanHomeSettings quiet = house("silent");
+        quiet.setTransport(IoTTransport.TCP);
+        quiet.setAddress("127.0.0.1");
+        quiet.setPort(silent.getLocalPort());
+        quiet.setReadTimeout(2000);
+        quiet.setPollMinPeriod(100);
+        quiet.setPollMaxPeriod(100);
+        TartanHomeService waiting = connect(quiet);
+        assertTrue(waiting.isConnected());
+
+        // the other house shares the only shard; its updates do not wait for the silent one
+        TartanHomeService service = connect(house("neighbour"));
+        Thread.sleep(300);
+        for (int i = 0; i < 5; i++) {
+            TartanHome light = new TartanHome();
+            light.setLight(i % 2 == 0 ? TartanHomeValues.OFF : TartanHomeValues.ON);
+            long start = System.currentTimeMillis();
+            assertTrue(post(service, light).get(5, TimeUnit.SECONDS));
+            long waited = System.currentTimeMillis() - start;
+            assertTrue("waited " + waited + " ms", waited < 1000);
+        }
+        silent.close();
+    }
+
+    @Test
+    public void failureReachesEveryCallerTest() throws Exception {
+        TartanHomeSettings settings = house("fail");
+        settings.setCoalesceWindow(50);
+        settings.setReadTimeout(300);
+        TartanHomeService service = connect(settings);
+
+        // the batch cannot start before its read deadline, so it is dropped
+        CountDownLatch release = new CountDownLatch(1);
+        holdShard(release);
+        TartanHome light = new TartanHome();
+        light.setLight(TartanHomeValues.OFF);
+        Future<Boolean> first = post(service, light);
+        Future<Boolean> second = post(service, light);
+        Thread.sleep(500);
+        release.countDown();
+
+        Throwable firstFailure = failureOf(first);
+        Throwable secondFailure = failureOf(second);
+        assertTrue(firstFailure instanceof IoTTimeoutException);
+        assertSame(firstFailure, secondFailure);
+        assertEquals(1, IoTLoopbackTransport.shared().house(settings.getAddress()).get(IoTState.LIGHT_STATE));
+    }
+
+    @Test
+    public void interruptedCallerTimesOutTest() throws Exception {
+        TartanHomeSettings settings = house("interrupt");
+        settings.setCoalesceWindow(50);
+        final TartanHomeService service = connect(settings);
+
+        CountDownLatch release = new CountDownLatch(1);
+        holdShard(release);
+        final TartanHome lock = new TartanHome();
+        lock.setLock(TartanHomeValues.LOCKED);
+        final Throwable[] failure = new Throwable[1];
+        final boolean[] interrupted = new boolean[1];
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    service.setState(lock);
+                } catch (RuntimeException e) {
+                    failure[0] = e;
+                    interrupted[0] = Thread.currentThread().isInterrupted();
+                }
+            }
+        });
+        caller.start();
+        Thread.sleep(100);
+        caller.interrupt();
+        caller.join(5000);
+        release.countDown();
+
+        assertTrue(failure[0] instanceof IoTTimeoutException);
+        assertTrue(interrupted[0]);
+    }
+
+    private static Throwable failureOf(Future<Boolean> posted) throws Exception {
+        try {
+            posted.get(5, TimeUnit.SECONDS);
+            fail("The update was dropped");
+            return null;
+        } catch (ExecutionException ee) {
+            return ee.getCause();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package tartan.smarthome.resources;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tartan.smarthome.TartanHomeSettings;
+import tartan.smarthome.auth.TartanUser;
+import tartan.smarthome.core.TartanHome;
+import tartan.smarthome.core.TartanHomeValues;
+import tartan.smarthome.resources.iotcontroller.IoTConnection;
+import tartan.smarthome.resources.iotcontroller.IoTLinkState;
+import tartan.smarthome.resources.iotcontroller.IoTScheduler;
+import tartan.smarthome.resources.iotcontroller.IoTTransport;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TartanResourceTest {
+
+    private IoTScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        // one shard, so a test can hold up the house
+        scheduler = new IoTScheduler(2, 1);
+        scheduler.start();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.stop();
+    }
+
+    private TartanResource resource(TartanHomeSettings settings) throws Exception {
+        TartanResource resource = new TartanResource(Collections.singletonList(settings), null, 60, null, scheduler);
+        awaitConnected(resource, 5000);
+        return resource;
+    }
+
+    private static void awaitConnected(TartanResource resource, long timeout) throws Exception {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (resource.getConnecting() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Settings for a house behind a socket that accepts connections but never answers, so each
+     * connection waits out the protocol handshake
+     */
+    private static TartanHomeSettings silentHouse(String name, int port) {
+        TartanHomeSettings settings = TartanHomeServiceTest.house(name);
+        settings.setTransport(IoTTransport.TCP);
+        settings.setAddress("127.0.0.1");
+        settings.setPort(port);
+        settings.setBinaryProtocol(true);
+        return settings;
+    }
+
+    private static TartanHome lightOff() {
+        TartanHome update = new TartanHome();
+        update.setLight(TartanHomeValues.OFF);
+        return update;
+    }
+
+    @Test
+    public void fullBulkheadIsRejectedTest() throws Exception {
+        TartanHomeSettings settings = TartanHomeServiceTest.house("full");
+        settings.setMaxConcurrentRequests(1);
+        TartanResource resource = resource(settings);
+        TartanUser user = new TartanUser("admin", "full");
+        TartanHomeService service = resource.getHomeServices().get(0);
+
+        // a request that waits on the house holds the only place
+        assertTrue(service.enterBulkhead());
+        assertEquals(429, resource.update("full", user, lightOff()).getStatus());
+        try {
+            resource.state("full", user);
+            fail("The bulkhead was full");
+        } catch (WebApplicationException wae) {
+            assertEquals(429, wae.getResponse().getStatus());
+        }
+        assertEquals(2, service.getBulkheadRejections());
+
+        service.leaveBulkhead();
+        assertEquals(Response.Status.OK.getStatusCode(), resource.update("full", user, lightOff()).getStatus());
+        assertEquals(0, service.getBulkheadInUse());
+    }
+
+    @Test
+    public void placeIsReleasedOnFailureTest() throws Exception {
+        TartanHomeSettings settings = TartanHomeServiceTest.house("release");
+        settings.setMaxConcurrentRequests(1);
+        settings.setReadTimeout(100);
+        TartanResource resource = resource(settings);
+        TartanUser user = new TartanUser("admin", "release");
+        TartanHomeService service = resource.getHomeServices().get(0);
+
+        // a bad setting fails the update before it reaches the house
+        TartanHome bad = new TartanHome();
+        bad.setAlarmDelay("soon");
+        try {
+            resource.update("release", user, bad);
+            fail("The alarm delay is not a number");
+        } catch (NumberFormatException expected) {
+            // the place is given back below
+        }
+        assertEquals(0, service.getBulkheadInUse());
+
+        // the house's shard is busy past the read deadline
+        final CountDownLatch release = new CountDownLatch(1);
+        scheduler.getShards().assign().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertEquals(Response.Status.GATEWAY_TIMEOUT.getStatusCode(),
+                resource.update("release", user, lightOff()).getStatus());
+        release.countDown();
+        assertEquals(0, service.getBulkheadInUse());
+        assertEquals(0, service.getBulkheadRejections());
+    }
+
+    @Test
+    public void disconnectedHouseIsUnavailableTest() throws Exception {
+        TartanHomeSettings settings = TartanHomeServiceTest.house("gone");
+        settings.setTransport(IoTTransport.TCP);
+        settings.setAddress("127.0.0.1");
+        settings.setPort(1);
+        settings.setConnectTimeout(200);
+        TartanResource resource = new TartanResource(Collections.singletonList(settings), null, 60, null, scheduler);
+        TartanUser user = new TartanUser("admin", "gone");
+
+        assertEquals(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(),
+                resource.update("gone", user, lightOff()).getStatus());
+        assertEquals(0, resource.getHomeServices().get(0).getBulkheadInUse());
+    }
+
+    @Test
+    public void housesConnectInParallelTest() throws Exception {
+        // the backlog accepts every connection; the handshake is never answered
+        ServerSocket silent = new ServerSocket(0, 50);
+        List<TartanHomeSettings> houses = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            houses.add(silentHouse("slow" + i, silent.getLocalPort()));
+        }
+
+        long start = System.currentTimeMillis();
+        TartanResource resource = new TartanResource(houses, null, 60, null, scheduler, 4);
+        assertTrue(System.currentTimeMillis() - start < IoTConnection.HANDSHAKE_TIMEOUT);
+        assertEquals(4, resource.getHomeServices().size());
+        for (TartanHomeService service : resource.getHomeServices()) {
+            assertEquals(IoTLinkState.CONNECTING, service.getLinkState());
+        }
+
+        // one after the other they would take four handshake timeouts
+        awaitConnected(resource, 3 * IoTConnection.HANDSHAKE_TIMEOUT);
+        assertEquals(0, resource.getConnecting());
+        assertTrue(System.currentTimeMillis() - start < 3 * IoTConnection.HANDSHAKE_TIMEOUT);
+        silent.close();
+    }
+
+    @Test
+    public void failedHouseIsTriedAgainTest() throws Exception {
+        ServerSocket house = new ServerSocket(0);
+        int port = house.getLocalPort();
+        house.close();
+
+        TartanHomeSettings settings = TartanHomeServiceTest.house("late");
+        settings.setTransport(IoTTransport.TCP);
+        settings.setAddress("127.0.0.1");
+        settings.setPort(port);
+        settings.setConnectTimeout(200);
+        TartanResource resource = new TartanResource(Collections.singletonList(settings), null, 60, null, scheduler);
+        TartanHomeService service = resource.getHomeServices().get(0);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getLinkState() != IoTLinkState.DOWN && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(IoTLinkState.DOWN, service.getLinkState());
+        assertFalse(service.isConnected());
+
+        // the house comes up; the next attempt finds it
+        house = new ServerSocket(port);
+        awaitConnected(resource, 5000);
+        assertTrue(service.isConnected());
+        assertEquals(service, resource.getHomeServices().get(0));
+        house.close();
+    }
+
+    /**
+     * Settings for a house on a port nothing listens on
+     */
+    private static TartanHomeSettings absentHouse(String name) throws Exception {
+        ServerSocket house = new ServerSocket(0);
+        house.close();
+        TartanHomeSettings settings = TartanHomeServiceTest.house(name);
+        settings.setTransport(IoTTransport.TCP);
+        settings.setAddress("127.0.0.1");
+        settings.setPort(house.getLocalPort());
+        settings.setConnectTimeout(200);
+        return settings;
+    }
+
+    private static void awaitDown(TartanHomeService service) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getLinkState() != IoTLinkState.DOWN && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(IoTLinkState.DOWN, service.getLinkState());
+    }
+
+    @Test
+    public void stoppedResourceMakesNoMoreAttemptsTest() throws Exception {
+        TartanHomeSettings settings = absentHouse("stopped");
+        TartanResource resource = new TartanResource(Collections.singletonList(settings), null, 60, null, scheduler);
+        TartanHomeService service = resource.getHomeServices().get(0);
+        awaitDown(service);
+        resource.stop();
+
+        // the house comes up after the platform has stopped; the retry that was due is dropped
+        ServerSocket house = new ServerSocket(settings.getPort());
+        Thread.sleep(1500);
+        assertFalse(service.isConnected());
+        house.close();
+    }
+
+    @Test
+    public void stoppedSchedulerEndsRetriesQuietlyTest() throws Exception {
+        final List<Throwable> uncaught = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                uncaught.add(e);
+            }
+        });
+        try {
+            // the retry cannot be scheduled once the platform is shutting down
+            scheduler.stop();
+            TartanResource resource = new TartanResource(Collections.singletonList(absentHouse("late")),
+                    null, 60, null, scheduler);
+            awaitDown(resource.getHomeServices().get(0));
+            Thread.sleep(100);
+            assertTrue(uncaught.toString(), uncaught.isEmpty());
+            resource.stop();
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(previous);
+        }
+    }
+}
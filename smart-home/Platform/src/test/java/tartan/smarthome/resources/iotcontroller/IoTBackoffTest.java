@@ -0,0 +1,36 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IoTBackoffTest {
+
+    @Test
+    public void delaysGrowWithinJitterTest() {
+        IoTBackoff backoff = new IoTBackoff(1000, 60000, new Random(42));
+
+        long nominal = 1000;
+        for (int attempt = 0; attempt < 10; attempt++) {
+            long delay = backoff.nextDelay();
+            assertTrue("attempt " + attempt + " delay " + delay, delay >= nominal / 2 && delay <= nominal);
+            nominal = Math.min(nominal * 2, 60000);
+        }
+        assertEquals(10, backoff.getAttempts());
+    }
+
+    @Test
+    public void resetStartsOverTest() {
+        IoTBackoff backoff = new IoTBackoff(1000, 60000, new Random(42));
+        for (int attempt = 0; attempt < 5; attempt++) {
+            backoff.nextDelay();
+        }
+        backoff.reset();
+
+        assertEquals(0, backoff.getAttempts());
+        assertTrue(backoff.nextDelay() <= 1000);
+    }
+}
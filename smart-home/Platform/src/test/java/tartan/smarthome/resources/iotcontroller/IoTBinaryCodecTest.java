@@ -0,0 +1,78 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Hashtable;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IoTBinaryCodecTest {
+
+    private static final String STATE_UPDATE =
+            "SU:TR=-7;HR=100;DS=1;LS=1;PS=1;AS=0;AA=0;HES=0;CHS=0;HM=1;HUS=0;LKS=1;ID=0;NM=1.";
+
+    @Test
+    public void stateUpdateRoundTripTest() {
+        IoTState original = new IoTState();
+        assertTrue(new IoTStateCodec().decodeStateUpdate(STATE_UPDATE, original));
+
+        ByteBuffer frame = ByteBuffer.allocate(IoTStateCodec.MAX_FRAME);
+        IoTBinaryCodec.encodeStateUpdate(original, frame);
+        frame.flip();
+
+        // type, two bytes of mask, two bytes of flags, one byte per reading and a two byte 100
+        assertEquals(8, frame.remaining());
+
+        IoTState decoded = new IoTState();
+        assertTrue(IoTBinaryCodec.decodeStateUpdate(frame, decoded));
+        assertTrue(original.sameAs(decoded));
+        assertEquals(-7, decoded.get(IoTState.TEMP_READING));
+    }
+
+    @Test
+    public void setStateRoundTripTest() {
+        Map<String, Object> state = new Hashtable<>();
+        state.put(IoTValues.LIGHT_STATE, true);
+        state.put(IoTValues.ALARM_STATE, false);
+        state.put(IoTValues.TEMP_READING, 70);   // readings are never sent
+
+        ByteBuffer frame = ByteBuffer.allocate(IoTStateCodec.MAX_FRAME);
+        IoTBinaryCodec.encodeSetState(state, frame);
+        frame.flip();
+
+        IoTState decoded = new IoTState();
+        assertTrue(IoTBinaryCodec.decodeSetState(frame, decoded));
+        assertEquals((1 << IoTState.LIGHT_STATE) | (1 << IoTState.ALARM_STATE), decoded.presentMask());
+        assertTrue(decoded.getFlag(IoTState.LIGHT_STATE));
+        assertFalse(decoded.getFlag(IoTState.ALARM_STATE));
+    }
+
+    @Test
+    public void rejectsTruncatedFramesTest() {
+        IoTState state = new IoTState();
+
+        assertFalse(IoTBinaryCodec.decodeStateUpdate(ByteBuffer.allocate(0), state));
+        assertFalse(IoTBinaryCodec.decodeStateUpdate(ByteBuffer.wrap(new byte[] { IoTBinaryCodec.OK }), state));
+        // the mask says the temperature follows, but the frame ends
+        assertFalse(IoTBinaryCodec.decodeStateUpdate(ByteBuffer.wrap(new byte[] { IoTBinaryCodec.STATE_UPDATE, 1, 0 }), state));
+    }
+
+    @Test
+    public void varintTest() {
+        ByteBuffer buffer = ByteBuffer.allocate(IoTBinaryCodec.MAX_VARINT * 3);
+        IoTBinaryCodec.putVarint(buffer, 0);
+        IoTBinaryCodec.putVarint(buffer, 300);
+        IoTBinaryCodec.putVarint(buffer, Integer.MAX_VALUE);
+        assertEquals(1 + 2 + 5, buffer.position());
+
+        buffer.flip();
+        assertEquals(0, IoTBinaryCodec.getVarint(buffer));
+        assertEquals(300, IoTBinaryCodec.getVarint(buffer));
+        assertEquals(Integer.MAX_VALUE, IoTBinaryCodec.getVarint(buffer));
+        assertEquals(-1, IoTBinaryCodec.getVarint(buffer));
+    }
+}
@@ -0,0 +1,46 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class IoTBufferPoolTest {
+
+    @Test
+    public void releasedBuffersAreReusedTest() {
+        IoTBufferPool pool = new IoTBufferPool(64, 4);
+
+        ByteBuffer first = pool.acquire();
+        assertTrue(first.isDirect());
+        assertEquals(64, first.capacity());
+        first.put((byte) 1);
+        pool.release(first);
+
+        ByteBuffer second = pool.acquire();
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void poolKeepsAtMostItsLimitTest() {
+        IoTBufferPool pool = new IoTBufferPool(64, 2);
+        ByteBuffer[] buffers = new ByteBuffer[3];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.acquire();
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        // foreign buffers are not taken in
+        pool.release(ByteBuffer.allocate(64));
+
+        assertEquals(2, pool.getIdle());
+        assertEquals(3, pool.getMisses());
+    }
+}
@@ -0,0 +1,191 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class IoTConnectManagerTest {
+
+    private static final String STATE_UPDATE =
+            "SU:TR=65;HR=90;DS=1;LS=1;PS=1;AS=0;AA=0;HES=0;CHS=0;HM=1;HUS=0;LKS=0;ID=0;NM=0.";
+
+    /** a text house that answers every request and records what it was sent */
+    private static class RecordingConnection extends IoTConnection {
+        final List<String> sent = new ArrayList<>();
+
+        RecordingConnection() {
+            super("localhost", 5050);
+        }
+
+        @Override
+        public String sendMessageToHouse(String msg) {
+            sent.add(msg);
+            if (msg.startsWith(IoTValues.GET_STATE + IoTValues.MSG_DELIM)) {
+                return "SU:DS=0;LKS=1.";
+            }
+            return msg.startsWith(IoTValues.GET_STATE) ? STATE_UPDATE : IoTValues.OK + IoTValues.MSG_END;
+        }
+
+        @Override
+        public String sendMessageToHouse(ByteBuffer frame) {
+            return sendMessageToHouse(StandardCharsets.US_ASCII.decode(frame).toString());
+        }
+    }
+
+    private RecordingConnection connection;
+    private IoTConnectManager connMgr;
+
+    @Before
+    public void setUp() {
+        connection = new RecordingConnection();
+        connMgr = new IoTConnectManager(connection);
+    }
+
+    @Test
+    public void sendsOnlyChangedKeysTest() {
+        connMgr.getState();
+
+        Map<String, Object> state = connMgr.getState();
+        state.put(IoTValues.LIGHT_STATE, false);   // was on
+        state.put(IoTValues.LOCK_STATE, true);     // was unlocked
+
+        assertTrue(connMgr.setState(state));
+        assertEquals("SS:LKS=1;LS=0.", connection.sent.get(connection.sent.size() - 1));
+    }
+
+    @Test
+    public void subsetIsMergedWithLastStateTest() {
+        connMgr.getState();
+
+        Map<String, Object> state = connMgr.getState(IoTValues.SECURITY_KEYS);
+        assertEquals("GS:DS;PS;AS;AA;LKS;ID.", connection.sent.get(connection.sent.size() - 1));
+        assertEquals(false, state.get(IoTValues.DOOR_STATE));
+        assertEquals(true, state.get(IoTValues.LOCK_STATE));
+        // not asked for: the last known reading
+        assertEquals(65, state.get(IoTValues.TEMP_READING));
+    }
+
+    @Test
+    public void skipsUnchangedStateTest() {
+        Map<String, Object> state = connMgr.getState();
+        int sent = connection.sent.size();
+
+        assertTrue(connMgr.setState(state));
+        assertEquals(sent, connection.sent.size());
+        assertEquals(1, connMgr.getUnchangedSetStates());
+    }
+
+    @Test
+    public void acknowledgedChangesAreNotResentTest() {
+        Map<String, Object> state = new Hashtable<>();
+        state.put(IoTValues.DOOR_STATE, false);
+
+        assertTrue(connMgr.setState(state));
+        assertTrue(connMgr.setState(state));
+        assertEquals(1, connection.sent.size());
+
+        // after a reconnect nothing is assumed about the house
+        connMgr.forgetHouseState();
+        assertTrue(connMgr.setState(state));
+        assertEquals(2, connection.sent.size());
+    }
+
+    @Test
+    public void asyncChangesAreRecordedTest() throws Exception {
+        Map<String, Object> state = new Hashtable<>();
+        state.put(IoTValues.DOOR_STATE, false);
+
+        assertTrue(connMgr.setStateAsync(state).get(5, TimeUnit.SECONDS));
+        assertEquals("SS:DS=0.", connection.sent.get(0));
+        assertTrue(connMgr.setStateAsync(state).get(5, TimeUnit.SECONDS));
+        assertEquals(1, connection.sent.size());
+        assertEquals(1, connMgr.getUnchangedSetStates());
+    }
+
+    @Test
+    public void abandonedPollIsCancelledTest() {
+        final List<CompletableFuture<?>> cancelled = new ArrayList<>();
+        final CompletableFuture<String> request = new CompletableFuture<>();
+        IoTConnection silent = new IoTConnection("localhost", 5050) {
+            @Override
+            public CompletableFuture<String> sendMessageAsync(String msg) {
+                return request;
+            }
+
+            @Override
+            public boolean cancel(CompletableFuture<?> r) {
+                cancelled.add(r);
+                return super.cancel(r);
+            }
+        };
+        CompletableFuture<Map<String, Object>> poll = new IoTConnectManager(silent).getStateAsync();
+
+        // the caller's deadline passes: the request must not stay in flight on the connection
+        poll.completeExceptionally(new IoTTimeoutException("late"));
+        assertEquals(1, cancelled.size());
+        assertSame(request, cancelled.get(0));
+        assertTrue(request.isCancelled());
+    }
+
+    @Test
+    public void socketAnswersAreDecodedInPlaceTest() throws Exception {
+        final ServerSocket house = new ServerSocket(0);
+        Thread answering = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (Socket s = house.accept()) {
+                    InputStream in = s.getInputStream();
+                    OutputStream out = s.getOutputStream();
+                    StringBuilder request = new StringBuilder();
+                    int b;
+                    while ((b = in.read()) >= 0) {
+                        request.append((char) b);
+                        if (b != '.') {
+                            continue;
+                        }
+                        String answer = request.toString().equals(IoTValues.GET_STATE + IoTValues.MSG_END)
+                                ? STATE_UPDATE : IoTValues.OK + IoTValues.MSG_END;
+                        out.write((answer + "\n").getBytes(StandardCharsets.US_ASCII));
+                        out.flush();
+                        request.setLength(0);
+                    }
+                } catch (Exception e) { /* the test fails on the exchange */ }
+            }
+        });
+        answering.start();
+
+        IoTConnection socketConnection = new IoTConnection("localhost", house.getLocalPort());
+        assertTrue(socketConnection.connect());
+        IoTConnectManager socketMgr = new IoTConnectManager(socketConnection);
+
+        Map<String, Object> state = socketMgr.getState();
+        assertEquals(65, state.get(IoTValues.TEMP_READING));
+        assertEquals(true, state.get(IoTValues.LIGHT_STATE));
+
+        state.put(IoTValues.LIGHT_STATE, false);
+        assertTrue(socketMgr.setState(state));
+        // the acknowledged change is recorded, so sending it again costs nothing
+        assertTrue(socketMgr.setState(state));
+        assertEquals(1, socketMgr.getUnchangedSetStates());
+
+        socketConnection.disconnect();
+        house.close();
+        answering.join(5000);
+    }
+}
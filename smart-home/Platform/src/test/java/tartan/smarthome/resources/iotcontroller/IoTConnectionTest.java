@@ -0,0 +1,87 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IoTConnectionTest {
+
+    private ServerSocket house;
+    private IoTConnection conn;
+
+    @Before
+    public void setUp() throws Exception {
+        house = new ServerSocket(0);
+        conn = new IoTConnection("localhost", house.getLocalPort());
+        conn.setTimeouts(1000, 300);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        conn.disconnect();
+        house.close();
+    }
+
+    private static ByteBuffer ascii(String msg) {
+        return ByteBuffer.wrap(msg.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void lineIsReadAcrossWritesTest() throws Exception {
+        assertTrue(conn.connect());
+        assertTrue(conn.answersInPlace());
+        Socket s = house.accept();
+        OutputStream out = s.getOutputStream();
+
+        // the answer arrives in two pieces, the first before the request is even read
+        out.write("SU:TR=".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    out.write("70.\r\nOK.\n".getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                } catch (Exception e) { /* the test fails on the read */ }
+            }
+        });
+        writer.start();
+
+        ByteBuffer line = conn.sendLineToHouse(ascii("GS."));
+        assertEquals("SU:TR=70.", StandardCharsets.US_ASCII.decode(line).toString());
+        assertEquals("OK.", conn.sendMessageToHouse(ascii("SS:LS=1.")));
+        writer.join();
+        s.close();
+    }
+
+    @Test
+    public void silentHouseMissesTheDeadlineTest() throws Exception {
+        assertTrue(conn.connect());
+        Socket s = house.accept();
+
+        long start = System.currentTimeMillis();
+        try {
+            conn.sendLineToHouse(ascii("GS."));
+            fail("a silent house should time out");
+        } catch (IoTTimeoutException expected) {
+            long waited = System.currentTimeMillis() - start;
+            assertTrue("waited " + waited + " ms", waited >= 250 && waited < 2000);
+        }
+        // a late answer must not be taken for the next one
+        assertFalse(conn.isConnected());
+        assertFalse(conn.answersInPlace());
+        s.close();
+    }
+}
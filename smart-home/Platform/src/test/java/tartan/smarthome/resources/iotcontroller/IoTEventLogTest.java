@@ -0,0 +1,59 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IoTEventLogTest {
+
+    @Test
+    public void oldestEntriesAreDroppedTest() {
+        IoTEventLog log = new IoTEventLog(3, 1000);
+        for (int i = 0; i < 5; i++) {
+            log.add("[Oct 01,2026 10:0" + i + "]: entry " + i + "\n");
+        }
+
+        assertEquals(3, log.size());
+        assertEquals(2, log.getDropped());
+        List<String> entries = log.getEntries();
+        assertEquals("2 earlier entries were dropped\n", entries.get(0));
+        assertTrue(entries.get(1).endsWith("entry 2\n"));
+
+        // the byte cap applies as well
+        log.add("[Oct 01,2026 10:05]: " + new String(new char[990]).replace('\0', 'x') + "\n");
+        assertEquals(1, log.size());
+        assertEquals(1, log.getTruncated());
+        assertTrue(log.getBytes() <= 1000);
+    }
+
+    @Test
+    public void repeatsAreCompactedTest() {
+        IoTEventLog log = new IoTEventLog(10, 1000);
+        log.add("[Oct 01,2026 10:00]: Door is locked\n[Oct 01,2026 10:00]: Light is off\n");
+        log.add("[Oct 01,2026 10:01]: Door is locked\n[Oct 01,2026 10:01]: Light is off\n");
+        log.add("[Oct 01,2026 10:02]: Door is locked\n[Oct 01,2026 10:02]: Light is off\n");
+        log.add("");
+
+        assertEquals(1, log.size());
+        assertEquals(2, log.getCompacted());
+        String entry = log.getEntries().get(0);
+        assertTrue(entry.startsWith("[Oct 01,2026 10:02]"));
+        assertTrue(entry.endsWith("(repeated 2 more times)\n"));
+    }
+
+    @Test
+    public void longEntriesAreCutBetweenCharactersTest() {
+        // the euro sign takes three bytes, and the cap falls in its middle
+        IoTEventLog euro = new IoTEventLog(10, 6);
+        euro.add("abcd\u20acx");
+        assertEquals("abcd", euro.getEntries().get(0));
+
+        IoTEventLog accents = new IoTEventLog(10, 7);
+        accents.add("ab\u00e9\u00e9\u00e9");
+        assertEquals("ab\u00e9\u00e9", accents.getEntries().get(0));
+        assertEquals(1, accents.getTruncated());
+    }
+}
@@ -0,0 +1,105 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IoTGatewayTest {
+
+    private IoTSelectorEngine engine;
+    private ServerSocket hub;
+    private IoTGateway gateway;
+
+    @Before
+    public void setUp() throws Exception {
+        engine = new IoTSelectorEngine(1);
+        engine.start();
+        hub = new ServerSocket(0);
+        gateway = new IoTGateway("localhost", hub.getLocalPort(), engine);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        gateway.disconnect();
+        hub.close();
+        engine.stop();
+    }
+
+    /**
+     * Read one request and split off its sequence tag
+     */
+    private String[] readRequest(InputStream in) throws Exception {
+        StringBuilder request = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0) {
+            request.append((char) b);
+            if (b == '.') break;
+        }
+        return request.toString().split("#", 2);
+    }
+
+    private void answer(OutputStream out, String tag, String response) throws Exception {
+        out.write((tag + "#" + response + "\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    @Test
+    public void housesShareOneBatchPollTest() throws Exception {
+        IoTGatewayConnection mse = gateway.connectionFor("mse");
+        IoTGatewayConnection cmu = gateway.connectionFor("cmu");
+        assertTrue(mse.connect());
+        assertTrue(cmu.connect());
+        Socket s = hub.accept();
+
+        CompletableFuture<String> mseState = mse.sendMessageAsync("GS.");
+        CompletableFuture<String> cmuState = cmu.sendMessageAsync("GS.");
+
+        String[] request = readRequest(s.getInputStream());
+        assertEquals("*@GS.", request[1]);
+        answer(s.getOutputStream(), request[0], "*@mse@SU:TR=70.|cmu@SU:TR=71.");
+
+        assertEquals("SU:TR=70.", mseState.get(5, TimeUnit.SECONDS));
+        assertEquals("SU:TR=71.", cmuState.get(5, TimeUnit.SECONDS));
+        assertEquals(1, gateway.getBatchPolls());
+        assertEquals(0, gateway.getUnitPolls());
+        s.close();
+    }
+
+    @Test
+    public void changedHouseIsPolledAloneTest() throws Exception {
+        IoTGatewayConnection mse = gateway.connectionFor("mse");
+        assertTrue(mse.connect());
+        Socket s = hub.accept();
+
+        CompletableFuture<String> state = mse.sendMessageAsync("GS.");
+        String[] request = readRequest(s.getInputStream());
+        answer(s.getOutputStream(), request[0], "*@mse@SU:LS=1.");
+        assertEquals("SU:LS=1.", state.get(5, TimeUnit.SECONDS));
+
+        CompletableFuture<String> ack = mse.sendMessageAsync("SS:LS=0.");
+        request = readRequest(s.getInputStream());
+        assertEquals("mse@SS:LS=0.", request[1]);
+        answer(s.getOutputStream(), request[0], "mse@OK.");
+        assertEquals("OK.", ack.get(5, TimeUnit.SECONDS));
+
+        // the batch no longer speaks for this house
+        state = mse.sendMessageAsync("GS.");
+        request = readRequest(s.getInputStream());
+        assertEquals("mse@GS.", request[1]);
+        answer(s.getOutputStream(), request[0], "mse@SU:LS=0.");
+        assertEquals("SU:LS=0.", state.get(5, TimeUnit.SECONDS));
+        assertEquals(1, gateway.getUnitPolls());
+        s.close();
+    }
+}
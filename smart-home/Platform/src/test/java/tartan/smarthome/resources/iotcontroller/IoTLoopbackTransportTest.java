@@ -0,0 +1,53 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Hashtable;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IoTLoopbackTransportTest {
+
+    private IoTLoopbackTransport transport;
+    private IoTConnectManager connMgr;
+
+    @Before
+    public void setUp() {
+        transport = new IoTLoopbackTransport();
+        IoTConnection connection = transport.createConnection("mse", 5050);
+        assertTrue(connection.connect());
+        connMgr = new IoTConnectManager(connection);
+    }
+
+    @Test
+    public void stateRoundTripsThroughHouseTest() {
+        Map<String, Object> state = connMgr.getState();
+        assertEquals(65, state.get(IoTValues.TEMP_READING));
+        assertEquals(true, state.get(IoTValues.DOOR_STATE));
+
+        Map<String, Object> change = new Hashtable<>();
+        change.put(IoTValues.LOCK_STATE, true);
+        change.put(IoTValues.HEATER_STATE, true);
+        assertTrue(connMgr.setState(change));
+
+        state = connMgr.getState();
+        assertEquals(true, state.get(IoTValues.LOCK_STATE));
+        assertEquals(66, state.get(IoTValues.TEMP_READING));
+    }
+
+    @Test
+    public void connectionsShareTheirHouseTest() {
+        transport.house("mse").set(IoTState.DOOR_STATE, 0);
+
+        Map<String, Object> state = connMgr.getState(IoTValues.SECURITY_KEYS);
+        assertEquals(false, state.get(IoTValues.DOOR_STATE));
+        assertEquals(1, transport.house("mse").getRequests());
+
+        connMgr.disconnectFromHouse();
+        assertNull(connMgr.getState());
+    }
+}
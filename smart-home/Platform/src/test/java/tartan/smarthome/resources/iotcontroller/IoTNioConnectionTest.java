@@ -0,0 +1,221 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IoTNioConnectionTest {
+
+    private IoTSelectorEngine engine;
+    private ServerSocket house;
+
+    @Before
+    public void setUp() throws Exception {
+        engine = new IoTSelectorEngine(1);
+        engine.start();
+        house = new ServerSocket(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        house.close();
+        engine.stop();
+    }
+
+    /**
+     * Read requests until the given number of message terminators has been seen
+     */
+    private List<String> readRequests(InputStream in, int count) throws Exception {
+        List<String> requests = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        while (requests.size() < count) {
+            int b = in.read();
+            if (b < 0) break;
+            current.append((char) b);
+            if (b == '.') {
+                requests.add(current.toString());
+                current.setLength(0);
+            }
+        }
+        return requests;
+    }
+
+    @Test
+    public void unpipelinedResponsesMatchInOrderTest() throws Exception {
+        IoTNioConnection conn = new IoTNioConnection("localhost", house.getLocalPort(), engine);
+        assertTrue(conn.connect());
+        Socket s = house.accept();
+
+        CompletableFuture<String> first = conn.sendMessageAsync("GS.");
+        CompletableFuture<String> second = conn.sendMessageAsync("SS:LS=1.");
+        List<String> requests = readRequests(s.getInputStream(), 2);
+        assertEquals("GS.", requests.get(0));
+        assertEquals("SS:LS=1.", requests.get(1));
+
+        OutputStream out = s.getOutputStream();
+        out.write("SU:TR=70.\nOK.\n".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+
+        assertEquals("SU:TR=70.", first.get(5, TimeUnit.SECONDS));
+        assertEquals("OK.", second.get(5, TimeUnit.SECONDS));
+        s.close();
+    }
+
+    @Test
+    public void lateResponseIsNotTakenForTheNextTest() throws Exception {
+        IoTNioConnection conn = new IoTNioConnection("localhost", house.getLocalPort(), engine);
+        conn.setTimeouts(5000, 200);
+        assertTrue(conn.connect());
+        Socket s = house.accept();
+
+        try {
+            conn.sendMessageToHouse("GS.");
+            fail("the house never answered");
+        } catch (IoTTimeoutException expected) {
+            // the request was cancelled
+        }
+
+        // an untagged answer is matched by its place in line, so the link is dropped rather than
+        // let the late answer be taken for the next request
+        assertFalse(conn.isConnected());
+        assertNull(conn.sendMessageAsync("SS:LS=1.").get(5, TimeUnit.SECONDS));
+        List<String> requests = readRequests(s.getInputStream(), 2);
+        assertEquals(1, requests.size());
+        assertEquals("GS.", requests.get(0));
+        s.close();
+    }
+
+    @Test
+    public void pipelinedResponsesMatchBySequenceTest() throws Exception {
+        IoTNioConnection conn = new IoTNioConnection("localhost", house.getLocalPort(), engine);
+        conn.setPipelined(true);
+        assertTrue(conn.connect());
+        Socket s = house.accept();
+
+        CompletableFuture<String> poll = conn.sendMessageAsync("GS.");
+        CompletableFuture<String> command = conn.sendMessageAsync("SS:AS=0.");
+        List<String> requests = readRequests(s.getInputStream(), 2);
+        String pollTag = requests.get(0).substring(0, requests.get(0).indexOf('#') + 1);
+        String commandTag = requests.get(1).substring(0, requests.get(1).indexOf('#') + 1);
+        assertEquals(pollTag + "GS.", requests.get(0));
+        assertEquals(commandTag + "SS:AS=0.", requests.get(1));
+
+        // answer the command before the poll
+        OutputStream out = s.getOutputStream();
+        out.write((commandTag + "OK.\n" + pollTag + "SU:TR=65.\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+
+        assertEquals("OK.", command.get(5, TimeUnit.SECONDS));
+        assertEquals("SU:TR=65.", poll.get(5, TimeUnit.SECONDS));
+        s.close();
+    }
+
+    @Test
+    public void pendingRequestsFailWhenHouseDisconnectsTest() throws Exception {
+        IoTNioConnection conn = new IoTNioConnection("localhost", house.getLocalPort(), engine);
+        assertTrue(conn.connect());
+        Socket s = house.accept();
+
+        CompletableFuture<String> poll = conn.sendMessageAsync("GS.");
+        readRequests(s.getInputStream(), 1);
+        s.close();
+
+        assertNull(poll.get(5, TimeUnit.SECONDS));
+        assertFalse(conn.isConnected());
+    }
+
+    @Test
+    public void throwingListenerFailsOnlyItsConnectionTest() throws Exception {
+        final IoTNioConnection bad = new IoTNioConnection("localhost", house.getLocalPort(), engine);
+        assertTrue(bad.connect());
+        Socket badHouse = house.accept();
+        IoTNioConnection good = new IoTNioConnection("localhost", house.getLocalPort(), engine);
+        assertTrue(good.connect());
+        Socket goodHouse = house.accept();
+
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        Future<Boolean> subscribed = caller.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return bad.subscribe(new IoTStateListener() {
+                    @Override
+                    public void stateChanged(IoTState state) {
+                        throw new IllegalStateException("listener bug");
+                    }
+                });
+            }
+        });
+        assertEquals("SUB.", readRequests(badHouse.getInputStream(), 1).get(0));
+        OutputStream badOut = badHouse.getOutputStream();
+        badOut.write("OK.\n".getBytes(StandardCharsets.US_ASCII));
+        badOut.flush();
+        assertTrue(subscribed.get(5, TimeUnit.SECONDS));
+        caller.shutdown();
+
+        CompletableFuture<String> stranded = bad.sendMessageAsync("GS.");
+        readRequests(badHouse.getInputStream(), 1);
+        badOut.write("*#SU:TR=70.\n".getBytes(StandardCharsets.US_ASCII));
+        badOut.flush();
+        assertNull(stranded.get(5, TimeUnit.SECONDS));
+        assertFalse(bad.isConnected());
+
+        // the loop thread survived and still serves the other house
+        CompletableFuture<String> poll = good.sendMessageAsync("GS.");
+        readRequests(goodHouse.getInputStream(), 1);
+        OutputStream goodOut = goodHouse.getOutputStream();
+        goodOut.write("SU:TR=71.\n".getBytes(StandardCharsets.US_ASCII));
+        goodOut.flush();
+        assertEquals("SU:TR=71.", poll.get(5, TimeUnit.SECONDS));
+        assertTrue(good.isConnected());
+
+        badHouse.close();
+        goodHouse.close();
+    }
+
+    @Test
+    public void reconnectIsNotTornDownByTheOldLinkTest() throws Exception {
+        IoTNioConnection conn = new IoTNioConnection("localhost", house.getLocalPort(), engine);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(conn.connect());
+            Socket s = house.accept();
+
+            // the teardown of the previous link must not reach the new one
+            CompletableFuture<String> poll = conn.sendMessageAsync("GS.");
+            readRequests(s.getInputStream(), 1);
+            OutputStream out = s.getOutputStream();
+            out.write("SU:TR=70.\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            assertEquals("SU:TR=70.", poll.get(5, TimeUnit.SECONDS));
+            assertTrue(conn.isConnected());
+
+            conn.disconnect();
+            s.close();
+        }
+        // every link was closed once, and only once
+        long deadline = System.currentTimeMillis() + 5000;
+        while (engine.getConnectionCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, engine.getConnectionCount());
+    }
+}
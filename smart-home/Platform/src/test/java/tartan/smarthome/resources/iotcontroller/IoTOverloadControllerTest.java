@@ -0,0 +1,67 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IoTOverloadControllerTest {
+
+    @Test
+    public void levelsStepUpAndDownTest() {
+        IoTOverloadController overload = new IoTOverloadController();
+        overload.setLimits(100, 10, 50);
+
+        overload.check(200, 0);
+        assertEquals(IoTOverloadController.Level.STRETCH_POLLS, overload.getLevel());
+        overload.recordDbWrite(80);
+        overload.check(0, 0);
+        assertEquals(IoTOverloadController.Level.SAMPLE_HISTORY, overload.getLevel());
+        overload.check(0, 20);
+        overload.check(0, 20);
+        assertEquals(IoTOverloadController.Level.SHED_READS, overload.getLevel());
+
+        // between half the limits and the limits the level holds
+        overload.check(80, 0);
+        assertEquals(IoTOverloadController.Level.SHED_READS, overload.getLevel());
+        overload.check(10, 0);
+        assertEquals(IoTOverloadController.Level.SAMPLE_HISTORY, overload.getLevel());
+        overload.check(10, 0);
+        overload.check(10, 0);
+        overload.check(10, 0);
+        assertEquals(IoTOverloadController.Level.NORMAL, overload.getLevel());
+        assertEquals(6, overload.getTransitions());
+    }
+
+    @Test
+    public void workIsShedInOrderTest() {
+        IoTOverloadController overload = new IoTOverloadController();
+        overload.setLimits(100, 10, 50);
+        assertEquals(1000, overload.stretchPoll(1000, true));
+        assertTrue(overload.admitHistory());
+
+        overload.check(200, 0);
+        assertEquals(1000, overload.stretchPoll(1000, false));
+        assertEquals(1000 * IoTOverloadController.POLL_STRETCH, overload.stretchPoll(1000, true));
+        assertTrue(overload.admitFullRead());
+
+        overload.check(200, 0);
+        int admitted = 0;
+        for (int i = 0; i < 4 * IoTOverloadController.HISTORY_SAMPLE; i++) {
+            if (overload.admitHistory()) {
+                admitted++;
+            }
+        }
+        assertEquals(4, admitted);
+        assertTrue(overload.admitFullRead());
+
+        overload.check(200, 0);
+        assertFalse(overload.admitHistory());
+        assertFalse(overload.admitFullRead());
+
+        assertEquals(1, overload.getShed(IoTOverloadController.Action.STRETCHED_POLL));
+        assertEquals(12, overload.getShed(IoTOverloadController.Action.SKIPPED_HISTORY));
+        assertEquals(2, overload.getShed(IoTOverloadController.Action.SHED_READ));
+    }
+}
@@ -0,0 +1,50 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class IoTPhasePlannerTest {
+
+    @Test
+    public void phasesSpreadAndRebalanceTest() {
+        IoTPhasePlanner planner = new IoTPhasePlanner(new Random(7));
+        IoTPhasePlanner.Phase a = planner.join();
+        IoTPhasePlanner.Phase b = planner.join();
+        IoTPhasePlanner.Phase c = planner.join();
+        IoTPhasePlanner.Phase d = planner.join();
+        assertEquals(0.5, c.getFraction(), 1e-9);
+
+        // polls every 4 s land on their quarter of the period
+        assertEquals(4000, a.align(4000, 100000));
+        assertEquals(5000, b.align(4000, 100000));
+        assertEquals(6000, c.align(4000, 100000));
+        // moved back rather than pushed a whole period later
+        assertEquals(3000, d.align(4000, 100000));
+
+        b.leave();
+        assertEquals(3, planner.getMembers());
+        assertEquals(1.0 / 3, c.getFraction(), 1e-9);
+    }
+
+    @Test
+    public void skewShowsLockstepTest() {
+        IoTPhasePlanner planner = new IoTPhasePlanner(new Random(7));
+        IoTPhasePlanner.Phase[] phases = new IoTPhasePlanner.Phase[4];
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = planner.join();
+        }
+
+        for (IoTPhasePlanner.Phase phase : phases) {
+            phase.ran(4000, 100000);
+        }
+        assertEquals(4.0, planner.getSkew(), 1e-9);
+
+        for (int i = 0; i < phases.length; i++) {
+            phases[i].ran(4000, 100000 + i * 1000);
+        }
+        assertEquals(1.0, planner.getSkew(), 1e-9);
+    }
+}
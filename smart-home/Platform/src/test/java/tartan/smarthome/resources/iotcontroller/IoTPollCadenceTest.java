@@ -0,0 +1,56 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.Test;
+
+import java.util.Hashtable;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class IoTPollCadenceTest {
+
+    private static Map<String, Object> vacant() {
+        Map<String, Object> state = new Hashtable<>();
+        state.put(IoTValues.TEMP_READING, 65);
+        state.put(IoTValues.PROXIMITY_STATE, false);
+        // vacant houses are armed
+        state.put(IoTValues.ALARM_STATE, true);
+        state.put(IoTValues.LIGHT_STATE, false);
+        state.put(IoTValues.HVAC_MODE, "Heater");
+        return state;
+    }
+
+    @Test
+    public void quietVacantHouseBacksOffTest() {
+        IoTPollCadence cadence = new IoTPollCadence(1000, 5000);
+        Map<String, Object> state = vacant();
+
+        assertEquals(2000, cadence.next(state));
+        // readings drift without counting as a change
+        state.put(IoTValues.TEMP_READING, 66);
+        assertEquals(4000, cadence.next(state));
+        assertEquals(5000, cadence.next(state));
+        assertEquals(5000, cadence.next(state));
+    }
+
+    @Test
+    public void activityPollsFastTest() {
+        IoTPollCadence cadence = new IoTPollCadence(1000, 5000);
+        Map<String, Object> state = vacant();
+        cadence.next(state);
+        cadence.next(state);
+
+        state.put(IoTValues.LIGHT_STATE, true);
+        assertEquals(1000, cadence.next(state));
+
+        state.put(IoTValues.ALARM_STATE, true);
+        state.put(IoTValues.ALARM_ACTIVE, true);
+        assertEquals(1000, cadence.next(state));
+        assertEquals(1000, cadence.next(state));
+
+        // a missed answer is retried quickly
+        state.put(IoTValues.ALARM_ACTIVE, false);
+        cadence.next(state);
+        assertEquals(1000, cadence.next(null));
+    }
+}
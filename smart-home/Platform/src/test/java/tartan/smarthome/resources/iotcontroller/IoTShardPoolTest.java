@@ -0,0 +1,154 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IoTShardPoolTest {
+
+    private IoTShardPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new IoTShardPool(2);
+        pool.start();
+    }
+
+    @After
+    public void tearDown() {
+        pool.stop();
+    }
+
+    @Test
+    public void housesAreSpreadAndRunInOrderTest() throws Exception {
+        IoTShardPool.Shard first = pool.assign();
+        IoTShardPool.Shard second = pool.assign();
+        assertNotSame(first, second);
+        assertEquals(1, pool.getMaxHouses());
+
+        // a released place is handed out again
+        second.release();
+        assertSame(second, pool.assign());
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        for (int i = 0; i < 50; i++) {
+            final int n = i;
+            first.execute(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(n);
+                    threads.add(Thread.currentThread());
+                }
+            });
+        }
+        // queued behind the routine work, so it runs last
+        boolean onShard = first.call(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return pool.getShards() == 2;
+            }
+        }, 1000, IoTPriority.ROUTINE);
+
+        assertTrue(onShard);
+        assertEquals(50, order.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, (int) order.get(i));
+            assertSame(threads.get(0), threads.get(i));
+        }
+        assertFalse(first.isCurrent());
+    }
+
+    @Test
+    public void urgentWorkGoesFirstTest() throws Exception {
+        IoTShardPool.Shard shard = pool.assign();
+        final CountDownLatch release = new CountDownLatch(1);
+        shard.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        IoTPriority[] queued = { IoTPriority.ROUTINE, IoTPriority.ROUTINE, IoTPriority.USER, IoTPriority.SECURITY };
+        for (int i = 0; i < queued.length; i++) {
+            final String name = queued[i].name() + i;
+            shard.execute(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(name);
+                }
+            }, queued[i]);
+        }
+        Thread.sleep(20);
+        release.countDown();
+        shard.call(new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        }, 1000, IoTPriority.ROUTINE);
+
+        assertEquals("[SECURITY3, USER2, ROUTINE0, ROUTINE1]", order.toString());
+        assertEquals(1, pool.getStarted(IoTPriority.SECURITY));
+        assertTrue(pool.getMaxWait(IoTPriority.SECURITY) >= 20);
+        assertTrue(pool.getMaxWait(IoTPriority.ROUTINE) >= pool.getMaxWait(IoTPriority.SECURITY));
+    }
+
+    @Test
+    public void busyShardTimesOutTest() throws Exception {
+        IoTShardPool.Shard shard = pool.assign();
+        final CountDownLatch release = new CountDownLatch(1);
+        shard.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        final boolean[] ran = new boolean[1];
+        try {
+            shard.call(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    ran[0] = true;
+                    return null;
+                }
+            }, 100);
+            fail("The shard was busy");
+        } catch (IoTTimeoutException expected) {
+            // dropped before it started
+        }
+        release.countDown();
+        shard.call(new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        }, 1000);
+        assertFalse(ran[0]);
+    }
+}
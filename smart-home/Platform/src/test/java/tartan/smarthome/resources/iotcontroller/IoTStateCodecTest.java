@@ -0,0 +1,91 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IoTStateCodecTest {
+
+    private static final String STATE_UPDATE =
+            "SU:TR=65;HR=100;DS=1;LS=1;PS=1;AS=0;AA=0;HES=0;CHS=0;HM=1;HUS=0;LKS=1;ID=0;NM=1.";
+
+    private String encode(Map<String, Object> state) {
+        ByteBuffer frame = ByteBuffer.allocate(IoTStateCodec.MAX_FRAME);
+        new IoTStateCodec().encodeSetState(state, frame);
+        frame.flip();
+        return StandardCharsets.US_ASCII.decode(frame).toString();
+    }
+
+    @Test
+    public void decodeStateUpdateTest() {
+        IoTStateCodec codec = new IoTStateCodec();
+        IoTState state = new IoTState();
+
+        assertTrue(codec.decodeStateUpdate(ByteBuffer.wrap(STATE_UPDATE.getBytes(StandardCharsets.US_ASCII)), state));
+
+        Map<String, Object> map = state.putInto(new Hashtable<String, Object>());
+        assertEquals(14, map.size());
+        assertEquals(65, map.get(IoTValues.TEMP_READING));
+        assertEquals(100, map.get(IoTValues.HUMIDITY_READING));
+        assertEquals(true, map.get(IoTValues.DOOR_STATE));
+        assertEquals(false, map.get(IoTValues.ALARM_STATE));
+        assertEquals(true, map.get(IoTValues.LOCK_STATE));
+        assertEquals(false, map.get(IoTValues.INTRUDER_DETECT));
+        assertEquals(true, map.get(IoTValues.NIGHT_MODE));
+        assertEquals("Heater", map.get(IoTValues.HVAC_MODE));
+    }
+
+    @Test
+    public void decodeTextAndBytesAgreeTest() {
+        IoTStateCodec codec = new IoTStateCodec();
+        IoTState fromText = new IoTState();
+        IoTState fromBytes = new IoTState();
+
+        assertTrue(codec.decodeStateUpdate(STATE_UPDATE, fromText));
+        assertTrue(codec.decodeStateUpdate(ByteBuffer.wrap(STATE_UPDATE.getBytes(StandardCharsets.US_ASCII)), fromBytes));
+        assertTrue(fromText.sameAs(fromBytes));
+    }
+
+    @Test
+    public void decodeRejectsMalformedFramesTest() {
+        IoTStateCodec codec = new IoTStateCodec();
+        IoTState state = new IoTState();
+
+        assertFalse(codec.decodeStateUpdate("OK.", state));
+        assertFalse(codec.decodeStateUpdate("SU:TR=;HR=90.", state));
+        assertFalse(codec.decodeStateUpdate("SU:TR65.", state));
+    }
+
+    @Test
+    public void decodeSkipsUnknownKeysTest() {
+        IoTStateCodec codec = new IoTStateCodec();
+        IoTState state = new IoTState();
+
+        assertTrue(codec.decodeStateUpdate("SU:XYZW=4;TR=-3;QQ=1.", state));
+        assertEquals(-3, state.get(IoTState.TEMP_READING));
+        assertEquals(1 << IoTState.TEMP_READING, state.presentMask());
+    }
+
+    @Test
+    public void encodeSetStateTest() {
+        Map<String, Object> state = new Hashtable<>();
+        state.put(IoTValues.LIGHT_STATE, true);
+        state.put(IoTValues.ALARM_STATE, false);
+        state.put(IoTValues.TEMP_READING, 70);   // readings are never sent
+        state.put(IoTValues.ALARM_PASSCODE, "1234");
+
+        assertEquals("SS:LS=1;AS=0.", encode(state));
+    }
+
+    @Test
+    public void encodeEmptySetStateTest() {
+        assertEquals("SS:.", encode(new Hashtable<String, Object>()));
+    }
+}
@@ -0,0 +1,56 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.Test;
+
+import java.time.LocalTime;
+import java.util.Hashtable;
+import java.util.Map;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IoTStateFingerprintTest {
+
+    private static Map<String, Object> state(int temp, boolean light, int targetTemp) {
+        Map<String, Object> state = new Hashtable<>();
+        state.put(IoTValues.TEMP_READING, temp);
+        state.put(IoTValues.LIGHT_STATE, light);
+        state.put(IoTValues.TARGET_TEMP, targetTemp);
+        state.put(IoTValues.NIGHT_START_TIME, LocalTime.of(22, 0));
+        state.put(IoTValues.NIGHT_END_TIME, LocalTime.of(6, 0));
+        return state;
+    }
+
+    @Test
+    public void onlyChangedInputsAreEvaluatedTest() {
+        IoTStateFingerprint fingerprint = new IoTStateFingerprint();
+        LocalTime noon = LocalTime.of(12, 0);
+
+        assertTrue(fingerprint.changed(state(65, true, 70), noon));
+        assertFalse(fingerprint.changed(state(65, true, 70), noon));
+
+        // the time the platform adds is not an input of its own
+        Map<String, Object> later = state(65, true, 70);
+        later.put(IoTValues.NOW, LocalTime.of(12, 5));
+        assertFalse(fingerprint.changed(later, LocalTime.of(12, 5)));
+
+        assertTrue(fingerprint.changed(state(66, true, 70), noon));
+        assertTrue(fingerprint.changed(state(66, false, 70), noon));
+        assertTrue(fingerprint.changed(state(66, false, 72), noon));
+        assertFalse(fingerprint.changed(state(66, false, 72), noon));
+
+        fingerprint.reset();
+        assertTrue(fingerprint.changed(state(66, false, 72), noon));
+    }
+
+    @Test
+    public void nightWindowBoundaryIsAnInputTest() {
+        IoTStateFingerprint fingerprint = new IoTStateFingerprint();
+
+        assertTrue(fingerprint.changed(state(65, true, 70), LocalTime.of(21, 59)));
+        assertFalse(fingerprint.changed(state(65, true, 70), LocalTime.of(21, 59, 30)));
+        assertTrue(fingerprint.changed(state(65, true, 70), LocalTime.of(22, 1)));
+        assertFalse(fingerprint.changed(state(65, true, 70), LocalTime.of(23, 0)));
+        assertTrue(fingerprint.changed(state(65, true, 70), LocalTime.of(6, 1)));
+    }
+}
@@ -0,0 +1,61 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.Test;
+
+import java.util.Hashtable;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IoTStateSnapshotTest {
+
+    @Test
+    public void changesMakeNewVersionsTest() {
+        Map<String, Object> reported = new Hashtable<>();
+        reported.put(IoTValues.TEMP_READING, 65);
+        reported.put(IoTValues.DOOR_STATE, true);
+
+        IoTStateSnapshot first = IoTStateSnapshot.EMPTY.next(reported, true, 1000);
+        assertTrue(IoTStateSnapshot.EMPTY.isEmpty());
+        assertFalse(first.isEmpty());
+        assertEquals(1, first.getVersion());
+        assertEquals(1000, first.getTimestamp());
+
+        Map<String, Object> change = new Hashtable<>();
+        change.put(IoTValues.LOCK_STATE, true);
+        IoTStateSnapshot second = first.next(change, false, 2000);
+        assertEquals(2, second.getVersion());
+        assertEquals(65, second.get(IoTValues.TEMP_READING));
+        assertEquals(true, second.get(IoTValues.LOCK_STATE));
+
+        // the earlier version is untouched
+        assertNull(first.get(IoTValues.LOCK_STATE));
+
+        // a replacement drops what the house no longer reports
+        IoTStateSnapshot third = second.next(change, true, 3000);
+        assertEquals(3, third.getVersion());
+        assertNull(third.get(IoTValues.TEMP_READING));
+    }
+
+    @Test
+    public void snapshotsCannotBeChangedTest() {
+        Map<String, Object> reported = new Hashtable<>();
+        reported.put(IoTValues.TEMP_READING, 65);
+        IoTStateSnapshot snapshot = IoTStateSnapshot.EMPTY.next(reported, true, 1000);
+
+        // changing the map it was made from does not change the snapshot
+        reported.put(IoTValues.TEMP_READING, 70);
+        assertEquals(65, snapshot.get(IoTValues.TEMP_READING));
+
+        try {
+            snapshot.getState().put(IoTValues.TEMP_READING, 70);
+            fail("A snapshot must not change");
+        } catch (UnsupportedOperationException expected) {
+            assertEquals(65, snapshot.get(IoTValues.TEMP_READING));
+        }
+    }
+}
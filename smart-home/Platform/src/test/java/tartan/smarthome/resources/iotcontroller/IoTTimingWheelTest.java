@@ -0,0 +1,71 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IoTTimingWheelTest {
+
+    private IoTTimingWheel wheel;
+    private final List<String> fired = new ArrayList<>();
+
+    private Runnable task(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                fired.add(name);
+            }
+        };
+    }
+
+    @Before
+    public void setUp() {
+        // 8 slots of 100 ms: one turn is 800 ms
+        wheel = new IoTTimingWheel(100, 8, 0);
+    }
+
+    @Test
+    public void firesOnTimeAcrossTurnsTest() {
+        wheel.schedule(task("short"), 250, 0);
+        wheel.schedule(task("long"), 2050, 0);
+
+        wheel.expire(200);
+        assertTrue(fired.isEmpty());
+        wheel.expire(300);
+        assertEquals(1, fired.size());
+
+        // the long timeout shares a slot with earlier ticks but waits out its turns
+        wheel.expire(2000);
+        assertEquals(1, fired.size());
+        wheel.expire(2100);
+        assertEquals("long", fired.get(1));
+        assertEquals(2, wheel.getExpired());
+        assertEquals(0, wheel.getPending());
+    }
+
+    @Test
+    public void cancelledTimeoutDoesNotFireTest() {
+        IoTTimingWheel.Timeout away = wheel.schedule(task("away"), 500, 0);
+        wheel.expire(300);
+
+        assertTrue(away.cancel());
+        assertFalse(away.cancel());
+        wheel.expire(1000);
+        assertTrue(fired.isEmpty());
+        assertEquals(1, wheel.getCancelled());
+
+        // re-armed later, it counts from then
+        IoTTimingWheel.Timeout again = wheel.schedule(task("away"), 500, 1000);
+        wheel.expire(1400);
+        assertTrue(again.isPending());
+        wheel.expire(1500);
+        assertTrue(again.isExpired());
+        assertEquals(1, fired.size());
+    }
+}